@@ -0,0 +1,287 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Locale;
+
+/*
+ * ****************************
+ * Filename: Probes.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * The entry points of the benchmarks into the server.
+ * </p>
+ * <p>
+ * The classes of the server are in the default package, which cannot be
+ * imported, while JMH does not accept benchmarks in the default package. The
+ * benchmarks (in the package {@code bench}) therefore call the static methods
+ * of this class through method handles; a method handle held in a
+ * {@code static final} field is inlined by the JIT compiler like a direct
+ * call.
+ * </p>
+ * Every user is a real {@link Server.ThreadHandler}, with a {@link Sink}
+ * instead of a socket behind it.
+ */
+public final class Probes {
+
+    /**
+     * The code of the original XOR Cipher.
+     */
+    private static final int CODE = 20;
+
+    /**
+     * Probes only has static methods.
+     */
+    private Probes() {
+    }
+
+    /**
+     * Sets up an empty chat room and throws away what the server prints, so
+     * that the benchmarks are not measuring the console.
+     *
+     * @throws UnknownHostException
+     *             if local host name cannot be resolved
+     */
+    public static void setUp() throws UnknownHostException {
+	System.setOut(new PrintStream(new OutputStream() {
+	    @Override
+	    public void write(int b) {
+	    }
+
+	    @Override
+	    public void write(byte[] b, int off, int len) {
+	    }
+	}));
+	Server.setUp(new Options(new String[0]));
+    }
+
+    /**
+     * Encodes or decodes UTF-8 bytes in place with {@link XorCodec}.
+     *
+     * @param bytes
+     *            the message
+     */
+    public static void xorApply(byte[] bytes) {
+	XorCodec.apply(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Encrypts a message into new UTF-8 bytes with {@link XorCodec}.
+     *
+     * @param message
+     *            the original message
+     * @return the encrypted bytes
+     */
+    public static byte[] xorEncode(String message) {
+	return XorCodec.encode(message);
+    }
+
+    /**
+     * Decodes a received line the way the server did before
+     * {@link XorCodec}: the bytes are decoded into a String, which is copied
+     * into a char array, XOR-ed and turned into another String.
+     *
+     * @param bytes
+     *            the encrypted UTF-8 bytes of the line
+     * @return the original message
+     */
+    public static String legacyDecode(byte[] bytes) {
+	return legacyEncode(new String(bytes, XorCodec.UTF_8));
+    }
+
+    /**
+     * Encrypts a message the way the server did before {@link XorCodec},
+     * then encodes it into bytes as its PrintWriter did.
+     *
+     * @param message
+     *            the original message
+     * @return the encrypted UTF-8 bytes
+     */
+    public static byte[] legacyEncodeBytes(String message) {
+	return legacyEncode(message).getBytes(XorCodec.UTF_8);
+    }
+
+    /**
+     * The original Server.encode(String).
+     *
+     * @param str
+     *            the message
+     * @return the message with every character XOR-ed
+     */
+    private static String legacyEncode(String str) {
+	char[] charArray = str.toCharArray();
+	for (int i = 0; i < charArray.length; i++) {
+	    charArray[i] = (char) (charArray[i] ^ CODE);
+	}
+	return new String(charArray);
+    }
+
+    /**
+     * Gets the current time with {@link Server#getCurrentTime()}.
+     *
+     * @return the current time in the format of [HH:mm:ss]
+     */
+    public static String currentTime() {
+	return Server.getCurrentTime();
+    }
+
+    /**
+     * Gets the current time the way the server did before {@link Clock},
+     * with a new SimpleDateFormat each time.
+     *
+     * @return the current time in the format of [HH:mm:ss]
+     */
+    public static String legacyCurrentTime() {
+	SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+	String currentTime = sdf.format(System.currentTimeMillis());
+	return "[" + currentTime + "] ";
+    }
+
+    /**
+     * Compiles banned terms into a {@link Moderator.Dictionary}.
+     *
+     * @param terms
+     *            the terms
+     * @return the automaton
+     */
+    public static Object compileTerms(String[] terms) {
+	return Moderator.Dictionary.compile(Arrays.asList(terms));
+    }
+
+    /**
+     * Looks for banned terms in a message with an automaton.
+     *
+     * @param dictionary
+     *            the automaton, from {@link #compileTerms(String[])}
+     * @param message
+     *            the UTF-8 bytes of the message
+     * @return <tt>true</tt> if there is a banned term in the message
+     */
+    public static boolean moderate(Object dictionary, byte[] message) {
+	return ((Moderator.Dictionary) dictionary).find(message, 0, message.length, null) > 0;
+    }
+
+    /**
+     * Looks for banned terms in a message the naive way, one term after
+     * another with {@link String#contains(CharSequence)}, which does not
+     * even look at word boundaries.
+     *
+     * @param terms
+     *            the terms, in lower case
+     * @param message
+     *            the message
+     * @return <tt>true</tt> if there is a banned term in the message
+     */
+    public static boolean moderateNaive(String[] terms, String message) {
+	String text = message.toLowerCase(Locale.ROOT);
+	for (String term : terms) {
+	    if (text.contains(term)) return true;
+	}
+	return false;
+    }
+
+    /**
+     * Connects a new client, without entering a name yet.
+     *
+     * @return the ThreadHandler of the client
+     */
+    public static Object connect() {
+	Server.ThreadHandler handler = new Server.ThreadHandler(new Sink());
+	handler.onConnect();
+	return handler;
+    }
+
+    /**
+     * Connects a new client and enters the chat room with a name.
+     *
+     * @param name
+     *            the user name, which must not be in use
+     * @return the ThreadHandler of the user
+     */
+    public static Object join(String name) {
+	Object handler = connect();
+	send(handler, XorCodec.encode(name));
+	return handler;
+    }
+
+    /**
+     * Hands a line to a ThreadHandler, as if the client had sent it. The
+     * line is decrypted in place.
+     *
+     * @param handler
+     *            the ThreadHandler
+     * @param line
+     *            the encrypted line
+     */
+    public static void send(Object handler, byte[] line) {
+	((Server.ThreadHandler) handler).onLine(line, 0, line.length);
+    }
+
+    /**
+     * Broadcasts a chat message.
+     *
+     * @param sender
+     *            the ThreadHandler of the sender
+     * @param message
+     *            the UTF-8 bytes of the message, not encrypted
+     */
+    public static void broadcast(Object sender, byte[] message) {
+	((Server.ThreadHandler) sender).broadcast(message, 0, message.length);
+    }
+
+    /**
+     * Processes a request command.
+     *
+     * @param handler
+     *            the ThreadHandler of the user
+     * @param command
+     *            the whole command
+     */
+    public static void processCommand(Object handler, String command) {
+	((Server.ThreadHandler) handler).processCommand(command);
+    }
+
+    /**
+     * Lets a user leave the chat room.
+     *
+     * @param handler
+     *            the ThreadHandler of the user
+     */
+    public static void leave(Object handler) {
+	((Server.ThreadHandler) handler).onClose();
+    }
+
+    /**
+     * <p>
+     * An Outbound queue which is emptied as soon as a message is queued,
+     * standing for a client who reads everything at once.
+     * </p>
+     * The messages are taken from the queue exactly as a writer takes them,
+     * but never written anywhere.
+     */
+    private static final class Sink extends Outbound {
+
+	@Override
+	protected void signal() {
+	    int size;
+	    while ((size = batchBytes()) > 0) {
+		ByteBuffer buffer = BufferPool.acquire(size);
+		drainTo(buffer);
+		// Thrown away
+		BufferPool.release(buffer);
+	    }
+	}
+
+	@Override
+	protected void abort() {
+	}
+    }
+}
@@ -0,0 +1,92 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * ****************************
+ * Filename: BroadcastBenchmark.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Measures the fan-out of one chat message to everybody in the chat room:
+ * encoding the message, checking the block lists and queuing it for every
+ * receiver.
+ * </p>
+ * The receivers read everything at once, so the cost of a slow client is not
+ * included. Part of the receivers have blocked the sender, as given by
+ * {@link #blockDensity}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    // The entry points into the server, see Probes
+    private static final MethodHandle SET_UP = Probe.find("setUp", void.class);
+    private static final MethodHandle JOIN = Probe.find("join", Object.class, String.class);
+    private static final MethodHandle PROCESS_COMMAND = Probe.find("processCommand", void.class, Object.class, String.class);
+    private static final MethodHandle BROADCAST = Probe.find("broadcast", void.class, Object.class, byte[].class);
+
+    /**
+     * The number of users in the chat room besides the sender.
+     */
+    @Param({ "10", "100", "1000", "10000" })
+    public int receivers;
+
+    /**
+     * The share of the receivers who have blocked the sender.
+     */
+    @Param({ "0", "0.01", "0.5" })
+    public double blockDensity;
+
+    /**
+     * The ThreadHandler of the sender.
+     */
+    private Object sender;
+
+    /**
+     * The message, not encrypted.
+     */
+    private byte[] message;
+
+    @Setup
+    public void setUp() throws Throwable {
+	SET_UP.invokeExact();
+	sender = (Object) JOIN.invokeExact("sender");
+	int blocked = (int) Math.round(receivers * blockDensity);
+	for (int i = 0; i < receivers; i++) {
+	    Object receiver = (Object) JOIN.invokeExact("user" + i);
+	    // Spreads the blocks evenly over the session IDs
+	    if ((long) i * blocked / receivers != (long) (i + 1) * blocked / receivers) {
+		PROCESS_COMMAND.invokeExact(receiver, "-block sender");
+	    }
+	}
+	message = "Hello everyone, how is it going?".getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public void broadcast() throws Throwable {
+	BROADCAST.invokeExact(sender, message);
+    }
+}
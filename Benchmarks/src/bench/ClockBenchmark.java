@@ -0,0 +1,48 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * ****************************
+ * Filename: ClockBenchmark.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * Measures {@code Server.getCurrentTime()}, which starts every message and
+ * every line the server prints, against the original version which created
+ * and used a new SimpleDateFormat every time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClockBenchmark {
+
+    // The entry points into the server, see Probes
+    private static final MethodHandle CURRENT_TIME = Probe.find("currentTime", String.class);
+    private static final MethodHandle LEGACY_CURRENT_TIME = Probe.find("legacyCurrentTime", String.class);
+
+    @Benchmark
+    public String currentTime() throws Throwable {
+	return (String) CURRENT_TIME.invokeExact();
+    }
+
+    @Benchmark
+    public String currentTimeLegacy() throws Throwable {
+	return (String) LEGACY_CURRENT_TIME.invokeExact();
+    }
+}
@@ -0,0 +1,76 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * ****************************
+ * Filename: CommandBenchmark.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * Measures {@code ThreadHandler.processCommand}: finding the command and
+ * answering it, in a chat room of 100 users.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+
+    // The entry points into the server, see Probes
+    private static final MethodHandle SET_UP = Probe.find("setUp", void.class);
+    private static final MethodHandle JOIN = Probe.find("join", Object.class, String.class);
+    private static final MethodHandle PROCESS_COMMAND = Probe.find("processCommand", void.class, Object.class, String.class);
+
+    /**
+     * The number of users in the chat room besides the one sending the
+     * commands.
+     */
+    private static final int USERS = 100;
+
+    /**
+     * The command: simple ones, ones which look up another user, a long
+     * answer ({@code -h}) and one which is not recognised.
+     */
+    @Param({ "-num", "-ct", "-h", "-unblock user50", "-private user50: hi", "-nonsense" })
+    public String command;
+
+    /**
+     * The ThreadHandler of the user sending the commands.
+     */
+    private Object user;
+
+    @Setup
+    public void setUp() throws Throwable {
+	SET_UP.invokeExact();
+	for (int i = 0; i < USERS; i++) {
+	    // The exact return type has to be given, even if it is not used
+	    Object other = (Object) JOIN.invokeExact("user" + i);
+	}
+	user = (Object) JOIN.invokeExact("me");
+    }
+
+    @Benchmark
+    public void processCommand() throws Throwable {
+	PROCESS_COMMAND.invokeExact(user, command);
+    }
+}
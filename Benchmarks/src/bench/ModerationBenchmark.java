@@ -0,0 +1,127 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * ****************************
+ * Filename: ModerationBenchmark.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Measures looking for banned terms in a chat message, with the automaton of
+ * the {@code Moderator} and the naive way, one term after another.
+ * </p>
+ * The terms are made-up words of 4 to 10 letters, and the message is made of
+ * other made-up words, so that no term is found and the whole message has to
+ * be looked at, which is what happens to almost every message. The naive way
+ * costs the number of terms; the automaton should cost the same whatever the
+ * number of terms, apart from the table growing out of the caches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModerationBenchmark {
+
+    // The entry points into the server, see Probes
+    private static final MethodHandle COMPILE = Probe.find("compileTerms", Object.class, String[].class);
+    private static final MethodHandle MODERATE = Probe.find("moderate", boolean.class, Object.class, byte[].class);
+    private static final MethodHandle NAIVE = Probe.find("moderateNaive", boolean.class, String[].class,
+	    String.class);
+
+    /**
+     * The number of banned terms.
+     */
+    @Param({ "100", "1000", "10000", "100000" })
+    public int terms;
+
+    /**
+     * The number of characters in the message.
+     */
+    @Param({ "64", "1024" })
+    public int length;
+
+    /**
+     * The banned terms.
+     */
+    private String[] words;
+
+    /**
+     * The compiled terms.
+     */
+    private Object dictionary;
+
+    /**
+     * The message.
+     */
+    private String message;
+
+    /**
+     * The UTF-8 bytes of the message.
+     */
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() throws Throwable {
+	Random random = new Random(42);
+	Set<String> set = new LinkedHashSet<String>();
+	while (set.size() < terms) set.add(word(random));
+	words = set.toArray(new String[0]);
+	dictionary = COMPILE.invokeExact(words);
+	StringBuilder sb = new StringBuilder(length + 16);
+	while (sb.length() < length) {
+	    String word = word(random);
+	    if (!set.contains(word)) sb.append(word).append(' ');
+	}
+	sb.setLength(length);
+	message = sb.toString();
+	bytes = message.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Makes up a word.
+     *
+     * @param random
+     *            the source of the letters
+     * @return a word of 4 to 10 lower-case letters
+     */
+    private static String word(Random random) {
+	char[] letters = new char[4 + random.nextInt(7)];
+	for (int i = 0; i < letters.length; i++) letters[i] = (char) ('a' + random.nextInt(26));
+	return new String(letters);
+    }
+
+    @Benchmark
+    public boolean automaton() throws Throwable {
+	return (boolean) MODERATE.invokeExact(dictionary, bytes);
+    }
+
+    @Benchmark
+    public boolean naive() throws Throwable {
+	return (boolean) NAIVE.invokeExact(words, message);
+    }
+}
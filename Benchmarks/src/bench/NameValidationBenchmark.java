@@ -0,0 +1,102 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * ****************************
+ * Filename: NameValidationBenchmark.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Measures a client entering a user name, from the greeting to the feedback.
+ * </p>
+ * <ul>
+ * <li>{@code validName}: the name is free, so the client enters the chat room
+ * (which is announced to everybody) and then leaves again (which is announced
+ * too), so that the chat room stays the same size.</li>
+ * <li>{@code takenName}: the name is in use, so the client is asked to try
+ * again.</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NameValidationBenchmark {
+
+    // The entry points into the server, see Probes
+    private static final MethodHandle SET_UP = Probe.find("setUp", void.class);
+    private static final MethodHandle CONNECT = Probe.find("connect", Object.class);
+    private static final MethodHandle JOIN = Probe.find("join", Object.class, String.class);
+    private static final MethodHandle SEND = Probe.find("send", void.class, Object.class, byte[].class);
+    private static final MethodHandle LEAVE = Probe.find("leave", void.class, Object.class);
+    private static final MethodHandle ENCODE = Probe.find("xorEncode", byte[].class, String.class);
+
+    /**
+     * The number of users already in the chat room.
+     */
+    @Param({ "10", "1000" })
+    public int users;
+
+    /**
+     * The encrypted name which is free.
+     */
+    private byte[] freeName;
+
+    /**
+     * The encrypted name which is in use.
+     */
+    private byte[] takenName;
+
+    /**
+     * The line handed to the ThreadHandler, which decrypts it in place.
+     */
+    private byte[] line;
+
+    @Setup
+    public void setUp() throws Throwable {
+	SET_UP.invokeExact();
+	for (int i = 0; i < users; i++) {
+	    // The exact return type has to be given, even if it is not used
+	    Object user = (Object) JOIN.invokeExact("user" + i);
+	}
+	freeName = (byte[]) ENCODE.invokeExact("newcomer");
+	takenName = (byte[]) ENCODE.invokeExact("user0");
+    }
+
+    @Benchmark
+    public void validName() throws Throwable {
+	Object client = (Object) CONNECT.invokeExact();
+	line = freeName.clone();
+	SEND.invokeExact(client, line);
+	LEAVE.invokeExact(client);
+    }
+
+    @Benchmark
+    public void takenName() throws Throwable {
+	Object client = (Object) CONNECT.invokeExact();
+	line = takenName.clone();
+	SEND.invokeExact(client, line);
+	LEAVE.invokeExact(client);
+    }
+}
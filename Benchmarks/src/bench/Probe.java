@@ -0,0 +1,47 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/*
+ * ****************************
+ * Filename: Probe.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * Looks up the entry points of the benchmarks into the server, which are the
+ * static methods of the class {@code Probes} in the default package.
+ */
+final class Probe {
+
+    /**
+     * Probe only has static methods.
+     */
+    private Probe() {
+    }
+
+    /**
+     * Finds a static method of {@code Probes}.
+     *
+     * @param name
+     *            the name of the method
+     * @param returnType
+     *            the return type of the method
+     * @param parameterTypes
+     *            the parameter types of the method
+     * @return a method handle, to be kept in a {@code static final} field
+     */
+    static MethodHandle find(String name, Class<?> returnType, Class<?>... parameterTypes) {
+	try {
+	    return MethodHandles.publicLookup().findStatic(Class.forName("Probes"), name,
+		    MethodType.methodType(returnType, parameterTypes));
+	} catch (ReflectiveOperationException e) {
+	    throw new IllegalStateException("Cannot find Probes." + name, e);
+	}
+    }
+}
@@ -0,0 +1,48 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * ****************************
+ * Filename: Run.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Runs the benchmarks with the GC profiler, so that every result comes with
+ * its allocation rate ({@code gc.alloc.rate.norm} is the number of bytes
+ * allocated per operation).
+ * </p>
+ * The command-line arguments are the same as those of JMH, for example
+ * {@code java -jar benchmarks.jar Broadcast -p receivers=1000}.
+ */
+public final class Run {
+
+    /**
+     * Run only has a main method.
+     */
+    private Run() {
+    }
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args
+     *            JMH command-line arguments
+     * @throws Exception
+     *             if the arguments are invalid or a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+	new Runner(new OptionsBuilder()
+		.parent(new CommandLineOptions(args))
+		.addProfiler(GCProfiler.class)
+		.build()).run();
+    }
+}
@@ -0,0 +1,109 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * ****************************
+ * Filename: XorCodecBenchmark.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Measures the XOR Cipher on the way in (decoding a received line) and on the
+ * way out (encoding a message to be sent).
+ * </p>
+ * The {@code legacy} benchmarks do the same work the way the server did with
+ * Server.encode(String): a String is made from the bytes, copied into a char
+ * array, XOR-ed and made into another String. With {@code -prof gc} they show
+ * the garbage which {@code XorCodec} does not make.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XorCodecBenchmark {
+
+    // The entry points into the server, see Probes
+    private static final MethodHandle APPLY = Probe.find("xorApply", void.class, byte[].class);
+    private static final MethodHandle ENCODE = Probe.find("xorEncode", byte[].class, String.class);
+    private static final MethodHandle LEGACY_DECODE = Probe.find("legacyDecode", String.class, byte[].class);
+    private static final MethodHandle LEGACY_ENCODE = Probe.find("legacyEncodeBytes", byte[].class, String.class);
+
+    /**
+     * The number of characters in the message.
+     */
+    @Param({ "16", "256", "4096" })
+    public int length;
+
+    /**
+     * {@code ascii}, or {@code mixed} for a message with two-byte,
+     * three-byte and four-byte UTF-8 characters as well.
+     */
+    @Param({ "ascii", "mixed" })
+    public String text;
+
+    /**
+     * The message.
+     */
+    private String message;
+
+    /**
+     * The encrypted UTF-8 bytes of the message.
+     */
+    private byte[] encrypted;
+
+    @Setup
+    public void setUp() throws Throwable {
+	String alphabet = text.equals("ascii") ? "Hello, world! " : "Hello, 世界 é 😀 ";
+	StringBuilder sb = new StringBuilder(length);
+	while (sb.length() < length) sb.append(alphabet);
+	sb.setLength(length);
+	if (Character.isHighSurrogate(sb.charAt(length - 1))) sb.setCharAt(length - 1, ' ');
+	message = sb.toString();
+	encrypted = (byte[]) ENCODE.invokeExact(message);
+    }
+
+    /**
+     * Decodes a line in place. Applying the cipher twice gives back the
+     * original bytes, so the same array can be used every time.
+     */
+    @Benchmark
+    public byte[] decode() throws Throwable {
+	APPLY.invokeExact(encrypted);
+	return encrypted;
+    }
+
+    @Benchmark
+    public String decodeLegacy() throws Throwable {
+	return (String) LEGACY_DECODE.invokeExact(encrypted);
+    }
+
+    @Benchmark
+    public byte[] encode() throws Throwable {
+	return (byte[]) ENCODE.invokeExact(message);
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy() throws Throwable {
+	return (byte[]) LEGACY_ENCODE.invokeExact(message);
+    }
+}
@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class BroadcastBenchmark_jmhType extends BroadcastBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class ClockBenchmark_jmhType extends ClockBenchmark_jmhType_B3 {
+}
+
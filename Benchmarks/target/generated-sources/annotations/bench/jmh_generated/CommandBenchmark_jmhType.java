@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class CommandBenchmark_jmhType extends CommandBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class ModerationBenchmark_jmhType extends ModerationBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class NameValidationBenchmark_jmhType extends NameValidationBenchmark_jmhType_B3 {
+}
+
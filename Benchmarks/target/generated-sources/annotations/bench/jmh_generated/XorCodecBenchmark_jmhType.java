@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class XorCodecBenchmark_jmhType extends XorCodecBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,326 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/*
+ * ****************************
+ * Filename: JournalTest.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Checks that the {@link Journal} gives back the chat messages of the lobby
+ * when the server starts again, and that a record which was not written
+ * completely (the server was killed) or was damaged afterwards ends the
+ * replay at the last good record, which the next message is written over.
+ * </p>
+ * Every test writes with one Journal, closes it as the server would when it
+ * stops, and then starts another on the same directory with an empty
+ * {@link History}.
+ */
+public class JournalTest {
+
+    /**
+     * The number of bytes before the body of a record: the length and the
+     * checksum.
+     */
+    private static final int RECORD_HEADER = 8;
+
+    /**
+     * The number of bytes at the start of the body: the type, the time and
+     * the length of the target.
+     */
+    private static final int BODY_HEADER = 13;
+
+    /**
+     * The directory of the segment files, new for every test.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Creates a Journal on the directory of the test.
+     *
+     * @param options
+     *            more options, such as the retention
+     * @return the Journal, not started yet
+     */
+    private Journal journal(String... options) {
+	List<String> args = new ArrayList<String>();
+	args.add("--journal=" + folder.getRoot());
+	args.add("--journal-fsync=always");
+	args.addAll(Arrays.asList(options));
+	return new Journal(new Options(args.toArray(new String[0])));
+    }
+
+    /**
+     * Starts a Journal as the server does.
+     *
+     * @param journal
+     *            the Journal
+     * @param capacity
+     *            the number of messages the History of the lobby keeps
+     * @return the History, with the messages recovered
+     * @throws IOException
+     *             if the segment files cannot be read
+     */
+    private static History start(Journal journal, int capacity) throws IOException {
+	History history = new History(new Options(new String[] { "--history=" + capacity }));
+	journal.start(history);
+	return history;
+    }
+
+    /**
+     * Journals chat messages to the lobby and stops.
+     *
+     * @param messages
+     *            the messages
+     * @throws IOException
+     *             if the segment files cannot be read
+     */
+    private void write(String... messages) throws IOException {
+	Journal journal = journal();
+	start(journal, 50);
+	for (String message : messages) {
+	    journal.append(Journal.CHAT, Frame.of(message), null);
+	}
+	journal.close();
+    }
+
+    /**
+     * Starts the server again and gets the messages replayed to a user
+     * entering the lobby.
+     *
+     * @param journal
+     *            a new Journal on the directory
+     * @param capacity
+     *            the number of messages the History keeps
+     * @return the messages, decrypted, oldest first
+     * @throws IOException
+     *             if the segment files cannot be read
+     */
+    private static List<String> restart(Journal journal, int capacity) throws IOException {
+	History history = start(journal, capacity);
+	SessionRegistry sessions = new SessionRegistry(history);
+	Session joiner = sessions.register("reader", null);
+	Frame[] replay = history.replay(joiner, sessions, Frame.of("header"));
+	List<String> messages = new ArrayList<String>();
+	for (int i = 1; i < replay.length; i++) {
+	    ByteBuffer payload = replay[i].payload();
+	    byte[] bytes = new byte[payload.remaining()];
+	    payload.get(bytes);
+	    XorCodec.apply(bytes, 0, bytes.length);
+	    messages.add(XorCodec.toString(bytes, 0, bytes.length));
+	}
+	assertEquals(messages.size(), journal.recovered());
+	return messages;
+    }
+
+    /**
+     * Gets the only segment file.
+     *
+     * @return the file
+     */
+    private File segment() {
+	File[] files = folder.getRoot().listFiles();
+	assertEquals(1, files.length);
+	return files[0];
+    }
+
+    /**
+     * Finds where the last record of a segment starts.
+     *
+     * @param segment
+     *            the segment file
+     * @return the index of its length
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    private static int lastRecord(File segment) throws IOException {
+	try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+	    ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+	    channel.read(buffer, 0);
+	    int last = -1;
+	    for (int start = 0; buffer.getInt(start) != 0; start += RECORD_HEADER + buffer.getInt(start)) {
+		last = start;
+	    }
+	    return last;
+	}
+    }
+
+    /**
+     * Writes an int into a segment file.
+     *
+     * @param segment
+     *            the segment file
+     * @param index
+     *            where to write it
+     * @param value
+     *            the int
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    private static void putInt(File segment, int index, int value) throws IOException {
+	try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+	    ByteBuffer buffer = ByteBuffer.allocate(4);
+	    buffer.putInt(0, value);
+	    channel.write(buffer, index);
+	}
+    }
+
+    /**
+     * The chat messages come back in order.
+     *
+     * @throws IOException
+     *             if the segment files cannot be read
+     */
+    @Test
+    public void replaysTheLobby() throws IOException {
+	write("one", "two", "three");
+	assertEquals(Arrays.asList("one", "two", "three"), restart(journal(), 50));
+    }
+
+    /**
+     * Only the chat messages of the lobby are put back into its History,
+     * not those of other rooms, the private messages or the notifications.
+     *
+     * @throws IOException
+     *             if the segment files cannot be read
+     */
+    @Test
+    public void onlyTheLobbyChat() throws IOException {
+	Journal journal = journal();
+	start(journal, 50);
+	journal.append(Journal.CHAT, Frame.of("lobby"), null);
+	journal.append(Journal.CHAT, Frame.of("room"), "work");
+	journal.append(Journal.PRIVATE, Frame.of("private"), "bob");
+	journal.append(Journal.NOTICE, Frame.of("notice"), null);
+	journal.close();
+	assertEquals(Arrays.asList("lobby"), restart(journal(), 50));
+    }
+
+    /**
+     * No more messages are put back than the History keeps: the newest.
+     *
+     * @throws IOException
+     *             if the segment files cannot be read
+     */
+    @Test
+    public void asManyAsTheHistoryKeeps() throws IOException {
+	write("1", "2", "3", "4", "5", "6");
+	assertEquals(Arrays.asList("3", "4", "5", "6"), restart(journal(), 4));
+    }
+
+    /**
+     * A record whose checksum does not match ends the replay, and the next
+     * message is written over it.
+     *
+     * @throws IOException
+     *             if the segment files cannot be read or written
+     */
+    @Test
+    public void corruptRecord() throws IOException {
+	write("one", "two", "three");
+	File segment = segment();
+	int last = lastRecord(segment);
+	// Turns "three" into "threy", which is still a chat message to the
+	// lobby: only the checksum tells
+	byte[] y = XorCodec.encode("y");
+	try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+	    channel.write(ByteBuffer.wrap(y), last + RECORD_HEADER + BODY_HEADER + 4);
+	}
+	assertEquals(Arrays.asList("one", "two"), restart(journal(), 50));
+
+	Journal journal = journal();
+	start(journal, 50);
+	journal.append(Journal.CHAT, Frame.of("four"), null);
+	journal.close();
+	assertEquals(Arrays.asList("one", "two", "four"), restart(journal(), 50));
+    }
+
+    /**
+     * The length of a record is written last, so a record torn before it
+     * reads as the end of the segment.
+     *
+     * @throws IOException
+     *             if the segment files cannot be read or written
+     */
+    @Test
+    public void tornRecord() throws IOException {
+	write("one", "two", "three");
+	File segment = segment();
+	putInt(segment, lastRecord(segment), 0);
+	assertEquals(Arrays.asList("one", "two"), restart(journal(), 50));
+
+	Journal journal = journal();
+	start(journal, 50);
+	journal.append(Journal.CHAT, Frame.of("four"), null);
+	journal.close();
+	assertEquals(Arrays.asList("one", "two", "four"), restart(journal(), 50));
+    }
+
+    /**
+     * A segment which ends in the middle of its last record, such as one
+     * copied while it was being written, ends the replay at the record
+     * before.
+     *
+     * @throws IOException
+     *             if the segment files cannot be read or written
+     */
+    @Test
+    public void truncatedSegment() throws IOException {
+	write("one", "two", "three");
+	File segment = segment();
+	int last = lastRecord(segment);
+	try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+	    channel.truncate(last + RECORD_HEADER + 4);
+	}
+	assertEquals(Arrays.asList("one", "two"), restart(journal(), 50));
+    }
+
+    /**
+     * Only as many segment files are kept as the retention, and the
+     * messages in them are still replayed after the oldest are deleted.
+     *
+     * @throws IOException
+     *             if the segment files cannot be read
+     */
+    @Test
+    public void retention() throws IOException {
+	Journal journal = journal("--journal-segment-mb=1", "--journal-segments=2");
+	start(journal, 1000);
+	char[] filler = new char[60000];
+	Arrays.fill(filler, 'x');
+	int count = 80;
+	for (int i = 0; i < count; i++) {
+	    journal.append(Journal.CHAT, Frame.of(i + " " + new String(filler)), null);
+	}
+	journal.close();
+	File[] files = folder.getRoot().listFiles();
+	assertEquals(2, files.length);
+
+	List<String> messages = restart(journal("--journal-segment-mb=1", "--journal-segments=2"), 1000);
+	// About 17 messages fit in a segment
+	assertTrue(messages.size() > 17 && messages.size() < 40);
+	for (int i = 0; i < messages.size(); i++) {
+	    int number = count - messages.size() + i;
+	    assertEquals(number + " " + new String(filler), messages.get(i));
+	}
+    }
+}
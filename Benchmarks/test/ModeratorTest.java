@@ -0,0 +1,211 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/*
+ * ****************************
+ * Filename: ModeratorTest.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * Checks the terms found and masked by the {@link Moderator}: whole words
+ * only, without regard to the case of the ASCII letters, with the spans of
+ * overlapping terms merged.
+ */
+public class ModeratorTest {
+
+    /**
+     * Masks a message.
+     *
+     * @param dictionary
+     *            the terms
+     * @param message
+     *            the message
+     * @return the masked message
+     */
+    private static String mask(Moderator.Dictionary dictionary, String message) {
+	byte[] bytes = message.getBytes(XorCodec.UTF_8);
+	int length = dictionary.mask(bytes, 0, bytes.length);
+	return new String(bytes, 0, length, XorCodec.UTF_8);
+    }
+
+    /**
+     * Finds the spans of the terms in a message.
+     *
+     * @param dictionary
+     *            the terms
+     * @param message
+     *            the message, in ASCII
+     * @return the first and the last index of every span
+     */
+    private static int[] spans(Moderator.Dictionary dictionary, String message) {
+	byte[] bytes = message.getBytes(XorCodec.UTF_8);
+	Moderator.IntList spans = new Moderator.IntList();
+	int found = dictionary.find(bytes, 0, bytes.length, spans);
+	int[] array = new int[spans.size()];
+	for (int i = 0; i < array.length; i++) {
+	    array[i] = spans.get(i);
+	}
+	assertEquals(array.length / 2, found);
+	return array;
+    }
+
+    /**
+     * Compiles some terms.
+     *
+     * @param terms
+     *            the terms
+     * @return the automaton
+     */
+    private static Moderator.Dictionary compile(String... terms) {
+	return Moderator.Dictionary.compile(Arrays.asList(terms));
+    }
+
+    /**
+     * A term at the start, at the end, and as the whole message.
+     */
+    @Test
+    public void startAndEnd() {
+	Moderator.Dictionary dictionary = compile("bad");
+	assertEquals("*** day", mask(dictionary, "bad day"));
+	assertEquals("so ***", mask(dictionary, "so bad"));
+	assertEquals("***", mask(dictionary, "bad"));
+	assertEquals("***, ***!", mask(dictionary, "bad, bad!"));
+	assertEquals("good day", mask(dictionary, "good day"));
+    }
+
+    /**
+     * A term only matches whole words, so "ass" is not found in "class".
+     */
+    @Test
+    public void wholeWords() {
+	Moderator.Dictionary dictionary = compile("ass");
+	assertEquals("class", mask(dictionary, "class"));
+	assertEquals("passing", mask(dictionary, "passing"));
+	assertEquals("assess", mask(dictionary, "assess"));
+	assertEquals("a class of ***.", mask(dictionary, "a class of ass."));
+	assertEquals("***-class", mask(dictionary, "ass-class"));
+	assertEquals("ass1", mask(dictionary, "ass1"));
+    }
+
+    /**
+     * The case of the ASCII letters does not matter, in the terms or in the
+     * message.
+     */
+    @Test
+    public void mixedCase() {
+	Moderator.Dictionary dictionary = compile("BaD Word");
+	assertEquals("a ******** here", mask(dictionary, "a bad word here"));
+	assertEquals("a ******** here", mask(dictionary, "a BAD WORD here"));
+	assertEquals("a ******** here", mask(dictionary, "a bAd wOrD here"));
+	assertEquals("a bad-word here", mask(dictionary, "a bad-word here"));
+    }
+
+    /**
+     * A term of characters outside ASCII is masked with one '*' for every
+     * character, not every byte. Only the ASCII letters are folded, and the
+     * other characters are no word boundary.
+     */
+    @Test
+    public void nonAsciiTerms() {
+	Moderator.Dictionary dictionary = compile("café", "坏蛋");
+	assertEquals("un ****!", mask(dictionary, "un café!"));
+	assertEquals("un ****", mask(dictionary, "un CAFé"));
+	assertEquals("un CAFÉ", mask(dictionary, "un CAFÉ"));
+	assertEquals("xcafé", mask(dictionary, "xcafé"));
+	assertEquals("你是**吗", mask(dictionary, "你是坏蛋吗"));
+	assertEquals("**😀**", mask(dictionary, "坏蛋😀坏蛋"));
+    }
+
+    /**
+     * Overlapping terms are masked as one span.
+     */
+    @Test
+    public void overlappingTerms() {
+	Moderator.Dictionary dictionary = compile("x-y", "y-z");
+	assertArrayEquals(new int[] { 0, 4 }, spans(dictionary, "x-y-z"));
+	assertEquals("***** and *****", mask(dictionary, "x-y-z and x-y-z"));
+    }
+
+    /**
+     * A term which starts before the spans found so far and covers them
+     * takes their place (the spans popped in
+     * {@link Moderator.Dictionary#find(byte[], int, int, Moderator.IntList)}).
+     */
+    @Test
+    public void longerTermCoversShorterOnes() {
+	Moderator.Dictionary dictionary = compile("foo", "bar", "x foo bar");
+	assertArrayEquals(new int[] { 2, 4, 6, 8 }, spans(dictionary, "a foo bar"));
+	assertArrayEquals(new int[] { 0, 8 }, spans(dictionary, "x foo bar"));
+	assertEquals("********* y ***", mask(dictionary, "x foo bar y foo"));
+    }
+
+    /**
+     * Terms right next to each other are one span, while terms with anything
+     * between them are two.
+     */
+    @Test
+    public void adjacentTerms() {
+	Moderator.Dictionary dictionary = compile("foo!", "?bar");
+	assertArrayEquals(new int[] { 0, 7 }, spans(dictionary, "foo!?bar"));
+	assertArrayEquals(new int[] { 0, 3, 5, 8 }, spans(dictionary, "foo! ?bar"));
+    }
+
+    /**
+     * A term found only in part of an array, from an offset, as the server
+     * masks a message after its prefix.
+     */
+    @Test
+    public void offset() {
+	Moderator.Dictionary dictionary = compile("bad");
+	byte[] bytes = "[alice] so bad!".getBytes(XorCodec.UTF_8);
+	assertEquals(bytes.length, dictionary.mask(bytes, 8, bytes.length - 8) + 8);
+	assertEquals("[alice] so ***!", new String(bytes, XorCodec.UTF_8));
+    }
+
+    /**
+     * An empty list of terms, or an empty file of terms, filters nothing.
+     *
+     * @throws Exception
+     *             if the file cannot be written
+     */
+    @Test
+    public void emptyTermFile() throws Exception {
+	Moderator.Dictionary dictionary = compile();
+	assertEquals(0, dictionary.size());
+	assertEquals("anything at all", mask(dictionary, "anything at all"));
+
+	Path file = Files.createTempFile("terms", ".txt");
+	try {
+	    Moderator.configure(new Options(new String[] { "--moderation-file=" + file, "--moderation-reload=0" }));
+	    assertTrue(Moderator.enabled());
+	    byte[] bytes = "anything at all".getBytes(XorCodec.UTF_8);
+	    assertFalse(Moderator.matches(bytes, 0, bytes.length));
+	    assertEquals(bytes.length, Moderator.mask(bytes, 0, bytes.length));
+	} finally {
+	    Files.delete(file);
+	}
+    }
+
+    /**
+     * Checks two arrays of spans.
+     *
+     * @param expected
+     *            the expected spans
+     * @param actual
+     *            the spans found
+     */
+    private static void assertArrayEquals(int[] expected, int[] actual) {
+	assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+    }
+}
@@ -0,0 +1,176 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * ****************************
+ * Filename: XorCodecTest.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Checks that {@link XorCodec} gives exactly the bytes of the XOR Cipher the
+ * server used before it, which XOR-ed every character of the message and then
+ * encoded it into UTF-8 (see {@link Probes#legacyEncodeBytes(String)} and
+ * {@link Probes#legacyDecode(byte[])}), so that the old clients keep
+ * understanding the server.
+ * </p>
+ * Every message is checked both ways: encrypted by
+ * {@link XorCodec#encode(CharSequence)} and by
+ * {@link XorCodec#apply(byte[], int, int)} on its plain UTF-8 bytes, and
+ * decrypted by {@link XorCodec#apply(byte[], int, int)}.
+ */
+public class XorCodecTest {
+
+    /**
+     * Checks one message against the old cipher.
+     *
+     * @param message
+     *            the original message
+     */
+    private static void assertLegacy(String message) {
+	byte[] applied = message.getBytes(XorCodec.UTF_8);
+	XorCodec.apply(applied, 0, applied.length);
+	assertArrayEquals("apply to encrypt", Probes.legacyEncodeBytes(message), applied);
+	assertEncodeLegacy(message);
+    }
+
+    /**
+     * Checks one message against the old cipher, encrypted by
+     * {@link XorCodec#encode(CharSequence)} only.
+     *
+     * @param message
+     *            the original message
+     */
+    private static void assertEncodeLegacy(String message) {
+	byte[] legacy = Probes.legacyEncodeBytes(message);
+	assertArrayEquals("encode", legacy, XorCodec.encode(message));
+
+	byte[] decoded = legacy.clone();
+	XorCodec.apply(decoded, 0, decoded.length);
+	assertEquals("apply to decrypt", Probes.legacyDecode(legacy),
+		XorCodec.toString(decoded, 0, decoded.length));
+    }
+
+    /**
+     * Every ASCII character, including the control characters.
+     */
+    @Test
+    public void ascii() {
+	StringBuilder all = new StringBuilder();
+	for (char c = 0; c < 0x80; c++) {
+	    assertLegacy(String.valueOf(c));
+	    all.append(c);
+	}
+	assertLegacy(all.toString());
+	assertLegacy("[12:00:00] alice: hello, world!");
+	assertLegacy("");
+    }
+
+    /**
+     * Every character of the Basic Multilingual Plane outside the surrogates,
+     * which takes two or three bytes in UTF-8.
+     */
+    @Test
+    public void basicMultilingualPlane() {
+	StringBuilder all = new StringBuilder();
+	for (int c = 0x80; c <= 0xFFFF; c++) {
+	    if (Character.isSurrogate((char) c)) continue;
+	    all.append((char) c);
+	}
+	assertLegacy(all.toString());
+	// The first and the last character of each length, and their
+	// neighbours
+	for (int c : new int[] { 0x7F, 0x80, 0x7FF, 0x800, 0xD7FF, 0xE000, 0xFFFD, 0xFFFF }) {
+	    assertLegacy(String.valueOf((char) c));
+	}
+	assertLegacy("café 你好 مرحبا");
+    }
+
+    /**
+     * Every character outside the Basic Multilingual Plane, a pair of
+     * surrogates which takes four bytes in UTF-8.
+     */
+    @Test
+    public void surrogatePairs() {
+	StringBuilder all = new StringBuilder();
+	for (int cp = 0x10000; cp <= Character.MAX_CODE_POINT; cp++) {
+	    all.appendCodePoint(cp);
+	}
+	assertLegacy(all.toString());
+	assertLegacy("smile 😀, thumbs up 👍");
+    }
+
+    /**
+     * The second byte of a 4-byte sequence is XOR-ed with a code of its own,
+     * as the code applied to the high surrogate moves into bits 12 and 14 of
+     * the code point. Checks the code points where those bits, and the bits
+     * next to them, are all set or all clear.
+     */
+    @Test
+    public void highSurrogateCode() {
+	int[] edges = { 0x10000, 0x10FFF, 0x11000, 0x14000, 0x15000, 0x1F000, 0x1FFFF, 0x20000, 0x3F000, 0x40000,
+		0xFFFFF, 0x100000, 0x10AFFF, 0x10F000, 0x10FFFF };
+	for (int cp : edges) {
+	    // Also next to other lengths, so that the sequence is found
+	    // wherever it is
+	    assertLegacy(new String(Character.toChars(cp)));
+	    assertLegacy("a" + new String(Character.toChars(cp)) + "é你");
+	}
+	// Every high surrogate with the lowest and the highest low surrogate
+	for (char high = Character.MIN_HIGH_SURROGATE; high <= Character.MAX_HIGH_SURROGATE; high++) {
+	    assertLegacy(new String(new char[] { high, Character.MIN_LOW_SURROGATE }));
+	    assertLegacy(new String(new char[] { high, Character.MAX_LOW_SURROGATE }));
+	}
+    }
+
+    /**
+     * A lone surrogate is written as '?' by the old cipher, after the
+     * encryption. It has no UTF-8 bytes to apply the code to, and the server
+     * only applies it to the bytes of a message read from a client, so only
+     * {@link XorCodec#encode(CharSequence)} is checked.
+     */
+    @Test
+    public void loneSurrogates() {
+	assertEncodeLegacy("\ud83d");
+	assertEncodeLegacy("\ude00");
+	assertEncodeLegacy("a\ud83db");
+	assertEncodeLegacy("\ude00\ud83d");
+	assertEncodeLegacy("end\ud83d");
+    }
+
+    /**
+     * Messages of random characters from every range.
+     */
+    @Test
+    public void random() {
+	Random random = new Random(20);
+	for (int n = 0; n < 10000; n++) {
+	    StringBuilder message = new StringBuilder();
+	    int length = random.nextInt(40);
+	    for (int i = 0; i < length; i++) {
+		switch (random.nextInt(4)) {
+		case 0:
+		    message.append((char) random.nextInt(0x80));
+		    break;
+		case 1:
+		    message.append((char) (0x80 + random.nextInt(0x780)));
+		    break;
+		case 2:
+		    message.append((char) (0x800 + random.nextInt(0xD000)));
+		    break;
+		default:
+		    message.appendCodePoint(0x10000 + random.nextInt(Character.MAX_CODE_POINT - 0xFFFF));
+		}
+	    }
+	    assertLegacy(message.toString());
+	}
+    }
+}
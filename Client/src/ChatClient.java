@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * ****************************
+ * Filename: ChatClient.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * A ChatClient connects any number of {@link ChatSession}s to chat servers and
+ * serves all of them with a small fixed set of I/O threads.
+ * </p>
+ * <p>
+ * Each I/O thread waits on its own {@link Selector} and owns the sessions it
+ * has been given: it connects them, reads from them without blocking, splits
+ * the input into frames and passes them to the {@link ChatListener} of the
+ * session, and writes what the session has to send. Nothing else ever blocks
+ * on a session, so one program can keep hundreds of them, for example bots,
+ * integration services or the {@link LoadGenerator}.
+ * </p>
+ * <p>
+ * With a heartbeat, a session which has heard nothing from the server for
+ * that long sends a {@link Protocol#PING}, and one which has heard nothing for
+ * twice as long is closed, so a server which has gone away without closing
+ * the connection is found out. The checks of all the sessions run on one
+ * {@link TimingWheel}.
+ * </p>
+ *
+ * <pre>
+ * ChatClient client = new ChatClient(2);
+ * ChatSession session = client.connect("localhost", 12345, listener).get();
+ * if (session.enter("bot").get()) {
+ *     session.send("Hello everyone");
+ * }
+ * </pre>
+ */
+public class ChatClient {
+
+    /**
+     * The I/O threads.
+     */
+    private final IoLoop[] loops;
+
+    /**
+     * The wheel the heartbeats of the sessions run on, or <tt>null</tt>.
+     */
+    private final TimingWheel wheel;
+
+    /**
+     * The I/O thread that will be given the next session.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates a new ChatClient and starts its I/O threads.
+     *
+     * @param ioThreads
+     *            the number of I/O threads
+     * @throws IOException
+     *             if a selector cannot be opened
+     */
+    public ChatClient(int ioThreads) throws IOException {
+	this(ioThreads, 0);
+    }
+
+    /**
+     * Creates a new ChatClient with a heartbeat and starts its I/O threads.
+     *
+     * @param ioThreads
+     *            the number of I/O threads
+     * @param heartbeatSeconds
+     *            how many seconds a session may hear nothing from the server
+     *            before it pings the server, or 0 for no heartbeat
+     * @throws IOException
+     *             if a selector cannot be opened
+     */
+    public ChatClient(int ioThreads, long heartbeatSeconds) throws IOException {
+	// Ticks of 100 ms, 512 buckets to a turn of 51.2 s
+	wheel = heartbeatSeconds > 0 ? new TimingWheel("chat-heartbeat", 100, TimeUnit.MILLISECONDS, 512) : null;
+	loops = new IoLoop[Math.max(1, ioThreads)];
+	for (int i = 0; i < loops.length; i++) {
+	    loops[i] = new IoLoop(i, wheel, TimeUnit.SECONDS.toNanos(heartbeatSeconds));
+	    loops[i].start();
+	}
+    }
+
+    /**
+     * <p>
+     * Connects a new session to a server.
+     * </p>
+     * The session says HELLO to the server as soon as it is connected; the
+     * server then greets it and asks for a user name, which is given with
+     * {@link ChatSession#enter(String)}.
+     *
+     * @param host
+     *            the IP address or host name of the server
+     * @param port
+     *            the port number of the server
+     * @param listener
+     *            receives the messages and events of the session
+     * @return a future of the session, completed once the connection has been
+     *         built, or exceptionally if it cannot be
+     */
+    public CompletableFuture<ChatSession> connect(String host, int port, ChatListener listener) {
+	CompletableFuture<ChatSession> connected = new CompletableFuture<ChatSession>();
+	try {
+	    SocketChannel channel = SocketChannel.open();
+	    channel.configureBlocking(false);
+	    channel.socket().setTcpNoDelay(true);
+	    channel.connect(new InetSocketAddress(host, port));
+	    IoLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+	    loop.register(new ChatSession(loop, channel, listener, connected));
+	} catch (IOException | RuntimeException e) {
+	    connected.completeExceptionally(e);
+	}
+	return connected;
+    }
+
+    /**
+     * Closes every session, without waiting for what they still have to
+     * send, and stops the I/O threads and the heartbeat.
+     */
+    public void close() {
+	for (IoLoop loop : loops) {
+	    loop.shutDown();
+	}
+	if (wheel != null) wheel.stop();
+    }
+
+    /**
+     * An IoLoop is a thread which waits on its own {@link Selector} and
+     * serves the sessions registered with it.
+     */
+    static class IoLoop extends Thread {
+
+	/**
+	 * The selector of this I/O thread.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Sessions created but not yet registered with the selector.
+	 */
+	private final Queue<ChatSession> newSessions = new ConcurrentLinkedQueue<ChatSession>();
+
+	/**
+	 * Sessions which have output waiting to be written.
+	 */
+	private final Queue<ChatSession> writeRequests = new ConcurrentLinkedQueue<ChatSession>();
+
+	/**
+	 * Whether the ChatClient has been closed.
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * The wheel the heartbeats of the sessions run on, or <tt>null</tt>.
+	 */
+	final TimingWheel wheel;
+
+	/**
+	 * How long (in nanoseconds) a session may hear nothing from the server
+	 * before it pings the server, or 0 for no heartbeat.
+	 */
+	final long heartbeatNanos;
+
+	/**
+	 * Creates a new IoLoop.
+	 *
+	 * @param index
+	 *            the index of the I/O thread, used in the thread name
+	 * @param wheel
+	 *            the wheel the heartbeats run on, or <tt>null</tt>
+	 * @param heartbeatNanos
+	 *            the heartbeat of the sessions, or 0
+	 * @throws IOException
+	 *             if the selector cannot be opened
+	 */
+	private IoLoop(int index, TimingWheel wheel, long heartbeatNanos) throws IOException {
+	    super("chat-io-" + index);
+	    selector = Selector.open();
+	    this.wheel = wheel;
+	    this.heartbeatNanos = heartbeatNanos;
+	}
+
+	/**
+	 * Hands a new session to this I/O thread.
+	 *
+	 * @param session
+	 *            the session, whose channel is connecting
+	 */
+	private void register(ChatSession session) {
+	    newSessions.add(session);
+	    selector.wakeup();
+	}
+
+	/**
+	 * Asks this I/O thread to write the output of a session. The output is
+	 * written at the end of the current round, or of the next one if the
+	 * I/O thread is waiting.
+	 *
+	 * @param session
+	 *            a session owned by this I/O thread
+	 */
+	void requestWrite(ChatSession session) {
+	    if (session.writeRequested.compareAndSet(false, true)) {
+		writeRequests.add(session);
+		if (Thread.currentThread() != this) {
+		    selector.wakeup();
+		}
+	    }
+	}
+
+	/**
+	 * Stops this I/O thread, which closes its sessions.
+	 */
+	private void shutDown() {
+	    stopped = true;
+	    selector.wakeup();
+	}
+
+	/**
+	 * Waits for events and serves the sessions.
+	 */
+	@Override
+	public void run() {
+	    while (!stopped) {
+		try {
+		    selector.select();
+		} catch (IOException e) {
+		    System.err.println(getName() + ": " + e.getMessage());
+		    break;
+		}
+
+		// Registers the sessions created since the last round
+		ChatSession session;
+		while ((session = newSessions.poll()) != null) {
+		    session.register(selector);
+		}
+
+		// Serves the ready sessions
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+		    SelectionKey key = keys.next();
+		    keys.remove();
+		    session = (ChatSession) key.attachment();
+		    if (key.isValid() && key.isConnectable()) {
+			session.finishConnect();
+		    }
+		    if (key.isValid() && key.isWritable()) {
+			session.write();
+		    }
+		    if (key.isValid() && key.isReadable()) {
+			session.read();
+		    }
+		}
+
+		// Writes the output of the sessions which have asked for it
+		while ((session = writeRequests.poll()) != null) {
+		    session.writeRequested.set(false);
+		    session.write();
+		}
+	    }
+
+	    // Closes the sessions that are left
+	    ChatSession session;
+	    while ((session = newSessions.poll()) != null) {
+		session.abort(null);
+	    }
+	    for (SelectionKey key : selector.keys()) {
+		((ChatSession) key.attachment()).abort(null);
+	    }
+	    try {
+		selector.close();
+	    } catch (IOException e) {
+		System.err.println(getName() + ": " + e.getMessage());
+	    }
+	}
+    }
+}
@@ -0,0 +1,71 @@
+import java.io.IOException;
+
+/*
+ * ****************************
+ * Filename: ChatListener.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Receives what happens to a {@link ChatSession}.
+ * </p>
+ * <p>
+ * The methods are called by the I/O thread of the session, one at a time and
+ * in the order the server sent things, so they should return quickly and must
+ * never block: every other session of the same I/O thread waits for them.
+ * Every method does nothing by default.
+ * </p>
+ */
+public interface ChatListener {
+
+    /**
+     * Called for every line of text from the server: chat messages, private
+     * messages and the feedback of the server, which starts with
+     * "[Server] ". This includes the greeting sent before the user has
+     * entered the chat room.
+     *
+     * @param session
+     *            the session
+     * @param message
+     *            the decrypted message
+     */
+    default void onMessage(ChatSession session, String message) {
+    }
+
+    /**
+     * Called when the server has validated the user name, before its welcome
+     * messages.
+     *
+     * @param session
+     *            the session, which has now entered the chat room
+     */
+    default void onEntered(ChatSession session) {
+    }
+
+    /**
+     * Called when the user has been kicked out of the chat room by
+     * Administrator. The server closes the connection right after.
+     *
+     * @param session
+     *            the session
+     */
+    default void onKicked(ChatSession session) {
+    }
+
+    /**
+     * Called once when the connection is closed.
+     *
+     * @param session
+     *            the session
+     * @param cause
+     *            why the connection was lost, or <tt>null</tt> if it was
+     *            closed with {@link ChatSession#close()} or
+     *            {@link ChatClient#close()}
+     */
+    default void onClosed(ChatSession session, IOException cause) {
+    }
+}
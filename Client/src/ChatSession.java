@@ -0,0 +1,687 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * ****************************
+ * Filename: ChatSession.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * A ChatSession is one connection of a {@link ChatClient} to a chat server,
+ * speaking the {@linkplain Protocol framed protocol}.
+ * </p>
+ * <p>
+ * Every session keeps all of its state to itself, and nothing in it blocks:
+ * {@link #enter(String)} and {@link #send(String)} queue the frame and return
+ * a future at once, and the I/O thread of the session writes it. What the
+ * server sends is passed to the {@link ChatListener} of the session by the I/O
+ * thread. The futures are completed by the I/O thread as well, so anything
+ * chained to them without an executor runs there and should not block.
+ * </p>
+ * <p>
+ * A session may be used by any number of threads at the same time; its frames
+ * are sent in the order the calls were made.
+ * </p>
+ * <p>
+ * The session answers the pings of the server, and, if its
+ * {@link ChatClient} has a heartbeat, pings the server when it has heard
+ * nothing for a while and gives up on a server which stays silent.
+ * </p>
+ */
+public class ChatSession {
+
+    /**
+     * The size of the buffer the session reads into at first.
+     */
+    private static final int READ_BUFFER = 4096;
+
+    /**
+     * The payload of a ping and a pong.
+     */
+    private static final byte[] NOTHING = new byte[0];
+
+    /**
+     * The I/O thread which owns this session.
+     */
+    private final ChatClient.IoLoop loop;
+
+    /**
+     * The channel to the server.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * Receives the messages and events of this session.
+     */
+    private final ChatListener listener;
+
+    /**
+     * Completed once the connection has been built.
+     */
+    private final CompletableFuture<ChatSession> connected;
+
+    /**
+     * The key of the channel in the selector of the I/O thread.
+     */
+    private volatile SelectionKey key;
+
+    /**
+     * The frames waiting to be written, in the order they were sent.
+     */
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<Pending>();
+
+    /**
+     * The sequence number of the next frame sent to the server, guarded by
+     * this session together with the order of {@link #pending}.
+     */
+    private int sequence;
+
+    /**
+     * Is the session waiting in the write requests of its I/O thread?
+     */
+    final AtomicBoolean writeRequested = new AtomicBoolean();
+
+    /**
+     * The bytes read from the server. The buffer grows, up to
+     * {@link Protocol#MAX_FRAME} bytes, when a frame does not fit in it.
+     */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER);
+
+    /**
+     * Has the first frame been received? Before it, the server speaks the
+     * line protocol.
+     */
+    private boolean framed;
+
+    /**
+     * The future of the user name being validated, or <tt>null</tt>. Guarded
+     * by this session.
+     */
+    private CompletableFuture<Boolean> entering;
+
+    /**
+     * The user name being validated. Guarded by this session.
+     */
+    private String enteringName;
+
+    /**
+     * The user name, once it has been validated.
+     */
+    private volatile String name;
+
+    /**
+     * Has {@link #close()} been called? The connection is closed once the
+     * frames sent before have been written.
+     */
+    private volatile boolean closing;
+
+    /**
+     * Has the connection been closed?
+     */
+    private volatile boolean closed;
+
+    /**
+     * When something was last received from the server, from
+     * {@link System#nanoTime()}.
+     */
+    private volatile long lastRead = System.nanoTime();
+
+    /**
+     * Has the server been silent for too long? The I/O thread then closes
+     * the connection.
+     */
+    private volatile boolean silent;
+
+    /**
+     * The next check of the heartbeat, or <tt>null</tt>.
+     */
+    private volatile TimingWheel.Timeout heartbeat;
+
+    /**
+     * Creates a new ChatSession and queues the HELLO to be sent once it is
+     * connected.
+     *
+     * @param loop
+     *            the I/O thread which owns the session
+     * @param channel
+     *            the channel, in non-blocking mode and connecting
+     * @param listener
+     *            receives the messages and events of the session
+     * @param connected
+     *            completed once the connection has been built
+     */
+    ChatSession(ChatClient.IoLoop loop, SocketChannel channel, ChatListener listener,
+	    CompletableFuture<ChatSession> connected) {
+	this.loop = loop;
+	this.channel = channel;
+	this.listener = listener;
+	this.connected = connected;
+	queue(Protocol.HELLO, new byte[] { Protocol.VERSION }, null);
+    }
+
+    /**
+     * Gets the user name.
+     *
+     * @return the user name, or <tt>null</tt> if the session has not entered
+     *         the chat room
+     */
+    public String name() {
+	return name;
+    }
+
+    /**
+     * @return <tt>true</tt> if the session has entered the chat room
+     */
+    public boolean isEntered() {
+	return name != null;
+    }
+
+    /**
+     * @return <tt>true</tt> until the connection has been closed
+     */
+    public boolean isOpen() {
+	return !closed;
+    }
+
+    /**
+     * <p>
+     * Enters the chat room with a user name.
+     * </p>
+     * The server validates the name: it is refused if it is empty, longer
+     * than {@link Protocol#MAX_NAME} characters or used by somebody else, and
+     * then another one may be tried.
+     *
+     * @param name
+     *            the user name
+     * @return a future completed with <tt>true</tt> once the name has been
+     *         validated, with <tt>false</tt> if it has been refused, or
+     *         exceptionally if the connection is lost first
+     * @throws IllegalStateException
+     *             if the session has entered the chat room, or is still
+     *             waiting for the server to validate another name
+     * @throws IllegalArgumentException
+     *             if the name is longer than {@link Protocol#MAX_MESSAGE}
+     *             bytes
+     */
+    public synchronized CompletableFuture<Boolean> enter(String name) {
+	if (isEntered() || entering != null) {
+	    throw new IllegalStateException("The session has entered or is entering the chat room");
+	}
+	byte[] payload = encode(name);
+	CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+	if (closing || closed) {
+	    future.completeExceptionally(new ClosedChannelException());
+	    return future;
+	}
+	entering = future;
+	enteringName = name;
+	queue(Protocol.TEXT, payload, null);
+	return future;
+    }
+
+    /**
+     * Encrypts a chat message or a request command and sends it to the
+     * server.
+     *
+     * @param message
+     *            the original message
+     * @return a future completed once the message has been written to the
+     *         connection, or exceptionally if the connection is lost first
+     * @throws IllegalArgumentException
+     *             if the message is longer than {@link Protocol#MAX_MESSAGE}
+     *             bytes, which the server would not pass on
+     */
+    public CompletableFuture<Void> send(String message) {
+	byte[] payload = encode(message);
+	CompletableFuture<Void> written = new CompletableFuture<Void>();
+	queue(Protocol.TEXT, payload, written);
+	return written;
+    }
+
+    /**
+     * Encrypts a line of text to be sent to the server.
+     *
+     * @param text
+     *            the original text
+     * @return the encrypted UTF-8 bytes
+     * @throws IllegalArgumentException
+     *             if the text is longer than {@link Protocol#MAX_MESSAGE}
+     *             bytes
+     */
+    private static byte[] encode(String text) {
+	byte[] payload = XorCodec.encode(text);
+	if (payload.length > Protocol.MAX_MESSAGE) {
+	    throw new IllegalArgumentException("A message should not be longer than " + Protocol.MAX_MESSAGE
+		    + " bytes, this one has " + payload.length + ".");
+	}
+	return payload;
+    }
+
+    /**
+     * Closes the connection once the frames sent before have been written.
+     * The server then removes the user from the chat room.
+     */
+    public void close() {
+	closing = true;
+	loop.requestWrite(this);
+    }
+
+    /**
+     * Queues a frame and asks the I/O thread to write it.
+     *
+     * @param opcode
+     *            the opcode of the frame
+     * @param payload
+     *            the payload, already encrypted if it is text
+     * @param written
+     *            the future to complete once the frame has been written, or
+     *            <tt>null</tt>
+     */
+    private void queue(byte opcode, byte[] payload, CompletableFuture<Void> written) {
+	ByteBuffer frame = ByteBuffer.allocate(Protocol.HEADER + payload.length);
+	synchronized (this) {
+	    if (closing || closed) {
+		if (written != null) written.completeExceptionally(new ClosedChannelException());
+		return;
+	    }
+	    Protocol.writeHeader(frame.array(), 0, opcode, sequence++, payload.length);
+	    frame.position(Protocol.HEADER);
+	    frame.put(payload);
+	    frame.flip();
+	    pending.add(new Pending(frame, written));
+	}
+	if (key != null) {
+	    loop.requestWrite(this);
+	}
+    }
+
+    /**
+     * Registers the channel with the selector of the I/O thread, which then
+     * waits for the connection to be built.
+     *
+     * @param selector
+     *            the selector of the I/O thread
+     */
+    void register(Selector selector) {
+	try {
+	    key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+	    if (channel.isConnected()) {
+		// Connected at once, as may happen to a local server
+		finishConnect();
+	    }
+	} catch (IOException e) {
+	    abort(e);
+	}
+    }
+
+    /**
+     * Finishes building the connection and writes the HELLO.
+     */
+    void finishConnect() {
+	try {
+	    if (!channel.finishConnect()) return;
+	} catch (IOException e) {
+	    abort(e);
+	    return;
+	}
+	key.interestOps(SelectionKey.OP_READ);
+	connected.complete(this);
+	if (loop.wheel != null) {
+	    checkIn(loop.heartbeatNanos);
+	}
+	write();
+    }
+
+    /**
+     * Schedules the next check of the heartbeat.
+     *
+     * @param delay
+     *            how long from now, in nanoseconds
+     */
+    private void checkIn(long delay) {
+	heartbeat = loop.wheel.schedule(new TimingWheel.Task() {
+	    @Override
+	    public void expire() {
+		checkHeartbeat();
+	    }
+	}, delay, TimeUnit.NANOSECONDS);
+	// The session may have been closed meanwhile
+	if (closed) heartbeat.cancel();
+    }
+
+    /**
+     * Called by the timing wheel: pings the server if it has been quiet for
+     * the heartbeat, or has the I/O thread close the connection if it has
+     * been quiet for twice as long.
+     */
+    private void checkHeartbeat() {
+	if (closed) return;
+	long interval = loop.heartbeatNanos;
+	long quiet = System.nanoTime() - lastRead;
+	if (quiet >= 2 * interval) {
+	    silent = true;
+	    loop.requestWrite(this);
+	} else if (quiet >= interval) {
+	    queue(Protocol.PING, NOTHING, null);
+	    checkIn(interval);
+	} else {
+	    checkIn(interval - quiet);
+	}
+    }
+
+    /**
+     * Writes as many of the queued frames as the channel accepts. If some
+     * output is left, the I/O thread is asked to call again when the channel
+     * becomes writable.
+     */
+    void write() {
+	if (closed || !channel.isConnected()) return;
+	if (silent) {
+	    abort(new IOException("The server has not answered for "
+		    + TimeUnit.NANOSECONDS.toSeconds(2 * loop.heartbeatNanos) + " seconds."));
+	    return;
+	}
+	try {
+	    Pending next;
+	    while ((next = pending.peek()) != null) {
+		channel.write(next.frame);
+		if (next.frame.hasRemaining()) {
+		    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		    return;
+		}
+		pending.poll();
+		if (next.written != null) next.written.complete(null);
+	    }
+	    key.interestOps(SelectionKey.OP_READ);
+	    if (closing) {
+		abort(null);
+	    }
+	} catch (IOException e) {
+	    abort(e);
+	}
+    }
+
+    /**
+     * Reads what the server has sent: the lines of the greeting first, and
+     * then the frames.
+     */
+    void read() {
+	try {
+	    int n = channel.read(readBuffer);
+	    if (n > 0) lastRead = System.nanoTime();
+	    byte[] bytes = readBuffer.array();
+	    int end = readBuffer.position();
+	    int start = 0;
+	    if (!framed) {
+		start = readGreeting(bytes, end);
+	    }
+	    if (framed) {
+		start = readFrames(bytes, start, end);
+	    }
+	    if (closed) return;
+	    if (n < 0) {
+		abort(new EOFException("Connection closed by the server."));
+		return;
+	    }
+	    keepUnfinishedFrame(start, end);
+	} catch (IOException e) {
+	    abort(e);
+	}
+    }
+
+    /**
+     * Passes every complete line of the greeting to the listener, until the
+     * first frame, which always starts with {@link Protocol#MAGIC}.
+     *
+     * @param bytes
+     *            the read buffer
+     * @param end
+     *            the index after the last byte read
+     * @return the index of the first byte of the unfinished line or of the
+     *         first frame
+     */
+    private int readGreeting(byte[] bytes, int end) {
+	int start = 0;
+	for (int i = 0; i < end; i++) {
+	    byte b = bytes[i];
+	    if (i == start && b == Protocol.MAGIC) {
+		framed = true;
+		break;
+	    }
+	    if (b == '\n' || b == '\r') {
+		if (i > start) {
+		    onText(bytes, start, i - start);
+		}
+		start = i + 1;
+	    }
+	}
+	return start;
+    }
+
+    /**
+     * Passes every complete frame in the read buffer to the listener.
+     *
+     * @param bytes
+     *            the read buffer
+     * @param start
+     *            the index of the first frame
+     * @param end
+     *            the index after the last byte read
+     * @return the index of the first byte of the unfinished frame
+     * @throws IOException
+     *             if a frame is invalid
+     */
+    private int readFrames(byte[] bytes, int start, int end) throws IOException {
+	while (end - start >= 4 && !closed) {
+	    int length = Protocol.readInt(bytes, start);
+	    if (length < Protocol.HEADER - 4 || length > Protocol.MAX_FRAME - 4) {
+		throw new IOException("Invalid frame length: " + length);
+	    }
+	    if (end - start < 4 + length) break;
+	    onFrame(bytes[start + 4], bytes, start + Protocol.HEADER, length - (Protocol.HEADER - 4));
+	    start += 4 + length;
+	}
+	return start;
+    }
+
+    /**
+     * Moves the unfinished frame to the start of the read buffer, making the
+     * buffer larger if it fills the buffer.
+     *
+     * @param start
+     *            the index of the first byte of the unfinished frame
+     * @param end
+     *            the index after the last byte read
+     * @throws IOException
+     *             if the frame is too long
+     */
+    private void keepUnfinishedFrame(int start, int end) throws IOException {
+	byte[] bytes = readBuffer.array();
+	int unfinished = end - start;
+	if (unfinished == bytes.length) {
+	    if (bytes.length >= Protocol.MAX_FRAME) {
+		throw new IOException("Frame too long.");
+	    }
+	    ByteBuffer larger = ByteBuffer.allocate(Math.min(bytes.length * 2, Protocol.MAX_FRAME));
+	    larger.put(bytes, 0, unfinished);
+	    readBuffer = larger;
+	} else {
+	    System.arraycopy(bytes, start, bytes, 0, unfinished);
+	    readBuffer.position(unfinished);
+	}
+    }
+
+    /**
+     * Handles a frame from the server.
+     *
+     * @param opcode
+     *            the opcode of the frame
+     * @param payload
+     *            the array holding the payload
+     * @param off
+     *            the index of the first byte of the payload
+     * @param len
+     *            the number of bytes in the payload
+     */
+    private void onFrame(byte opcode, byte[] payload, int off, int len) {
+	switch (opcode) {
+	    case Protocol.TEXT:
+		onText(payload, off, len);
+		break;
+	    case Protocol.VALID: {
+		CompletableFuture<Boolean> future;
+		synchronized (this) {
+		    name = enteringName;
+		    future = entering;
+		    entering = null;
+		}
+		try {
+		    listener.onEntered(this);
+		} catch (RuntimeException e) {
+		    listenerFailed(e);
+		}
+		if (future != null) future.complete(true);
+		break;
+	    }
+	    case Protocol.REFUSED: {
+		// The text asks the user to try another name
+		onText(payload, off, len);
+		CompletableFuture<Boolean> future;
+		synchronized (this) {
+		    future = entering;
+		    entering = null;
+		}
+		if (future != null) future.complete(false);
+		break;
+	    }
+	    case Protocol.KICKED:
+		try {
+		    listener.onKicked(this);
+		} catch (RuntimeException e) {
+		    listenerFailed(e);
+		}
+		break;
+	    case Protocol.PING:
+		queue(Protocol.PONG, NOTHING, null);
+		break;
+	    default:
+		// The HELLO and the pongs of the server need no answer
+		break;
+	}
+    }
+
+    /**
+     * Decrypts a line of text from the server and passes it to the listener.
+     *
+     * @param bytes
+     *            the array holding the encrypted text
+     * @param off
+     *            the index of the first byte
+     * @param len
+     *            the number of bytes
+     */
+    private void onText(byte[] bytes, int off, int len) {
+	XorCodec.apply(bytes, off, len);
+	try {
+	    listener.onMessage(this, XorCodec.toString(bytes, off, len));
+	} catch (RuntimeException e) {
+	    listenerFailed(e);
+	}
+    }
+
+    /**
+     * Reports an exception thrown by the listener. The session and the other
+     * sessions of the I/O thread go on as if the listener had returned.
+     *
+     * @param e
+     *            the exception
+     */
+    private void listenerFailed(RuntimeException e) {
+	System.err.println(Thread.currentThread().getName() + ": the listener has thrown " + e);
+    }
+
+    /**
+     * Closes the connection at once and tells the listener. The frames not
+     * yet written, and the futures waiting for them, fail.
+     *
+     * @param cause
+     *            why the connection is lost, or <tt>null</tt> if it is closed
+     *            on purpose
+     */
+    void abort(IOException cause) {
+	CompletableFuture<Boolean> future;
+	boolean wasConnected = connected.isDone() && !connected.isCompletedExceptionally();
+	synchronized (this) {
+	    if (closed) return;
+	    closed = true;
+	    future = entering;
+	    entering = null;
+	}
+	if (key != null) key.cancel();
+	if (heartbeat != null) heartbeat.cancel();
+	try {
+	    channel.close();
+	} catch (IOException e) {
+	    // The channel is unusable anyway
+	}
+	IOException failure = cause != null ? cause : new ClosedChannelException();
+	connected.completeExceptionally(failure);
+	if (future != null) future.completeExceptionally(failure);
+	Pending next;
+	while ((next = pending.poll()) != null) {
+	    if (next.written != null) next.written.completeExceptionally(failure);
+	}
+	if (wasConnected) {
+	    try {
+		listener.onClosed(this, cause);
+	    } catch (RuntimeException e) {
+		listenerFailed(e);
+	    }
+	}
+    }
+
+    /**
+     * A frame waiting to be written.
+     */
+    private static class Pending {
+
+	/**
+	 * The frame, with its header.
+	 */
+	private final ByteBuffer frame;
+
+	/**
+	 * The future to complete once the frame has been written, or
+	 * <tt>null</tt>.
+	 */
+	private final CompletableFuture<Void> written;
+
+	/**
+	 * Creates a Pending frame.
+	 *
+	 * @param frame
+	 *            the frame, with its header
+	 * @param written
+	 *            the future to complete once the frame has been written
+	 */
+	private Pending(ByteBuffer frame, CompletableFuture<Void> written) {
+	    this.frame = frame;
+	    this.written = written;
+	}
+    }
+}
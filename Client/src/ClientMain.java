@@ -1,4 +1,7 @@
+import java.io.IOException;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -11,11 +14,50 @@ import java.util.regex.Pattern;
  * ****************************
  */
 
+/*
+ * Additional Functionality:
+ * 
+ * 1. Uses XOR Cipher to encode and decode messages to improve security.
+ * 
+ * 2. Allows a client to block messages from another client. On the other
+ * hand, allows he/she to unblock another client.
+ * 
+ * 3. Allows a client to send private messages to another client, which are invisible
+ * to other clients.
+ * 
+ * 4. Allows a client to become an Administrator by entering a password.
+ * 
+ * 5. Allows an Administrator to kick a client out of the chat room.
+ * 
+ * 6. Allows an Administrator to shut down the server.
+ * 
+ * 7. Allows a client to clear his/her screen with the request command '-cls'.
+ * 
+ */
+
 /**
- * This class contains a main method that will instantiate a new
- * {@link ClientInstance}.
+ * <p>
+ * This class contains a main method that connects the user to a server with a
+ * {@link ChatSession}, and then acts as the console of the session:
+ * </p>
+ * <ul>
+ * <li>The main thread reads the input of the user and sends it.</li>
+ * <li>The I/O thread of the {@link ChatClient} prints the messages from the
+ * server.</li>
+ * </ul>
  */
-public class ClientMain {
+public class ClientMain implements ChatListener {
+
+    /**
+     * A separator.
+     */
+    public final static String SEPARATOR = "------------------------------------------------------------------";
+
+    /**
+     * How many seconds the client may hear nothing from the server before it
+     * pings the server.
+     */
+    private final static long HEARTBEAT = 15;
 
     /**
      * <code>port</code> is the port number of the server which user wishes to
@@ -28,9 +70,19 @@ public class ClientMain {
      */
     private static Scanner kb;
 
+    /**
+     * Whether the client has finished the chat.
+     */
+    private volatile boolean finished = false;
+
+    /**
+     * Whether the client is kicked out of the chat room by Administrator.
+     */
+    private volatile boolean kickedOut = false;
+
     /**
      * <p>
-     * Instantiates a new {@linkplain ClientInstance Client Instance}.
+     * Connects the user to a server and runs the console.
      * </p>
      * <p>
      * Firstly, prompts the client for a IP Address and validates it with a
@@ -54,7 +106,7 @@ public class ClientMain {
      */
     public static void main(String[] args) {
 
-	System.out.println(ClientInstance.SEPARATOR + "\nWelcome to Jinke He's chat room.\n");
+	System.out.println(SEPARATOR + "\nWelcome to Jinke He's chat room.\n");
 
 	// Instantiates the Scanner
 	kb = new Scanner(System.in);
@@ -83,8 +135,134 @@ public class ClientMain {
 	    return;
 	}
 
-	// Instantiates a new ClientInstance
-	new ClientInstance(targetIP, port);
+	new ClientMain().run(targetIP, port);
+    }
+
+    /**
+     * <p>
+     * Builds a connection with the server and sends the input of the user to
+     * it.
+     * </p>
+     * <p>
+     * Before the user can chat with others, he/she needs to enter a valid
+     * user name, which is not used by others or empty. Then every line is
+     * sent to the server until the user enters '-exit' to disconnect.
+     * </p>
+     * 
+     * @param serverIP
+     *            the IP address of the server
+     * @param port
+     *            the port number of the server
+     */
+    private void run(String serverIP, int port) {
+	ChatSession session;
+	try {
+	    // build a connection, served by a single I/O thread
+	    session = new ChatClient(1, HEARTBEAT).connect(serverIP, port, this).get();
+	    System.out.println(SEPARATOR);
+	} catch (IOException | ExecutionException | InterruptedException e) {
+	    // Fails to build a connection
+	    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+	    System.err.println("I/O problem found: ");
+	    System.err.println(cause.getMessage());
+	    System.exit(1);
+	    return;
+	}
+
+	try {
+	    /*
+	     * Stage 1, asks the client to enter a valid name until the server
+	     * validates one.
+	     */
+	    while (!session.enter(kb.nextLine().trim()).get()) {
+		// The server has asked for another name
+	    }
+
+	    /*
+	     * Stage 2, sends messages to the server until the client enters
+	     * '-exit' to disconnect or the connection lost.
+	     */
+	    while (!finished) {
+		String message = kb.nextLine().trim();
+		if (message.equals("-exit")) {
+		    // The client wants to finish the chat
+		    finished = true;
+		} else {
+		    // Otherwise sends message to the server
+		    try {
+			session.send(message);
+		    } catch (IllegalArgumentException e) {
+			// The message is too long to be sent
+			System.out.println(e.getMessage());
+		    }
+		}
+	    }
+	} catch (NoSuchElementException e) {
+	    // The input has ended, which finishes the chat
+	    finished = true;
+	} catch (ExecutionException | InterruptedException e) {
+	    // The connection is lost, which onClosed reports
+	    return;
+	}
+	session.close();
+    }
+
+    /**
+     * Shows a message from the server. Before the client enters the chat
+     * room, only the messages from the server itself are shown.
+     */
+    @Override
+    public void onMessage(ChatSession session, String message) {
+	if (session.isEntered() || message.startsWith("[Server] ")) {
+	    System.out.println(message);
+	}
+    }
+
+    @Override
+    public void onEntered(ChatSession session) {
+	System.out.println();
+    }
+
+    /**
+     * Disconnects the client who has been kicked out of the chat room.
+     */
+    @Override
+    public void onKicked(ChatSession session) {
+	kickedOut = true;
+	session.close();
+    }
+
+    /**
+     * <p>
+     * Tells the user why the connection has been closed, and the program
+     * exits.
+     * </p>
+     * There are three cases:
+     * <ol>
+     * <li>Client wants to disconnect.</li>
+     * <li>Connection is lost or Server is shut down.</li>
+     * <li>Client is kicked out of the chat room by Administrator.</li>
+     * </ol>
+     */
+    @Override
+    public void onClosed(ChatSession session, IOException cause) {
+
+	System.out.println(SEPARATOR);
+
+	// Case 1: Client wants to disconnect.
+	if (finished)
+	    System.out.println("You have left the chat room.");
+
+	// Case 2: Client lost connection suddenly.
+	if (!finished && !kickedOut)
+	    System.out.println("Connection lost.");
+
+	// Case 3: Client is kicked out of the chat room by Administrator.
+	if (!finished && kickedOut)
+	    System.out.println("You were kicked out of the chat room.");
+
+	// Program exits
+	System.exit(0);
     }
 
     /**
@@ -0,0 +1,657 @@
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * ****************************
+ * Filename: LoadGenerator.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * A headless client which opens many sessions against a server and keeps them
+ * busy, to find out how much load the server can take before it is deployed.
+ * </p>
+ * <p>
+ * Every session is a {@link ChatSession}, and all of them share the few I/O
+ * threads of one {@link ChatClient}. Each connects and enters the chat room
+ * with the name {@code load0}, {@code load1}... Then the sessions send at a
+ * fixed total rate, each request picked at random from a mix of:
+ * </p>
+ * <ul>
+ * <li>{@code broadcast}: a chat message to everybody;</li>
+ * <li>{@code private}: a private message to another session;</li>
+ * <li>{@code block}: blocks another session, or unblocks the one blocked
+ * before;</li>
+ * <li>{@code command}: one of the request commands which only give
+ * feedback, such as {@code -num}.</li>
+ * </ul>
+ * <p>
+ * Every chat message and private message carries the time it was due to be
+ * sent, so every session which receives it knows how long the delivery took.
+ * The time is taken from the schedule rather than from the clock when the
+ * message is actually written: if the server pushes back and the sending
+ * falls behind, the waiting is counted in the latency as a real user would
+ * feel it.
+ * </p>
+ * <p>
+ * A progress line is printed every second; at the end, the throughput and the
+ * 50th, 99th and 99.9th percentiles of the delivery latency are printed. What
+ * happens during the warm-up is not counted.
+ * </p>
+ *
+ * <pre>
+ * java LoadGenerator --host=localhost --port=12345 --sessions=1000 --rate=500
+ *      --duration=60 --warmup=10 --mix=broadcast:80,private:10,block:5,command:5
+ * </pre>
+ */
+public class LoadGenerator {
+
+    /**
+     * What a session may send.
+     */
+    private enum Action {
+	BROADCAST, PRIVATE, BLOCK, COMMAND
+    }
+
+    /**
+     * The request commands sent as {@link Action#COMMAND}.
+     */
+    private static final String[] COMMANDS = { "-num", "-ct", "-st", "-sip", "-h" };
+
+    /**
+     * The mark in front of the send time in a message.
+     */
+    private static final String STAMP = "#lg";
+
+    /**
+     * Returned by {@link #readStamp(String)} for a message which is
+     * not stamped. Any other value may be a send time, as
+     * {@link System#nanoTime()} can be negative.
+     */
+    private static final long NOT_STAMPED = Long.MIN_VALUE;
+
+    /**
+     * The number of sessions which may be connecting and entering the chat
+     * room at the same time.
+     */
+    private static final int CONNECTING = 32;
+
+    /**
+     * The server to connect to.
+     */
+    private final String host;
+
+    /**
+     * The port number of the server.
+     */
+    private final int port;
+
+    /**
+     * The prefix of the names of the sessions.
+     */
+    private final String namePrefix;
+
+    /**
+     * The number of messages sent per second by all sessions together.
+     */
+    private final int rate;
+
+    /**
+     * The number of threads sending for the sessions.
+     */
+    private final int senders;
+
+    /**
+     * The length of the chat messages in characters, at least as long as the
+     * send time.
+     */
+    private final int size;
+
+    /**
+     * The weights of the actions, indexed by their ordinal.
+     */
+    private final int[] weights = new int[Action.values().length];
+
+    /**
+     * The sum of {@link #weights}.
+     */
+    private int totalWeight;
+
+    /**
+     * Connects the sessions and serves them.
+     */
+    private final ChatClient client;
+
+    /**
+     * The sessions.
+     */
+    private final Bot[] bots;
+
+    /**
+     * The number of requests sent in the measured period, indexed by the
+     * ordinal of the action.
+     */
+    private final LongAdder[] sent = new LongAdder[Action.values().length];
+
+    /**
+     * The number of requests sent since the start.
+     */
+    private final LongAdder requests = new LongAdder();
+
+    /**
+     * The number of stamped messages delivered in the measured period.
+     */
+    private final LongAdder delivered = new LongAdder();
+
+    /**
+     * The number of messages received, stamped or not, since the start.
+     */
+    private final LongAdder received = new LongAdder();
+
+    /**
+     * The number of sessions which have lost their connection.
+     */
+    private final LongAdder lost = new LongAdder();
+
+    /**
+     * The delivery latencies of the messages sent in the measured period.
+     */
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /**
+     * The time ({@link System#nanoTime()}) when the measured period starts.
+     * Messages sent before are not counted.
+     */
+    private volatile long measureFrom = Long.MAX_VALUE;
+
+    /**
+     * Whether the sending should stop.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Creates a load generator from the start-up options.
+     *
+     * @param options
+     *            the start-up options
+     * @throws IllegalArgumentException
+     *             if an option is invalid
+     * @throws IOException
+     *             if the I/O threads cannot be started
+     */
+    public LoadGenerator(Options options) throws IOException {
+	host = options.get("host", "localhost");
+	port = options.getInt("port", 12345);
+	namePrefix = options.get("name-prefix", "load");
+	rate = options.getInt("rate", 100);
+	senders = options.getInt("senders", 4);
+	size = options.getInt("size", 64);
+	int sessions = options.getInt("sessions", 100);
+	if (sessions < 2 || rate < 1 || senders < 1) {
+	    throw new IllegalArgumentException("Options 'sessions' should be at least 2, 'rate' and 'senders' at least 1");
+	}
+	parseMix(options.get("mix", "broadcast:80,private:10,block:5,command:5"));
+	bots = new Bot[sessions];
+	client = new ChatClient(options.getInt("io-threads", Runtime.getRuntime().availableProcessors()));
+	for (int i = 0; i < sent.length; i++) {
+	    sent[i] = new LongAdder();
+	}
+    }
+
+    /**
+     * Parses the mix of actions, for example
+     * {@code broadcast:80,private:10,block:5,command:5}. An action which is
+     * not in the mix is never sent.
+     *
+     * @param mix
+     *            the mix, in the form {@code action:weight,...}
+     * @throws IllegalArgumentException
+     *             if the mix is invalid
+     */
+    private void parseMix(String mix) {
+	for (String part : mix.split(",")) {
+	    int colon = part.indexOf(':');
+	    try {
+		Action action = Action.valueOf(part.substring(0, colon).trim().toUpperCase(Locale.ROOT));
+		int weight = Integer.parseInt(part.substring(colon + 1).trim());
+		if (weight < 0) throw new NumberFormatException();
+		weights[action.ordinal()] = weight;
+		totalWeight += weight;
+	    } catch (RuntimeException e) {
+		throw new IllegalArgumentException("Invalid mix '" + part + "', expected action:weight with action "
+			+ "broadcast, private, block or command");
+	    }
+	}
+	if (totalWeight == 0) {
+	    throw new IllegalArgumentException("The mix should have at least one action with a weight");
+	}
+    }
+
+    /**
+     * Runs the load generator.
+     *
+     * @param args
+     *            the start-up options, see {@link LoadGenerator}
+     */
+    public static void main(String[] args) {
+	Options options;
+	LoadGenerator generator;
+	try {
+	    options = new Options(args);
+	    generator = new LoadGenerator(options);
+	} catch (IllegalArgumentException | IOException e) {
+	    System.err.println(e.getMessage());
+	    return;
+	}
+	try {
+	    generator.run(options.getInt("warmup", 10), options.getInt("duration", 60));
+	} catch (InterruptedException e) {
+	    System.err.println("Interrupted.");
+	}
+	// Leaves closing the sessions to the operating system
+	System.exit(0);
+    }
+
+    /**
+     * Connects the sessions, sends for the warm-up and the measured period,
+     * waits for the last deliveries and prints the results.
+     *
+     * @param warmup
+     *            the length of the warm-up in seconds
+     * @param duration
+     *            the length of the measured period in seconds
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    private void run(int warmup, int duration) throws InterruptedException {
+	if (!connectAll()) return;
+
+	long start = System.nanoTime();
+	measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+	long end = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+	Thread[] threads = new Thread[senders];
+	for (int i = 0; i < senders; i++) {
+	    threads[i] = new Thread(new Sender(i, start, end), "sender-" + i);
+	    threads[i].setDaemon(true);
+	    threads[i].start();
+	}
+
+	// Prints the progress every second until the end of the measured
+	// period
+	long lastSent = 0, lastReceived = 0;
+	for (int second = 1; System.nanoTime() < end; second++) {
+	    long wake = start + TimeUnit.SECONDS.toNanos(second);
+	    long now;
+	    while ((now = System.nanoTime()) < wake) {
+		TimeUnit.NANOSECONDS.sleep(wake - now);
+	    }
+	    long sentNow = requests.sum(), receivedNow = received.sum();
+	    System.out.printf("%4ds %s sent %d/s, received %d/s, delivered %d, lost %d session(s)%n", second,
+		    second <= warmup ? "warm-up " : "measured", sentNow - lastSent, receivedNow - lastReceived,
+		    delivered.sum(), lost.sum());
+	    lastSent = sentNow;
+	    lastReceived = receivedNow;
+	}
+	stopped = true;
+	for (Thread thread : threads) {
+	    thread.join();
+	}
+
+	// Waits for the messages still on their way, until nothing has
+	// arrived for a second
+	long quiet;
+	do {
+	    quiet = received.sum();
+	    Thread.sleep(1000);
+	} while (received.sum() != quiet);
+
+	report(duration);
+    }
+
+    /**
+     * Connects all the sessions and waits until they have entered the chat
+     * room.
+     *
+     * @return <tt>true</tt> if every session has entered the chat room
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    private boolean connectAll() throws InterruptedException {
+	System.out.println("Connecting " + bots.length + " sessions to " + host + ":" + port + "...");
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	CompletableFuture<Boolean>[] entered = new CompletableFuture[bots.length];
+	try {
+	    for (int i = 0; i < bots.length; i++) {
+		// Keeps only a few handshakes going at a time, so that the
+		// backlog of the server socket does not overflow
+		if (i >= CONNECTING) entered[i - CONNECTING].get(60, TimeUnit.SECONDS);
+		Bot bot = bots[i] = new Bot(i);
+		entered[i] = client.connect(host, port, bot).thenCompose(bot::enter);
+	    }
+	    CompletableFuture.allOf(entered).get(60, TimeUnit.SECONDS);
+	} catch (ExecutionException e) {
+	    System.err.println("A session cannot enter the chat room: " + e.getCause().getMessage());
+	    return false;
+	} catch (TimeoutException e) {
+	    System.err.println("Only some of the sessions entered the chat room in time.");
+	    return false;
+	}
+	for (int i = 0; i < bots.length; i++) {
+	    if (!entered[i].getNow(false)) {
+		System.err.println("Session " + bots[i].name + " was refused by the server.");
+		return false;
+	    }
+	}
+	System.out.println("All sessions have entered the chat room.");
+	return true;
+    }
+
+    /**
+     * @return the number of requests sent in the measured period
+     */
+    private long totalSent() {
+	long total = 0;
+	for (LongAdder adder : sent) {
+	    total += adder.sum();
+	}
+	return total;
+    }
+
+    /**
+     * Prints the throughput and the latencies of the measured period.
+     *
+     * @param duration
+     *            the length of the measured period in seconds
+     */
+    private void report(int duration) {
+	System.out.println(ClientMain.SEPARATOR);
+	System.out.println("Sessions:   " + bots.length + " (" + lost.sum() + " lost)");
+	StringBuilder mix = new StringBuilder();
+	for (Action action : Action.values()) {
+	    mix.append(", ").append(action.name().toLowerCase(Locale.ROOT)).append(' ')
+		    .append(sent[action.ordinal()].sum());
+	}
+	System.out.printf("Sent:       %d in %ds, %.1f/s (%s)%n", totalSent(), duration,
+		(double) totalSent() / duration, mix.substring(2));
+	System.out.printf("Delivered:  %d, %.1f/s%n", delivered.sum(), (double) delivered.sum() / duration);
+	System.out.printf("Latency:    p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n",
+		millis(latencies.percentile(50)), millis(latencies.percentile(99)),
+		millis(latencies.percentile(99.9)), millis(latencies.max()));
+	System.out.println(ClientMain.SEPARATOR);
+    }
+
+    /**
+     * @param nanos
+     *            a time in nanoseconds
+     * @return the same time in milliseconds
+     */
+    private static double millis(long nanos) {
+	return nanos / 1e6;
+    }
+
+    /**
+     * Picks an action at random according to the mix.
+     *
+     * @param random
+     *            the random number generator of the thread
+     * @return the action
+     */
+    private Action pickAction(ThreadLocalRandom random) {
+	int r = random.nextInt(totalWeight);
+	for (Action action : Action.values()) {
+	    r -= weights[action.ordinal()];
+	    if (r < 0) return action;
+	}
+	// Unreachable, the weights add up to totalWeight
+	return Action.BROADCAST;
+    }
+
+    /**
+     * Builds a chat message stamped with the time it was due to be sent.
+     *
+     * @param due
+     *            the time ({@link System#nanoTime()}) it was due to be sent
+     * @return the message, {@link #size} characters long or longer if the
+     *         stamp does not fit
+     */
+    private String stamped(long due) {
+	StringBuilder sb = new StringBuilder(size);
+	sb.append(STAMP).append(due).append(' ');
+	while (sb.length() < size) {
+	    sb.append('x');
+	}
+	return sb.toString();
+    }
+
+    /**
+     * <p>
+     * Sender sends the requests of the sessions on schedule.
+     * </p>
+     * The senders share the total rate: with {@code n} senders, every sender
+     * sends every {@code n / rate} seconds, each one starting a little after
+     * the one before.
+     */
+    private class Sender implements Runnable {
+
+	/**
+	 * The time when the next request is due.
+	 */
+	private long due;
+
+	/**
+	 * The time between two requests of this sender.
+	 */
+	private final long interval;
+
+	/**
+	 * The time when the sender stops.
+	 */
+	private final long end;
+
+	/**
+	 * Creates a Sender.
+	 *
+	 * @param index
+	 *            the index of the sender, from 0
+	 * @param start
+	 *            the time ({@link System#nanoTime()}) when the sending
+	 *            starts
+	 * @param end
+	 *            the time when the sending stops
+	 */
+	Sender(int index, long start, long end) {
+	    interval = TimeUnit.SECONDS.toNanos(senders) / rate;
+	    due = start + index * interval / senders;
+	    this.end = end;
+	}
+
+	@Override
+	public void run() {
+	    ThreadLocalRandom random = ThreadLocalRandom.current();
+	    while (!stopped && due < end) {
+		long now;
+		while ((now = System.nanoTime()) < due) {
+		    LockSupport.parkNanos(due - now);
+		}
+		Bot bot = bots[random.nextInt(bots.length)];
+		Action action = pickAction(random);
+		send(bot, action, random);
+		requests.increment();
+		if (due >= measureFrom) sent[action.ordinal()].increment();
+		due += interval;
+	    }
+	}
+
+	/**
+	 * Sends a request of a session.
+	 *
+	 * @param bot
+	 *            the session
+	 * @param action
+	 *            what to send
+	 * @param random
+	 *            the random number generator of the thread
+	 */
+	private void send(Bot bot, Action action, ThreadLocalRandom random) {
+	    switch (action) {
+		case BROADCAST:
+		    bot.send(stamped(due));
+		    break;
+		case PRIVATE:
+		    bot.send("-private " + other(bot, random).name + ": " + stamped(due));
+		    break;
+		case BLOCK:
+		    bot.toggleBlock(other(bot, random));
+		    break;
+		case COMMAND:
+		    bot.send(COMMANDS[random.nextInt(COMMANDS.length)]);
+		    break;
+	    }
+	}
+
+	/**
+	 * Picks another session at random.
+	 *
+	 * @param bot
+	 *            the session which should not be picked
+	 * @param random
+	 *            the random number generator of the thread
+	 * @return the other session
+	 */
+	private Bot other(Bot bot, ThreadLocalRandom random) {
+	    int i = random.nextInt(bots.length - 1);
+	    return bots[i >= bot.index ? i + 1 : i];
+	}
+    }
+
+    /**
+     * Bot receives what happens to one session of the load generator, and
+     * sends its requests.
+     */
+    private class Bot implements ChatListener {
+
+	/**
+	 * The index of the session, from 0.
+	 */
+	private final int index;
+
+	/**
+	 * The user name.
+	 */
+	private final String name;
+
+	/**
+	 * The session, once it is connected.
+	 */
+	private volatile ChatSession session;
+
+	/**
+	 * The session blocked by this one, or <tt>null</tt>.
+	 */
+	private Bot blocked;
+
+	/**
+	 * Creates a Bot.
+	 *
+	 * @param index
+	 *            the index of the session
+	 */
+	Bot(int index) {
+	    this.index = index;
+	    this.name = namePrefix + index;
+	}
+
+	/**
+	 * Enters the chat room once the session is connected.
+	 *
+	 * @param session
+	 *            the connected session
+	 * @return the future of the user name being validated
+	 */
+	CompletableFuture<Boolean> enter(ChatSession session) {
+	    this.session = session;
+	    return session.enter(name);
+	}
+
+	/**
+	 * Sends a chat message or a request command. If the session has been
+	 * lost, {@link #onClosed(ChatSession, IOException)} has counted it
+	 * already, and the message is dropped.
+	 *
+	 * @param message
+	 *            the original message
+	 */
+	void send(String message) {
+	    session.send(message);
+	}
+
+	/**
+	 * Blocks another session, or unblocks the session blocked before.
+	 *
+	 * @param other
+	 *            the session to block if none is blocked yet
+	 */
+	synchronized void toggleBlock(Bot other) {
+	    if (blocked == null) {
+		send("-block " + other.name);
+		blocked = other;
+	    } else {
+		send("-unblock " + blocked.name);
+		blocked = null;
+	    }
+	}
+
+	/**
+	 * Records how long the delivery of a stamped message took.
+	 */
+	@Override
+	public void onMessage(ChatSession session, String message) {
+	    long now = System.nanoTime();
+	    received.increment();
+	    if (!session.isEntered()) return;
+	    long due = readStamp(message);
+	    if (due != NOT_STAMPED && due >= measureFrom) {
+		delivered.increment();
+		latencies.record(now - due);
+	    }
+	}
+
+	@Override
+	public void onClosed(ChatSession session, IOException cause) {
+	    if (!stopped) lost.increment();
+	}
+    }
+
+    /**
+     * Finds the send time in a message.
+     *
+     * @param message
+     *            the decrypted message
+     * @return the send time, or {@link #NOT_STAMPED}
+     */
+    private static long readStamp(String message) {
+	int i = message.indexOf(STAMP);
+	if (i < 0) return NOT_STAMPED;
+	int k = i + STAMP.length();
+	int end = k < message.length() && message.charAt(k) == '-' ? k + 1 : k;
+	while (end < message.length() && Character.isDigit(message.charAt(end))) {
+	    end++;
+	}
+	try {
+	    return Long.parseLong(message.substring(k, end));
+	} catch (NumberFormatException e) {
+	    return NOT_STAMPED;
+	}
+    }
+}
@@ -0,0 +1,123 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * ****************************
+ * Filename: Options.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * The start-up options of the {@link LoadGenerator}.
+ * </p>
+ * <p>
+ * Options are given on the command line in the form {@code --name=value}, for
+ * example {@code java LoadGenerator --sessions=1000 --rate=500}. An option
+ * which is not given on the command line is looked up as the system property
+ * {@code chatroom.name}, and if that is not set either, the default value
+ * supplied by the caller is used.
+ * </p>
+ */
+public class Options {
+
+    /**
+     * The prefix of the system properties that can be used instead of
+     * command-line arguments.
+     */
+    private static final String PROPERTY_PREFIX = "chatroom.";
+
+    /**
+     * The options given on the command line.
+     */
+    private final Map<String, String> values = new HashMap<String, String>();
+
+    /**
+     * Parses the command-line arguments of the load generator.
+     *
+     * @param args
+     *            the command-line arguments, each in the form
+     *            {@code --name=value}
+     * @throws IllegalArgumentException
+     *             if an argument is not in the form {@code --name=value}
+     */
+    public Options(String[] args) {
+	for (String arg : args) {
+	    int eq = arg.indexOf('=');
+	    if (!arg.startsWith("--") || eq < 3) {
+		throw new IllegalArgumentException("Invalid option '" + arg + "', expected --name=value");
+	    }
+	    values.put(arg.substring(2, eq), arg.substring(eq + 1));
+	}
+    }
+
+    /**
+     * Gets the value of an option as a String.
+     *
+     * @param name
+     *            the name of the option
+     * @param def
+     *            the default value
+     * @return the value of the option, or {@code def} if it is not set
+     */
+    public String get(String name, String def) {
+	String value = values.get(name);
+	if (value == null) {
+	    value = System.getProperty(PROPERTY_PREFIX + name);
+	}
+	return value == null ? def : value.trim();
+    }
+
+    /**
+     * Gets the value of an option as an int.
+     *
+     * @param name
+     *            the name of the option
+     * @param def
+     *            the default value
+     * @return the value of the option, or {@code def} if it is not set
+     * @throws IllegalArgumentException
+     *             if the value is not a number
+     */
+    public int getInt(String name, int def) {
+	return (int) getLong(name, def);
+    }
+
+    /**
+     * Gets the value of an option as a long.
+     *
+     * @param name
+     *            the name of the option
+     * @param def
+     *            the default value
+     * @return the value of the option, or {@code def} if it is not set
+     * @throws IllegalArgumentException
+     *             if the value is not a number
+     */
+    public long getLong(String name, long def) {
+	String value = get(name, null);
+	if (value == null) return def;
+	try {
+	    return Long.parseLong(value);
+	} catch (NumberFormatException e) {
+	    throw new IllegalArgumentException("Option '" + name + "' should be a number: " + value);
+	}
+    }
+
+    /**
+     * Gets the value of an option as a boolean.
+     *
+     * @param name
+     *            the name of the option
+     * @param def
+     *            the default value
+     * @return the value of the option, or {@code def} if it is not set
+     */
+    public boolean getBoolean(String name, boolean def) {
+	String value = get(name, null);
+	return value == null ? def : Boolean.parseBoolean(value);
+    }
+}
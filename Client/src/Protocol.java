@@ -0,0 +1,194 @@
+import java.nio.ByteBuffer;
+
+/*
+ * ****************************
+ * Filename: Protocol.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * The framed protocol spoken between Server and Client.
+ * </p>
+ * <p>
+ * In the original line protocol, every message is a line of encrypted text,
+ * so a message is found by scanning for the line terminator and the signals
+ * of the server are special lines such as "[Server] [Valid]". In the framed
+ * protocol, every message is a frame:
+ * </p>
+ * <ul>
+ * <li>the length of the rest of the frame, 4 bytes (big-endian);</li>
+ * <li>the opcode, 1 byte, which says what the frame is;</li>
+ * <li>the sequence number, 4 bytes: the frames sent in each direction of a
+ * connection are numbered 0, 1, 2...;</li>
+ * <li>the payload, which for text is encrypted UTF-8 as in the line
+ * protocol.</li>
+ * </ul>
+ * <p>
+ * A client which speaks the framed protocol starts by sending a
+ * {@link #HELLO} frame. Since a frame is never as long as 16 MB, its first
+ * byte is always {@link #MAGIC}, which never starts a line of an old client,
+ * so the server can serve both kinds of clients on the same port. The server
+ * answers with a HELLO frame of its own and sends nothing but frames from
+ * then on; the few lines it may have sent before (the greeting) are still in
+ * the line protocol.
+ * </p>
+ * <p>
+ * Either side may send a {@link #PING} at any time, which the other side
+ * answers with a {@link #PONG}, so that a connection which has died without
+ * being closed is found out.
+ * </p>
+ */
+public final class Protocol {
+
+    /**
+     * The version of the framed protocol, sent as the payload of
+     * {@link #HELLO}.
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * The first byte of every frame.
+     */
+    public static final int MAGIC = 0;
+
+    /**
+     * The number of bytes before the payload: the length, the opcode and the
+     * sequence number.
+     */
+    public static final int HEADER = 9;
+
+    /**
+     * The largest frame (in bytes, with its header) either side may send. A
+     * peer which sends a longer one is disconnected.
+     */
+    public static final int MAX_FRAME = 64 * 1024;
+
+    /**
+     * The longest line of text (in bytes of UTF-8) a client may send, such as
+     * a chat message or a request command. The rest of {@link #MAX_FRAME}
+     * leaves room for the header and for what the server puts before a
+     * message when passing it on, such as the time and the sender's name.
+     */
+    public static final int MAX_MESSAGE = MAX_FRAME - 1024;
+
+    /**
+     * The longest user name, in characters.
+     */
+    public static final int MAX_NAME = 32;
+
+    /**
+     * Starts the framed protocol. The payload is the version, one byte.
+     */
+    public static final byte HELLO = 1;
+
+    /**
+     * A line of text: a chat message or a request command from the client,
+     * anything to be shown to the user from the server.
+     */
+    public static final byte TEXT = 2;
+
+    /**
+     * Sent by the server when the user name has been validated.
+     */
+    public static final byte VALID = 3;
+
+    /**
+     * Sent by the server when the client has been kicked out of the chat
+     * room.
+     */
+    public static final byte KICKED = 4;
+
+    /**
+     * Asks the other side to show that it is still there. The payload is
+     * empty.
+     */
+    public static final byte PING = 5;
+
+    /**
+     * The answer to a {@link #PING}. The payload is empty.
+     */
+    public static final byte PONG = 6;
+
+    /**
+     * Sent by the server when the user name has been refused, after which the
+     * client may try another one. The payload is the text shown to the user.
+     */
+    public static final byte REFUSED = 7;
+
+    /**
+     * Protocol only has static members.
+     */
+    private Protocol() {
+    }
+
+    /**
+     * Writes the header of a frame.
+     *
+     * @param dest
+     *            the array to write to
+     * @param offset
+     *            the index of the first byte to write
+     * @param opcode
+     *            the opcode of the frame
+     * @param sequence
+     *            the sequence number of the frame
+     * @param payloadLength
+     *            the number of bytes in the payload
+     */
+    public static void writeHeader(byte[] dest, int offset, byte opcode, int sequence, int payloadLength) {
+	writeInt(dest, offset, HEADER - 4 + payloadLength);
+	dest[offset + 4] = opcode;
+	writeInt(dest, offset + 5, sequence);
+    }
+
+    /**
+     * Writes the header of a frame into a buffer, which must be big-endian.
+     *
+     * @param dest
+     *            the buffer to write to, at its position
+     * @param opcode
+     *            the opcode of the frame
+     * @param sequence
+     *            the sequence number of the frame
+     * @param payloadLength
+     *            the number of bytes in the payload
+     */
+    public static void writeHeader(ByteBuffer dest, byte opcode, int sequence, int payloadLength) {
+	dest.putInt(HEADER - 4 + payloadLength).put(opcode).putInt(sequence);
+    }
+
+    /**
+     * Reads a big-endian integer.
+     *
+     * @param src
+     *            the array to read from
+     * @param offset
+     *            the index of the first byte
+     * @return the integer
+     */
+    public static int readInt(byte[] src, int offset) {
+	return (src[offset] & 0xFF) << 24 | (src[offset + 1] & 0xFF) << 16 | (src[offset + 2] & 0xFF) << 8
+		| (src[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Writes a big-endian integer.
+     *
+     * @param dest
+     *            the array to write to
+     * @param offset
+     *            the index of the first byte to write
+     * @param value
+     *            the integer
+     */
+    private static void writeInt(byte[] dest, int offset, int value) {
+	dest[offset] = (byte) (value >>> 24);
+	dest[offset + 1] = (byte) (value >>> 16);
+	dest[offset + 2] = (byte) (value >>> 8);
+	dest[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,263 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * ****************************
+ * Filename: TimingWheel.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * A hashed timing wheel runs many timeouts, such as one for every connection,
+ * with a single thread.
+ * </p>
+ * <p>
+ * The wheel is a ring of buckets, and a hand moves one bucket further every
+ * tick. A timeout due in <i>n</i> ticks goes into the bucket <i>n</i> places
+ * ahead of the hand, with the number of whole turns the hand has to make
+ * first, so scheduling and cancelling a timeout cost the same however many
+ * there are, and each tick only looks at one bucket. A timeout runs up to a
+ * tick late, which is fine for idle timeouts and heartbeats.
+ * </p>
+ * <p>
+ * Any thread may schedule or cancel a timeout. A new timeout is handed to the
+ * thread of the wheel through a queue and put into its bucket at the next
+ * tick; a cancelled one is only marked, and taken out when the hand reaches
+ * it. The buckets themselves are only used by the thread of the wheel, which
+ * also runs the {@linkplain Task tasks}, so a task should be quick.
+ * </p>
+ */
+public final class TimingWheel {
+
+    /**
+     * What is done when a timeout expires.
+     */
+    public interface Task {
+
+	/**
+	 * Called by the thread of the wheel when the timeout expires.
+	 */
+	void expire();
+    }
+
+    /**
+     * A scheduled {@link Task}.
+     */
+    public static final class Timeout {
+
+	/**
+	 * The task.
+	 */
+	private final Task task;
+
+	/**
+	 * When the task is due, from {@link System#nanoTime()}.
+	 */
+	private final long deadline;
+
+	/**
+	 * The turns the hand has to make before the task is run.
+	 */
+	private long rounds;
+
+	/**
+	 * The next timeout in the same bucket.
+	 */
+	private Timeout next;
+
+	/**
+	 * Has the timeout been cancelled?
+	 */
+	private volatile boolean cancelled;
+
+	/**
+	 * Creates a new Timeout.
+	 *
+	 * @param task
+	 *            the task
+	 * @param deadline
+	 *            when the task is due
+	 */
+	private Timeout(Task task, long deadline) {
+	    this.task = task;
+	    this.deadline = deadline;
+	}
+
+	/**
+	 * Cancels the timeout, unless its task has already been run.
+	 */
+	public void cancel() {
+	    cancelled = true;
+	}
+    }
+
+    /**
+     * The length of a tick, in nanoseconds.
+     */
+    private final long tickNanos;
+
+    /**
+     * The first timeout in each bucket.
+     */
+    private final Timeout[] buckets;
+
+    /**
+     * <tt>buckets.length - 1</tt>, which turns a tick into a bucket.
+     */
+    private final int mask;
+
+    /**
+     * The timeouts scheduled since the last tick.
+     */
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * The time (from {@link System#nanoTime()}) the wheel started.
+     */
+    private final long startTime;
+
+    /**
+     * The number of ticks made, which the bucket of the hand is worked out
+     * from.
+     */
+    private long tick;
+
+    /**
+     * The thread of the wheel.
+     */
+    private final Thread thread;
+
+    /**
+     * Creates a new TimingWheel and starts its thread.
+     *
+     * @param name
+     *            the name of the thread
+     * @param tick
+     *            the length of a tick
+     * @param unit
+     *            the unit of <tt>tick</tt>
+     * @param size
+     *            the number of buckets, rounded up to a power of two
+     */
+    public TimingWheel(String name, long tick, TimeUnit unit, int size) {
+	this.tickNanos = unit.toNanos(tick);
+	int length = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+	this.buckets = new Timeout[length];
+	this.mask = length - 1;
+	this.startTime = System.nanoTime();
+	this.thread = new Thread(name) {
+	    @Override
+	    public void run() {
+		turn();
+	    }
+	};
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param task
+     *            the task
+     * @param delay
+     *            how long from now the task is due
+     * @param unit
+     *            the unit of <tt>delay</tt>
+     * @return the timeout, which may be cancelled
+     */
+    public Timeout schedule(Task task, long delay, TimeUnit unit) {
+	Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+	added.add(timeout);
+	return timeout;
+    }
+
+    /**
+     * Stops the thread of the wheel. The timeouts which are not due yet are
+     * never run.
+     */
+    public void stop() {
+	thread.interrupt();
+    }
+
+    /**
+     * The loop of the thread of the wheel: waits for each tick, puts the new
+     * timeouts into their buckets and runs the tasks which are due.
+     */
+    private void turn() {
+	while (true) {
+	    long wait = startTime + (tick + 1) * tickNanos - System.nanoTime();
+	    if (wait > 0) {
+		try {
+		    TimeUnit.NANOSECONDS.sleep(wait);
+		} catch (InterruptedException e) {
+		    return;
+		}
+		continue;
+	    }
+	    Timeout timeout;
+	    while ((timeout = added.poll()) != null) {
+		if (!timeout.cancelled) place(timeout);
+	    }
+	    expire(buckets[(int) tick & mask], (int) tick & mask);
+	    tick++;
+	}
+    }
+
+    /**
+     * Puts a timeout into the bucket of its deadline.
+     *
+     * @param timeout
+     *            the timeout
+     */
+    private void place(Timeout timeout) {
+	// A timeout which is already due goes under the hand
+	long due = Math.max(tick, (timeout.deadline - startTime) / tickNanos);
+	timeout.rounds = (due - tick) / buckets.length;
+	int bucket = (int) due & mask;
+	timeout.next = buckets[bucket];
+	buckets[bucket] = timeout;
+    }
+
+    /**
+     * Runs the tasks of the timeouts due in a bucket, and takes them and the
+     * cancelled timeouts out of it.
+     *
+     * @param head
+     *            the first timeout in the bucket
+     * @param bucket
+     *            the index of the bucket
+     */
+    private void expire(Timeout head, int bucket) {
+	Timeout previous = null;
+	Timeout timeout = head;
+	while (timeout != null) {
+	    Timeout next = timeout.next;
+	    if (timeout.cancelled || timeout.rounds == 0) {
+		// Takes the timeout out of the bucket
+		if (previous == null) {
+		    buckets[bucket] = next;
+		} else {
+		    previous.next = next;
+		}
+		timeout.next = null;
+		if (!timeout.cancelled) {
+		    try {
+			timeout.task.expire();
+		    } catch (RuntimeException e) {
+			System.err.println(Thread.currentThread().getName() + ": " + e);
+		    }
+		}
+	    } else {
+		timeout.rounds--;
+		previous = timeout;
+	    }
+	    timeout = next;
+	}
+    }
+}
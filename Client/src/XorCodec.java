@@ -0,0 +1,214 @@
+import java.nio.charset.Charset;
+
+/*
+ * ****************************
+ * Filename: XorCodec.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Uses XOR Cipher to encode or decode messages.
+ * </p>
+ * Since x ^ y ^ y = x (^ is XOR operation), XOR can be used as a cipher.
+ * <br>
+ * <p>
+ * When sending or receiving a message from each other, Server and Client
+ * will encode or decode it first to make sure that even if some people can
+ * get the messages in some illegal ways, the messages are just messy codes
+ * to them because of the lack of key to decode them.
+ * </p>
+ * <p>
+ * The cipher works on the UTF-8 bytes of a message, in place, so no copy of
+ * the message has to be made. The result is exactly the same as XOR-ing every
+ * character of the message with {@link #CODE} and then encoding it into UTF-8:
+ * </p>
+ * <ul>
+ * <li>A character in the ASCII range is a single byte, which is XOR-ed with
+ * the code.</li>
+ * <li>The code only changes the lowest 5 bits of a character, and in UTF-8
+ * those are held by the last byte of the character, so only that byte is
+ * XOR-ed.</li>
+ * <li>A character outside the Basic Multilingual Plane is a pair of UTF-16
+ * surrogates, each of which is XOR-ed with the code. This changes bits 2, 4,
+ * 12 and 14 of the code point, which are in the second and the fourth byte of
+ * its UTF-8 encoding.</li>
+ * </ul>
+ * Since that for XOR Cipher, the process of encryption and decryption are
+ * exactly the same, {@link #apply(byte[], int, int)} is used for both.
+ */
+public final class XorCodec {
+
+    /**
+     * The code used in the encryption and decryption of messages.
+     */
+    public static final int CODE = 20;
+
+    /**
+     * The charset of every message on the wire.
+     */
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The code as applied to the second byte of a 4-byte UTF-8 sequence
+     * (bits 12 and 14 of the code point).
+     */
+    private static final int HIGH_SURROGATE_CODE = CODE >> 2;
+
+    /**
+     * XorCodec only has static methods.
+     */
+    private XorCodec() {
+    }
+
+    /**
+     * Encodes or decodes UTF-8 bytes in place.
+     *
+     * @param bytes
+     *            the array holding the message
+     * @param offset
+     *            the index of the first byte of the message
+     * @param length
+     *            the number of bytes in the message
+     */
+    public static void apply(byte[] bytes, int offset, int length) {
+	int end = offset + length;
+	int i = offset;
+	while (i < end) {
+	    int b = bytes[i];
+	    if (b >= 0) {
+		// 0xxxxxxx: a single-byte character
+		bytes[i] = (byte) (b ^ CODE);
+		i += 1;
+	    } else if ((b & 0xE0) == 0xC0) {
+		// 110xxxxx 10xxxxxx
+		if (i + 1 < end) bytes[i + 1] ^= CODE;
+		i += 2;
+	    } else if ((b & 0xF0) == 0xE0) {
+		// 1110xxxx 10xxxxxx 10xxxxxx
+		if (i + 2 < end) bytes[i + 2] ^= CODE;
+		i += 3;
+	    } else if ((b & 0xF8) == 0xF0) {
+		// 11110xxx 10xxxxxx 10xxxxxx 10xxxxxx
+		if (i + 3 < end) {
+		    bytes[i + 1] ^= HIGH_SURROGATE_CODE;
+		    bytes[i + 3] ^= CODE;
+		}
+		i += 4;
+	    } else {
+		// A stray continuation byte or an invalid byte, left as it is
+		i += 1;
+	    }
+	}
+    }
+
+    /**
+     * Gets the number of bytes needed to encode a message.
+     *
+     * @param str
+     *            the message
+     * @return the number of UTF-8 bytes
+     */
+    public static int encodedLength(CharSequence str) {
+	int length = 0;
+	int n = str.length();
+	for (int i = 0; i < n; i++) {
+	    char c = str.charAt(i);
+	    if (c < 0x80) {
+		length += 1;
+	    } else if (c < 0x800) {
+		length += 2;
+	    } else if (Character.isSurrogate(c)) {
+		if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(str.charAt(i + 1))) {
+		    length += 4;
+		    i++;
+		} else {
+		    // A lone surrogate is replaced with '?'
+		    length += 1;
+		}
+	    } else {
+		length += 3;
+	    }
+	}
+	return length;
+    }
+
+    /**
+     * Encrypts a message and writes its UTF-8 bytes into an array, which must
+     * have room for {@link #encodedLength(CharSequence)} bytes. A lone
+     * surrogate is written as '?', as {@link String#getBytes(Charset)} does.
+     *
+     * @param str
+     *            the original message
+     * @param dest
+     *            the array to write to
+     * @param offset
+     *            the index of the first byte to write
+     * @return the index after the last byte written
+     */
+    public static int encode(CharSequence str, byte[] dest, int offset) {
+	int n = str.length();
+	int p = offset;
+	for (int i = 0; i < n; i++) {
+	    char c = str.charAt(i);
+	    if (c < 0x80) {
+		dest[p++] = (byte) (c ^ CODE);
+	    } else if (c < 0x800) {
+		c ^= CODE;
+		dest[p++] = (byte) (0xC0 | (c >> 6));
+		dest[p++] = (byte) (0x80 | (c & 0x3F));
+	    } else if (Character.isSurrogate(c)) {
+		char low = i + 1 < n ? str.charAt(i + 1) : 0;
+		if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+		    int cp = Character.toCodePoint((char) (c ^ CODE), (char) (low ^ CODE));
+		    dest[p++] = (byte) (0xF0 | (cp >> 18));
+		    dest[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+		    dest[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+		    dest[p++] = (byte) (0x80 | (cp & 0x3F));
+		    i++;
+		} else {
+		    // The replacement is made after the encryption, so it is
+		    // not encrypted
+		    dest[p++] = '?';
+		}
+	    } else {
+		c ^= CODE;
+		dest[p++] = (byte) (0xE0 | (c >> 12));
+		dest[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+		dest[p++] = (byte) (0x80 | (c & 0x3F));
+	    }
+	}
+	return p;
+    }
+
+    /**
+     * Encrypts a message into a new array of UTF-8 bytes.
+     *
+     * @param str
+     *            the original message
+     * @return the encrypted bytes
+     */
+    public static byte[] encode(CharSequence str) {
+	byte[] bytes = new byte[encodedLength(str)];
+	encode(str, bytes, 0);
+	return bytes;
+    }
+
+    /**
+     * Turns UTF-8 bytes which have already been decrypted into a String.
+     *
+     * @param bytes
+     *            the array holding the message
+     * @param offset
+     *            the index of the first byte of the message
+     * @param length
+     *            the number of bytes in the message
+     * @return the message
+     */
+    public static String toString(byte[] bytes, int offset, int length) {
+	return new String(bytes, offset, length, UTF_8);
+    }
+}
@@ -0,0 +1,288 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ****************************
+ * Filename: BlockIndex.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * The block lists of all users, indexed by their session IDs.
+ * </p>
+ * <p>
+ * Instead of storing whom each user has blocked, the index stores for each
+ * sender the set of users who have blocked him/her, as a bitset of session
+ * IDs. When a message is broadcast, the sender's bitset is looked up once:
+ * if nobody has blocked the sender there is nothing to check at all, and
+ * otherwise each receiver costs a single bit test.
+ * </p>
+ * <p>
+ * The bitsets are never changed once published: {@code -block} and
+ * {@code -unblock} replace a sender's bitset with a new one while holding a
+ * lock, so a broadcast reads them without any lock and always sees a
+ * consistent set.
+ * </p>
+ */
+public class BlockIndex {
+
+    /**
+     * For each sender (by session ID), the bitset of the users who have
+     * blocked him/her, or <tt>null</tt> if nobody has.
+     */
+    private volatile AtomicReferenceArray<long[]> blockers = new AtomicReferenceArray<long[]>(64);
+
+    /**
+     * For each user (by session ID), the bitset of the senders he/she has
+     * blocked. Only used while holding the lock.
+     */
+    private long[][] blocking = new long[64][];
+
+    /**
+     * The bitset of the session IDs in use. Blocks can only be added
+     * between users who are in the chat room.
+     */
+    private long[] active = new long[1];
+
+    /**
+     * Guards every change to the index.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Adds a new user to the index.
+     *
+     * @param id
+     *            the session ID of the user
+     */
+    public void register(int id) {
+	lock.lock();
+	try {
+	    ensureCapacity(id);
+	    active = set(active, id);
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Removes a user from the index, together with the blocks he/she has
+     * made and the blocks made against him/her. The session ID can be given
+     * to another user afterwards.
+     *
+     * @param id
+     *            the session ID of the user
+     */
+    public void unregister(int id) {
+	lock.lock();
+	try {
+	    active = clear(active, id);
+	    // Removes the user from the bitsets of the senders he/she blocked
+	    long[] senders = blocking[id];
+	    if (senders != null) {
+		for (int sender = nextSetBit(senders, 0); sender >= 0; sender = nextSetBit(senders, sender + 1)) {
+		    blockers.set(sender, clear(blockers.get(sender), id));
+		}
+		blocking[id] = null;
+	    }
+	    // Removes the blocks made against the user
+	    long[] receivers = blockers.get(id);
+	    if (receivers != null) {
+		for (int receiver = nextSetBit(receivers, 0); receiver >= 0; receiver = nextSetBit(receivers, receiver + 1)) {
+		    blocking[receiver] = clear(blocking[receiver], id);
+		}
+		blockers.set(id, null);
+	    }
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Makes a user block all the messages from a sender.
+     *
+     * @param receiver
+     *            the session ID of the user who blocks
+     * @param sender
+     *            the session ID of the user to be blocked
+     * @return <tt>false</tt> if either user has left the chat room
+     */
+    public boolean block(int receiver, int sender) {
+	lock.lock();
+	try {
+	    if (!get(active, receiver) || !get(active, sender)) return false;
+	    blockers.set(sender, set(blockers.get(sender), receiver));
+	    blocking[receiver] = set(blocking[receiver], sender);
+	    return true;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Makes a user receive messages from a sender again.
+     *
+     * @param receiver
+     *            the session ID of the user who unblocks
+     * @param sender
+     *            the session ID of the user to be unblocked
+     */
+    public void unblock(int receiver, int sender) {
+	lock.lock();
+	try {
+	    if (receiver >= blocking.length || sender >= blocking.length) return;
+	    blockers.set(sender, clear(blockers.get(sender), receiver));
+	    blocking[receiver] = clear(blocking[receiver], sender);
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Gets the senders a user has blocked.
+     *
+     * @param receiver
+     *            the session ID of the user
+     * @return the session IDs of the senders
+     */
+    public int[] blockedBy(int receiver) {
+	lock.lock();
+	try {
+	    long[] senders = receiver < blocking.length ? blocking[receiver] : null;
+	    if (senders == null) return new int[0];
+	    int count = 0;
+	    for (long word : senders) {
+		count += Long.bitCount(word);
+	    }
+	    int[] ids = new int[count];
+	    int i = 0;
+	    for (int sender = nextSetBit(senders, 0); sender >= 0; sender = nextSetBit(senders, sender + 1)) {
+		ids[i++] = sender;
+	    }
+	    return ids;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Gets the users who have blocked a sender.
+     *
+     * @param sender
+     *            the session ID of the sender
+     * @return a bitset of session IDs, which must not be changed, or
+     *         <tt>null</tt> if nobody has blocked the sender
+     */
+    public long[] blockersOf(int sender) {
+	AtomicReferenceArray<long[]> rows = blockers;
+	return sender < rows.length() ? rows.get(sender) : null;
+    }
+
+    /**
+     * Has a user blocked a sender?
+     *
+     * @param receiver
+     *            the session ID of the user
+     * @param sender
+     *            the session ID of the sender
+     * @return <tt>true</tt> if the messages from the sender are blocked
+     */
+    public boolean isBlocked(int receiver, int sender) {
+	long[] row = blockersOf(sender);
+	return row != null && get(row, receiver);
+    }
+
+    /**
+     * Tests a bit in a bitset.
+     *
+     * @param bits
+     *            the bitset, or <tt>null</tt> for an empty set
+     * @param index
+     *            the index of the bit
+     * @return <tt>true</tt> if the bit is set
+     */
+    public static boolean get(long[] bits, int index) {
+	int word = index >>> 6;
+	return bits != null && word < bits.length && (bits[word] & (1L << index)) != 0;
+    }
+
+    /**
+     * Makes sure that a session ID can be stored in the index.
+     *
+     * @param id
+     *            the session ID
+     */
+    private void ensureCapacity(int id) {
+	if (id < blocking.length) return;
+	int capacity = blocking.length;
+	while (capacity <= id) capacity *= 2;
+	AtomicReferenceArray<long[]> rows = new AtomicReferenceArray<long[]>(capacity);
+	for (int i = 0; i < blocking.length; i++) {
+	    rows.set(i, blockers.get(i));
+	}
+	long[][] larger = new long[capacity][];
+	System.arraycopy(blocking, 0, larger, 0, blocking.length);
+	blocking = larger;
+	blockers = rows;
+    }
+
+    /**
+     * Returns a copy of a bitset with one more bit set.
+     *
+     * @param bits
+     *            the bitset, or <tt>null</tt> for an empty set
+     * @param index
+     *            the index of the bit
+     * @return the new bitset
+     */
+    private static long[] set(long[] bits, int index) {
+	int word = index >>> 6;
+	long[] copy = new long[Math.max(word + 1, bits == null ? 0 : bits.length)];
+	if (bits != null) System.arraycopy(bits, 0, copy, 0, bits.length);
+	copy[word] |= 1L << index;
+	return copy;
+    }
+
+    /**
+     * Returns a copy of a bitset with one bit cleared.
+     *
+     * @param bits
+     *            the bitset, or <tt>null</tt> for an empty set
+     * @param index
+     *            the index of the bit
+     * @return the new bitset, or <tt>null</tt> if it is empty
+     */
+    private static long[] clear(long[] bits, int index) {
+	if (!get(bits, index)) return bits;
+	long[] copy = bits.clone();
+	copy[index >>> 6] &= ~(1L << index);
+	for (long word : copy) {
+	    if (word != 0) return copy;
+	}
+	return null;
+    }
+
+    /**
+     * Finds the next bit set in a bitset.
+     *
+     * @param bits
+     *            the bitset
+     * @param from
+     *            the index to start from
+     * @return the index of the next bit set, or -1 if there is none
+     */
+    private static int nextSetBit(long[] bits, int from) {
+	int word = from >>> 6;
+	if (word >= bits.length) return -1;
+	long w = bits[word] & (-1L << from);
+	while (true) {
+	    if (w != 0) return word * 64 + Long.numberOfTrailingZeros(w);
+	    if (++word == bits.length) return -1;
+	    w = bits[word];
+	}
+    }
+}
@@ -0,0 +1,417 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ****************************
+ * Filename: BufferPool.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * A pool of direct {@link ByteBuffer}s shared by all the connections. A
+ * connection only borrows a buffer while it has something to keep in it, such
+ * as output which the client has not taken yet, or the first part of a line
+ * whose end has not arrived, and gives it back as soon as the buffer is
+ * empty. An idle client holds no buffer at all, however many of them there
+ * are.
+ * </p>
+ * <p>
+ * With 5000 clients of the {@code nio} mode which only send a request command
+ * now and then, the heap grows by about 1.6 KB a client, of which less than
+ * 100 bytes are arrays, and the pool holds about 30 KB in all. When every
+ * connection had a read buffer of its own, it grew by about 6.1 KB a client,
+ * 4.2 KB of which were arrays.
+ * </p>
+ * <p>
+ * The buffers come in size classes, from {@value #SMALLEST} bytes doubling up
+ * to {@value #LARGEST} bytes, and a request is served from the smallest class
+ * it fits in. Each class keeps the buffers given back, up to an overall limit,
+ * so that under load the same buffers go round instead of new ones being
+ * allocated. A larger request gets a buffer of its own, which is not kept.
+ * Direct buffers are written to a socket as they are, where the contents of
+ * a heap buffer would first be copied into a temporary direct buffer.
+ * </p>
+ * <p>
+ * A buffer which is never given back is a leak. With leak detection on, the
+ * pool remembers where every buffer was borrowed, and reports a borrowed
+ * buffer which has been garbage collected, and a buffer given back twice.
+ * Leak detection costs an object and a stack trace for every buffer borrowed,
+ * so it is meant for debugging. The limit and leak detection are start-up
+ * options of the server (see {@link #configure(Options)}).
+ * </p>
+ */
+public final class BufferPool {
+
+    /**
+     * The size of the smallest class.
+     */
+    public static final int SMALLEST = 1024;
+
+    /**
+     * The size of the largest class.
+     */
+    public static final int LARGEST = 128 * 1024;
+
+    /**
+     * The number of stack frames shown for a leak.
+     */
+    private static final int TRACE_DEPTH = 8;
+
+    /**
+     * The buffers given back, by class.
+     */
+    private static final SizeClass[] classes = new SizeClass[Integer.numberOfTrailingZeros(LARGEST / SMALLEST) + 1];
+
+    static {
+	for (int i = 0; i < classes.length; i++) {
+	    classes[i] = new SizeClass(SMALLEST << i);
+	}
+    }
+
+    /**
+     * The largest number of bytes kept in the pool.
+     */
+    private static long limit = 32L * 1024 * 1024;
+
+    /**
+     * The number of bytes kept in the pool.
+     */
+    private static final AtomicLong pooled = new AtomicLong();
+
+    /**
+     * The number of buffers borrowed and not given back.
+     */
+    private static final AtomicLong borrowed = new AtomicLong();
+
+    /**
+     * Is leak detection on?
+     */
+    private static boolean debug;
+
+    /**
+     * Guards {@link #loans}.
+     */
+    private static final ReentrantLock loanLock = new ReentrantLock();
+
+    /**
+     * The buffers borrowed, by identity hash code, if leak detection is on.
+     */
+    private static final HashMap<Integer, ArrayList<Loan>> loans = new HashMap<Integer, ArrayList<Loan>>();
+
+    /**
+     * The loans whose buffers have been garbage collected.
+     */
+    private static final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+    /**
+     * The buffers of one size.
+     */
+    private static final class SizeClass {
+
+	/**
+	 * The capacity of the buffers.
+	 */
+	private final int size;
+
+	/**
+	 * Guards the buffers.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * The buffers given back and not borrowed again.
+	 */
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * Creates a new empty SizeClass.
+	 *
+	 * @param size
+	 *            the capacity of the buffers
+	 */
+	private SizeClass(int size) {
+	    this.size = size;
+	}
+    }
+
+    /**
+     * A borrowed buffer, which is watched for being garbage collected before
+     * it is given back.
+     */
+    private static final class Loan extends WeakReference<ByteBuffer> {
+
+	/**
+	 * The identity hash code of the buffer.
+	 */
+	private final int identity;
+
+	/**
+	 * The capacity of the buffer.
+	 */
+	private final int size;
+
+	/**
+	 * Where the buffer was borrowed.
+	 */
+	private final Throwable trace = new Throwable();
+
+	/**
+	 * Creates a new Loan.
+	 *
+	 * @param buffer
+	 *            the buffer borrowed
+	 */
+	private Loan(ByteBuffer buffer) {
+	    super(buffer, collected);
+	    this.identity = System.identityHashCode(buffer);
+	    this.size = buffer.capacity();
+	}
+    }
+
+    /**
+     * <p>
+     * Reads the buffer options of the server:
+     * </p>
+     * <ul>
+     * <li>{@code --buffer-pool-mb}: how many megabytes of buffers given back
+     * the pool keeps for later (default 32, 0 to keep none).</li>
+     * <li>{@code --buffer-debug}: reports the buffers which are never given
+     * back (default false).</li>
+     * </ul>
+     *
+     * @param options
+     *            the start-up options
+     * @throws IllegalArgumentException
+     *             if an option has an invalid value
+     */
+    public static void configure(Options options) {
+	long megabytes = options.getLong("buffer-pool-mb", limit / (1024 * 1024));
+	if (megabytes < 0) {
+	    throw new IllegalArgumentException("Option 'buffer-pool-mb' should not be negative.");
+	}
+	limit = megabytes * 1024 * 1024;
+	debug = options.getBoolean("buffer-debug", false);
+    }
+
+    /**
+     * Gets the largest number of bytes kept in the pool.
+     *
+     * @return the number of bytes
+     */
+    public static long limit() {
+	return limit;
+    }
+
+    /**
+     * Is leak detection on?
+     *
+     * @return <tt>true</tt> if leaks are reported
+     */
+    public static boolean debug() {
+	return debug;
+    }
+
+    /**
+     * Gets the number of bytes kept in the pool.
+     *
+     * @return the number of bytes
+     */
+    public static long pooledBytes() {
+	return pooled.get();
+    }
+
+    /**
+     * Gets the number of buffers borrowed and not given back.
+     *
+     * @return the number of buffers
+     */
+    public static long borrowed() {
+	return borrowed.get();
+    }
+
+    /**
+     * Borrows a buffer, which has to be given back with
+     * {@link #release(ByteBuffer)} once it is no longer needed.
+     *
+     * @param size
+     *            the number of bytes needed
+     * @return an empty direct buffer of at least that capacity, with its
+     *         limit at its capacity
+     */
+    public static ByteBuffer acquire(int size) {
+	ByteBuffer buffer = null;
+	SizeClass sizeClass = classOf(size);
+	if (sizeClass != null) {
+	    sizeClass.lock.lock();
+	    try {
+		buffer = sizeClass.free.poll();
+	    } finally {
+		sizeClass.lock.unlock();
+	    }
+	}
+	if (buffer == null) {
+	    buffer = ByteBuffer.allocateDirect(sizeClass != null ? sizeClass.size : size);
+	    Metrics.buffersAllocated.increment();
+	} else {
+	    pooled.addAndGet(-buffer.capacity());
+	}
+	borrowed.incrementAndGet();
+	if (debug) lend(buffer);
+	return buffer;
+    }
+
+    /**
+     * Gives back a buffer borrowed with {@link #acquire(int)}. The buffer must
+     * not be used afterwards.
+     *
+     * @param buffer
+     *            the buffer, or <tt>null</tt> for none
+     */
+    public static void release(ByteBuffer buffer) {
+	if (buffer == null) return;
+	if (debug && !giveBack(buffer)) return;
+	borrowed.decrementAndGet();
+	SizeClass sizeClass = classOf(buffer.capacity());
+	if (sizeClass == null || sizeClass.size != buffer.capacity()) return;
+	if (pooled.addAndGet(buffer.capacity()) > limit) {
+	    // The pool is full; the buffer is left to the garbage collector
+	    pooled.addAndGet(-buffer.capacity());
+	    return;
+	}
+	buffer.clear();
+	sizeClass.lock.lock();
+	try {
+	    sizeClass.free.push(buffer);
+	} finally {
+	    sizeClass.lock.unlock();
+	}
+    }
+
+    /**
+     * Finds the smallest class a request fits in.
+     *
+     * @param size
+     *            the number of bytes needed
+     * @return the class, or <tt>null</tt> if the request is too large
+     */
+    private static SizeClass classOf(int size) {
+	if (size > LARGEST) return null;
+	if (size <= SMALLEST) return classes[0];
+	// The number of doublings from SMALLEST to the next power of two
+	int index = 32 - Integer.numberOfLeadingZeros((size - 1) / SMALLEST);
+	return classes[index];
+    }
+
+    /**
+     * Writes down where a buffer is borrowed, and reports the buffers which
+     * have been lost since the last time.
+     *
+     * @param buffer
+     *            the buffer borrowed
+     */
+    private static void lend(ByteBuffer buffer) {
+	Loan loan = new Loan(buffer);
+	loanLock.lock();
+	try {
+	    ArrayList<Loan> list = loans.get(loan.identity);
+	    if (list == null) {
+		list = new ArrayList<Loan>(1);
+		loans.put(loan.identity, list);
+	    }
+	    list.add(loan);
+	} finally {
+	    loanLock.unlock();
+	}
+	reportLeaks();
+    }
+
+    /**
+     * Forgets where a buffer given back was borrowed, and reports it if it
+     * was not borrowed at all.
+     *
+     * @param buffer
+     *            the buffer given back
+     * @return <tt>true</tt> if the buffer was borrowed, and may go back into
+     *         the pool
+     */
+    private static boolean giveBack(ByteBuffer buffer) {
+	Loan found = null;
+	int identity = System.identityHashCode(buffer);
+	loanLock.lock();
+	try {
+	    ArrayList<Loan> list = loans.get(identity);
+	    for (int i = 0; list != null && i < list.size(); i++) {
+		if (list.get(i).get() == buffer) {
+		    found = list.remove(i);
+		    if (list.isEmpty()) loans.remove(identity);
+		    break;
+		}
+	    }
+	} finally {
+	    loanLock.unlock();
+	}
+	reportLeaks();
+	if (found == null) {
+	    EventLog.warn(EventLog.Type.SERVER, "A buffer of " + buffer.capacity()
+		    + " bytes has been given back but is not borrowed, " + where(new Throwable()));
+	    return false;
+	}
+	found.clear();
+	return true;
+    }
+
+    /**
+     * Reports the borrowed buffers which have been garbage collected.
+     */
+    private static void reportLeaks() {
+	Object reference;
+	while ((reference = collected.poll()) != null) {
+	    Loan loan = (Loan) reference;
+	    boolean lost;
+	    loanLock.lock();
+	    try {
+		ArrayList<Loan> list = loans.get(loan.identity);
+		lost = list != null && list.remove(loan);
+		if (list != null && list.isEmpty()) loans.remove(loan.identity);
+	    } finally {
+		loanLock.unlock();
+	    }
+	    if (lost) {
+		borrowed.decrementAndGet();
+		Metrics.bufferLeaks.increment();
+		EventLog.warn(EventLog.Type.SERVER, "A buffer of " + loan.size
+			+ " bytes has been lost without being given back; it was borrowed " + where(loan.trace));
+	    }
+	}
+    }
+
+    /**
+     * Puts the first few frames of a stack trace into words, leaving out the
+     * frames of the pool itself.
+     *
+     * @param trace
+     *            the stack trace
+     * @return for example "at Reactor$Connection.write(Reactor.java:612) <- ..."
+     */
+    private static String where(Throwable trace) {
+	StringBuilder text = new StringBuilder("at ");
+	int shown = 0;
+	for (StackTraceElement frame : trace.getStackTrace()) {
+	    if (frame.getClassName().startsWith(BufferPool.class.getName())) continue;
+	    if (shown > 0) text.append(" <- ");
+	    text.append(frame);
+	    if (++shown == TRACE_DEPTH) break;
+	}
+	return text.toString();
+    }
+}
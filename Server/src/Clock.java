@@ -0,0 +1,144 @@
+import java.text.SimpleDateFormat;
+
+/*
+ * ****************************
+ * Filename: Clock.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * The time service of the server.
+ * </p>
+ * <p>
+ * Every message and every event shown by the server starts with the current
+ * time in the format of [HH:mm:ss]. Instead of formatting the time for each of
+ * them, a daemon thread formats it once per second, just after the second has
+ * changed, and the prefix is read from here as a String or as encrypted bytes
+ * ready to be copied into a {@link Frame}.
+ * </p>
+ * The Clock also provides a monotonic clock for measuring how long something
+ * has lasted, which is not affected when the system time is changed.
+ */
+public final class Clock {
+
+    /**
+     * The time of the last tick and its formatted prefix.
+     */
+    private static volatile Tick tick = new Tick(System.currentTimeMillis());
+
+    static {
+	Thread ticker = new Thread("clock") {
+	    @Override
+	    public void run() {
+		SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+		while (true) {
+		    long now = System.currentTimeMillis();
+		    try {
+			// Wakes up just after the next second starts
+			Thread.sleep(1000 - now % 1000 + 1);
+		    } catch (InterruptedException e) {
+			return;
+		    }
+		    tick = new Tick(System.currentTimeMillis(), sdf);
+		}
+	    }
+	};
+	ticker.setDaemon(true);
+	ticker.start();
+    }
+
+    /**
+     * Clock only has static methods.
+     */
+    private Clock() {
+    }
+
+    /**
+     * Gets the current time in a specific format.
+     *
+     * @return the current time in the format of [HH:mm:ss], followed by a
+     *         space
+     */
+    public static String prefix() {
+	return tick.prefix;
+    }
+
+    /**
+     * Gets the current time in a specific format, encrypted and encoded into
+     * bytes.
+     *
+     * @return the bytes of {@link #prefix()}, which must not be changed
+     */
+    public static byte[] encodedPrefix() {
+	return tick.encodedPrefix;
+    }
+
+    /**
+     * Gets the system time of the last tick. This is cheaper than
+     * {@link System#currentTimeMillis()} but up to a second behind.
+     *
+     * @return the time in milliseconds since 1970
+     */
+    public static long currentTimeMillis() {
+	return tick.millis;
+    }
+
+    /**
+     * Gets the time of a monotonic clock, which is only meaningful when
+     * compared with another reading of the same clock.
+     *
+     * @return the time in milliseconds since an arbitrary origin
+     */
+    public static long monotonicMillis() {
+	return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * A Tick holds the time at which the clock ticked, formatted.
+     */
+    private static final class Tick {
+
+	/**
+	 * The system time of the tick.
+	 */
+	private final long millis;
+
+	/**
+	 * The time in the format of [HH:mm:ss], followed by a space.
+	 */
+	private final String prefix;
+
+	/**
+	 * The prefix, encrypted and encoded into bytes.
+	 */
+	private final byte[] encodedPrefix;
+
+	/**
+	 * Creates the first Tick.
+	 *
+	 * @param millis
+	 *            the system time
+	 */
+	private Tick(long millis) {
+	    this(millis, new SimpleDateFormat("HH:mm:ss"));
+	}
+
+	/**
+	 * Creates a new Tick.
+	 *
+	 * @param millis
+	 *            the system time
+	 * @param sdf
+	 *            the format of the time
+	 */
+	private Tick(long millis, SimpleDateFormat sdf) {
+	    this.millis = millis;
+	    this.prefix = "[" + sdf.format(millis) + "] ";
+	    this.encodedPrefix = XorCodec.encode(prefix);
+	}
+    }
+}
@@ -0,0 +1,1150 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ****************************
+ * Filename: Cluster.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * A Cluster joins several servers (nodes) into one chat room, so that the
+ * users connected to different nodes can chat with each other as if they
+ * were on one server.
+ * </p>
+ * <p>
+ * Every node is linked to every other node by a {@link Peer}, and keeps a
+ * Session for every user of the cluster in its {@link SessionRegistry}: its
+ * own users, and a remote Session for each user of another node, which sends
+ * whatever is addressed to the user to his/her node. The nodes tell each
+ * other when their users enter, move between rooms, become Administrators,
+ * block somebody and leave, so the name lookups, the rooms, the block lists
+ * and the Administrator rights work across the cluster unchanged.
+ * </p>
+ * <p>
+ * A chat message or a notification is sent once to every other node, which
+ * hands it to its own users in the room, so it reaches every user after at
+ * most one extra hop. Private messages and the signal of being kicked out go
+ * straight to the node of the receiver.
+ * </p>
+ * <p>
+ * A name is claimed across the cluster before a user can enter with it: every
+ * other node is asked, and refuses if the name is in use or has been claimed
+ * by another node first. When two nodes claim the same name at the same time,
+ * the node with the smaller name wins. A node which does not answer within
+ * {@link #CLAIM_MILLIS} is taken to agree, so that a node which is down does
+ * not stop users from entering. Nothing waits for the answers: the handler of
+ * the user stops reading from him/her and looks every
+ * {@link #CLAIM_POLL_MILLIS} whether the claim is done, so an event loop goes
+ * on serving its other connections meanwhile.
+ * </p>
+ * <p>
+ * A node dials the nodes in its {@code --peers} option and accepts the links
+ * of the others, so each node should list the nodes started before it. A
+ * dialled link which is lost is dialled again; the remote users of a lost
+ * link are removed until it is back.
+ * </p>
+ * <p>
+ * A node trusts what the other nodes tell it about their users, so the links
+ * are closed to anybody else: the cluster port is bound to the loopback
+ * address unless {@code --cluster-bind} says otherwise, and a link is only
+ * accepted once the other node has said hello with the same
+ * {@code --cluster-secret}. Even then, a node relays nothing but lines of
+ * text to the users of another; a user of another node is kicked out by his/her
+ * own node, which checks that the Administrator is who the link says.
+ * </p>
+ */
+public class Cluster {
+
+    /**
+     * Says the name of the node and the secret of the cluster, first thing on
+     * a link.
+     */
+    private static final byte HELLO = 1;
+
+    /**
+     * A user is in the chat room: name, room, Administrator.
+     */
+    private static final byte USER = 2;
+
+    /**
+     * A user has left the chat room: name.
+     */
+    private static final byte GONE = 3;
+
+    /**
+     * A user has blocked another: receiver, sender.
+     */
+    private static final byte BLOCK = 4;
+
+    /**
+     * A user has unblocked another: receiver, sender.
+     */
+    private static final byte UNBLOCK = 5;
+
+    /**
+     * A chat message: room, sender, frame.
+     */
+    private static final byte CHAT = 6;
+
+    /**
+     * A notification of the server: room (empty for every room), frame.
+     */
+    private static final byte NOTICE = 7;
+
+    /**
+     * A message to one user: name, frame.
+     */
+    private static final byte DIRECT = 8;
+
+    /**
+     * Asks for a name: name, claim number.
+     */
+    private static final byte CLAIM = 9;
+
+    /**
+     * Answers a claim: claim number, granted.
+     */
+    private static final byte GRANT = 10;
+
+    /**
+     * An Administrator kicks out a user of the receiving node: name,
+     * Administrator.
+     */
+    private static final byte KICK = 11;
+
+    /**
+     * How long a node waits for the answers to a claim, in milliseconds.
+     */
+    static final long CLAIM_MILLIS = 2000;
+
+    /**
+     * How often the handler of a user waiting for a claim looks whether it is
+     * done, in milliseconds.
+     */
+    static final long CLAIM_POLL_MILLIS = 10;
+
+    /**
+     * How long a name granted to another node is kept for it until its user
+     * enters, in milliseconds.
+     */
+    private static final long RESERVE_MILLIS = 10000;
+
+    /**
+     * How long a node waits before dialling a lost link again, in
+     * milliseconds.
+     */
+    private static final long RETRY_MILLIS = 2000;
+
+    /**
+     * The name of this node.
+     */
+    private final String node;
+
+    /**
+     * The port on which the links of other nodes are accepted, or 0.
+     */
+    private final int clusterPort;
+
+    /**
+     * The address the cluster port is bound to.
+     */
+    private final String bindAddress;
+
+    /**
+     * The secret every node of the cluster says hello with, as UTF-8 bytes.
+     */
+    private final byte[] secret;
+
+    /**
+     * The nodes this node dials.
+     */
+    private final List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+
+    /**
+     * The users of the cluster.
+     */
+    private final SessionRegistry sessions;
+
+    /**
+     * Keeps the messages relayed by other nodes as well.
+     */
+    private final Journal journal;
+
+    /**
+     * The links by node name.
+     */
+    private final ConcurrentHashMap<String, Peer> links = new ConcurrentHashMap<String, Peer>();
+
+    /**
+     * The links, copied into an array whenever one is added or removed, so
+     * relaying a message takes no lock.
+     */
+    private volatile Peer[] linked = new Peer[0];
+
+    /**
+     * The names being claimed by this node.
+     */
+    private final ConcurrentHashMap<String, Claim> claims = new ConcurrentHashMap<String, Claim>();
+
+    /**
+     * The claims of this node by number.
+     */
+    private final ConcurrentHashMap<Long, Claim> claimNumbers = new ConcurrentHashMap<Long, Claim>();
+
+    /**
+     * The names granted to other nodes, whose users have not entered yet.
+     */
+    private final ConcurrentHashMap<String, Reservation> reserved = new ConcurrentHashMap<String, Reservation>();
+
+    /**
+     * Gives out the claim numbers.
+     */
+    private final AtomicLong claimNumber = new AtomicLong();
+
+    /**
+     * Guards the links, and the claims and reservations of names.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * <p>
+     * Creates the Cluster from the start-up options of the server:
+     * </p>
+     * <ul>
+     * <li>{@code --cluster-port}: the port on which the links of other nodes
+     * are accepted (by default none).</li>
+     * <li>{@code --cluster-bind}: the address the cluster port is bound to (by
+     * default 127.0.0.1, so only the nodes on this host can link; 0.0.0.0 for
+     * every interface).</li>
+     * <li>{@code --cluster-secret}: the secret shared by the nodes, without
+     * which no link is accepted; required for a cluster.</li>
+     * <li>{@code --peers}: the nodes to dial, as a comma-separated list of
+     * host:port (by default none).</li>
+     * <li>{@code --node}: the name of this node, which must be different on
+     * every node (by default "node-" and the cluster port).</li>
+     * </ul>
+     * The server is on its own if neither {@code --cluster-port} nor
+     * {@code --peers} is given. Nothing is started until {@link #start()}.
+     *
+     * @param options
+     *            the start-up options
+     * @param sessions
+     *            the users of the cluster
+     * @param journal
+     *            the Journal
+     * @throws IllegalArgumentException
+     *             if an option has an invalid value
+     */
+    public Cluster(Options options, SessionRegistry sessions, Journal journal) {
+	this.sessions = sessions;
+	this.journal = journal;
+	clusterPort = options.getInt("cluster-port", 0);
+	if (clusterPort < 0 || clusterPort > 65535) {
+	    throw new IllegalArgumentException("Option 'cluster-port' should be between 0 and 65535.");
+	}
+	bindAddress = options.get("cluster-bind", "127.0.0.1");
+	node = options.get("node", "node-" + clusterPort);
+	String list = options.get("peers", "");
+	for (String peer : list.split(",")) {
+	    peer = peer.trim();
+	    if (peer.isEmpty()) continue;
+	    int colon = peer.lastIndexOf(':');
+	    try {
+		peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon),
+			Integer.parseInt(peer.substring(colon + 1))));
+	    } catch (RuntimeException e) {
+		throw new IllegalArgumentException("Option 'peers' should be a list of host:port: " + peer);
+	    }
+	}
+	secret = options.get("cluster-secret", "").getBytes(XorCodec.UTF_8);
+	if (enabled() && secret.length == 0) {
+	    throw new IllegalArgumentException("Option 'cluster-secret' should be given to a node of a cluster.");
+	}
+    }
+
+    /**
+     * Is this server a node of a cluster?
+     *
+     * @return <tt>true</tt> if it accepts or dials links
+     */
+    public boolean enabled() {
+	return clusterPort > 0 || !peers.isEmpty();
+    }
+
+    /**
+     * Gets the name of this node.
+     *
+     * @return the name
+     */
+    public String node() {
+	return node;
+    }
+
+    /**
+     * Gets the port on which the links of other nodes are accepted.
+     *
+     * @return the port number, or 0 if there is none
+     */
+    public int clusterPort() {
+	return clusterPort;
+    }
+
+    /**
+     * Gets the address the cluster port is bound to.
+     *
+     * @return the address
+     */
+    public String bindAddress() {
+	return bindAddress;
+    }
+
+    /**
+     * Gets the nodes this node dials.
+     *
+     * @return the nodes as host:port, separated by commas
+     */
+    public String peers() {
+	StringBuilder list = new StringBuilder();
+	for (InetSocketAddress peer : peers) {
+	    if (list.length() > 0) list.append(",");
+	    list.append(peer.getHostString()).append(':').append(peer.getPort());
+	}
+	return list.toString();
+    }
+
+    /**
+     * Starts accepting the links of other nodes and dialling the peers. Does
+     * nothing if the server is on its own.
+     *
+     * @throws IOException
+     *             if the cluster port cannot be bound
+     */
+    public void start() throws IOException {
+	if (clusterPort > 0) {
+	    final ServerSocket server = new ServerSocket(clusterPort, 50, InetAddress.getByName(bindAddress));
+	    daemon("cluster-accept", new Runnable() {
+		@Override
+		public void run() {
+		    while (true) {
+			try {
+			    link(server.accept());
+			} catch (IOException e) {
+			    EventLog.warn(EventLog.Type.CLUSTER, "Cannot accept a node: " + e.getMessage());
+			}
+		    }
+		}
+	    });
+	}
+	for (final InetSocketAddress address : peers) {
+	    daemon("cluster-dial", new Runnable() {
+		@Override
+		public void run() {
+		    while (true) {
+			try {
+			    Socket socket = new Socket(address.getHostString(), address.getPort());
+			    // Reads on this thread until the link is lost
+			    new Peer(Cluster.this, socket, true).run();
+			} catch (IOException e) {
+			    // The node is not up yet
+			}
+			try {
+			    Thread.sleep(RETRY_MILLIS);
+			} catch (InterruptedException e) {
+			    return;
+			}
+		    }
+		}
+	    });
+	}
+    }
+
+    /**
+     * Starts a daemon thread.
+     *
+     * @param name
+     *            the name of the thread
+     * @param task
+     *            what the thread does
+     */
+    private static void daemon(String name, Runnable task) {
+	Thread thread = new Thread(task, name);
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /**
+     * Reads from an accepted link on a thread of its own.
+     *
+     * @param socket
+     *            the connection from another node
+     * @throws IOException
+     *             if the connection cannot be set up
+     */
+    private void link(Socket socket) throws IOException {
+	final Peer peer = new Peer(this, socket, false);
+	daemon("cluster-link", new Runnable() {
+	    @Override
+	    public void run() {
+		peer.run();
+	    }
+	});
+    }
+
+    /**
+     * Says the name of this node and the secret on a new link.
+     *
+     * @param peer
+     *            the link
+     */
+    void greet(Peer peer) {
+	peer.send(new Message(HELLO).text(node).data(secret).bytes());
+    }
+
+    /**
+     * Starts claiming a name across the cluster for a user of this node. The
+     * other nodes are asked without waiting for their answers; once the claim
+     * {@linkplain Claim#isDone() is done}, the user is added with
+     * {@link #register(Claim, Outbound)}. A server on its own has nobody to
+     * ask, so its claims are done at once.
+     *
+     * @param name
+     *            the name of the user
+     * @return the claim, or <tt>null</tt> if the name is in use
+     */
+    public Claim claim(String name) {
+	Peer[] peers = linked;
+	if (peers.length == 0) return new Claim(name, 0, peers);
+
+	Claim claim = new Claim(name, claimNumber.incrementAndGet(), peers);
+	lock.lock();
+	try {
+	    String holder = reservedFor(name);
+	    if (sessions.find(name) != null || (holder != null && !holder.equals(node))
+		    || claims.putIfAbsent(name, claim) != null) {
+		return null;
+	    }
+	    claimNumbers.put(claim.number, claim);
+	} finally {
+	    lock.unlock();
+	}
+	byte[] message = new Message(CLAIM).text(name).number(claim.number).bytes();
+	for (Peer peer : peers) {
+	    peer.send(message);
+	}
+	return claim;
+    }
+
+    /**
+     * Adds a user of this node to the chat room once the claim of his/her
+     * name is done, and tells the other nodes.
+     *
+     * @param claim
+     *            the claim, which is given up
+     * @param out
+     *            the queue of messages to be sent to the user
+     * @return the new Session, or <tt>null</tt> if a node has refused the
+     *         name or it is in use
+     */
+    public Session register(Claim claim, Outbound out) {
+	try {
+	    if (claim.refused) return null;
+	    Session session = sessions.register(claim.name, out);
+	    if (session != null) update(session);
+	    return session;
+	} finally {
+	    // Given up only after the user has been added, so that no other
+	    // node is granted the name in between
+	    abandon(claim);
+	}
+    }
+
+    /**
+     * Gives up a claim, such as the claim of a user who disconnects before
+     * it is done.
+     *
+     * @param claim
+     *            the claim
+     */
+    public void abandon(Claim claim) {
+	claims.remove(claim.name, claim);
+	claimNumbers.remove(claim.number);
+    }
+
+    /**
+     * Tells the other nodes that a user of this node has entered, moved to
+     * another room or become an Administrator.
+     *
+     * @param session
+     *            the Session of the user
+     */
+    public void update(Session session) {
+	relay(user(session));
+    }
+
+    /**
+     * Tells the other nodes that a user of this node has left.
+     *
+     * @param session
+     *            the Session of the user
+     */
+    public void leave(Session session) {
+	relay(new Message(GONE).text(session.name()).bytes());
+    }
+
+    /**
+     * Tells the other nodes that a user of this node has blocked or unblocked
+     * another user.
+     *
+     * @param receiver
+     *            the user who blocks
+     * @param sender
+     *            the user blocked
+     * @param blocked
+     *            <tt>true</tt> for a block, <tt>false</tt> for an unblock
+     */
+    public void block(Session receiver, Session sender, boolean blocked) {
+	relay(new Message(blocked ? BLOCK : UNBLOCK).text(receiver.name()).text(sender.name()).bytes());
+    }
+
+    /**
+     * Sends a chat message to the other nodes, which hand it to their users
+     * in the room.
+     *
+     * @param room
+     *            the room of the sender
+     * @param sender
+     *            the sender
+     * @param frame
+     *            the message, as sent to the users other than the sender
+     */
+    public void relayChat(Room room, Session sender, Frame frame) {
+	if (linked.length == 0) return;
+	relay(new Message(CHAT).text(room.name()).text(sender.name()).frame(frame).bytes());
+    }
+
+    /**
+     * Sends a notification of the server to the other nodes, which hand it to
+     * their users in the room.
+     *
+     * @param room
+     *            the room, or <tt>null</tt> for every room
+     * @param frame
+     *            the notification
+     */
+    public void relayNotice(Room room, Frame frame) {
+	if (linked.length == 0) return;
+	relay(new Message(NOTICE).text(room == null ? "" : room.name()).frame(frame).bytes());
+    }
+
+    /**
+     * Encodes a message to one user of another node.
+     *
+     * @param name
+     *            the name of the user
+     * @param frame
+     *            the message, a line of text
+     * @return the encoded message
+     */
+    static byte[] direct(String name, Frame frame) {
+	return new Message(DIRECT).text(name).frame(frame).bytes();
+    }
+
+    /**
+     * Asks the node of a user to kick him/her out.
+     *
+     * @param target
+     *            the user, who is connected to another node
+     * @param admin
+     *            the Administrator who kicks him/her out, a user of this node
+     */
+    public void kick(Session target, Session admin) {
+	target.peer().send(new Message(KICK).text(target.name()).text(admin.name()).bytes());
+    }
+
+    /**
+     * Sends a message to every other node.
+     *
+     * @param message
+     *            the encoded message
+     */
+    private void relay(byte[] message) {
+	for (Peer peer : linked) {
+	    peer.send(message);
+	}
+    }
+
+    /**
+     * Encodes a user of this node.
+     *
+     * @param session
+     *            the Session of the user
+     * @return the encoded message
+     */
+    private static byte[] user(Session session) {
+	return new Message(USER).text(session.name()).text(session.room().name()).flag(session.isAdmin()).bytes();
+    }
+
+    /**
+     * Handles a message from another node. Called by the thread reading the
+     * link, one message at a time.
+     *
+     * @param peer
+     *            the link the message came from
+     * @param message
+     *            the encoded message
+     * @throws IOException
+     *             if the message cannot be decoded
+     */
+    void receive(Peer peer, byte[] message) throws IOException {
+	DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+	byte type = in.readByte();
+	if (type == HELLO) {
+	    hello(peer, readText(in), readBytes(in));
+	    return;
+	}
+	// Nothing but a hello is accepted from a node which has not said it
+	if (peer.node() == null || links.get(peer.node()) != peer) return;
+	switch (type) {
+	case USER: {
+	    String name = readText(in);
+	    String room = readText(in);
+	    boolean admin = in.readBoolean();
+	    Session user = sessions.find(name);
+	    if (user == null) {
+		user = sessions.registerRemote(name, peer);
+		if (user == null) return;
+		reserved.remove(name);
+	    } else if (user.peer() != peer) {
+		EventLog.warn(EventLog.Type.CLUSTER, "Node " + peer.node() + " has another user named " + name + ".");
+		return;
+	    }
+	    if (!user.room().name().equals(room)) sessions.join(user, room);
+	    if (admin) user.grantAdmin();
+	    break;
+	}
+	case GONE: {
+	    Session user = sessions.find(readText(in));
+	    if (user != null && user.peer() == peer) sessions.unregister(user);
+	    break;
+	}
+	case BLOCK:
+	case UNBLOCK: {
+	    Session receiver = sessions.find(readText(in));
+	    Session sender = sessions.find(readText(in));
+	    if (receiver == null || sender == null || receiver.peer() != peer) return;
+	    if (type == BLOCK) {
+		sessions.block(receiver, sender);
+	    } else {
+		sessions.unblock(receiver, sender);
+	    }
+	    break;
+	}
+	case CHAT: {
+	    Room room = sessions.room(readText(in));
+	    Session sender = sessions.find(readText(in));
+	    Frame frame = readFrame(in);
+	    // A node only speaks for its own users
+	    if (room == null || sender == null || sender.peer() != peer) return;
+	    Session[][] receivers = room.record(frame, sender);
+	    journal.append(Journal.CHAT, frame, room == sessions.lobby() ? null : room.name());
+	    FanOut.broadcast(receivers, sender, frame, null, sessions.blockersOf(sender));
+	    break;
+	}
+	case NOTICE: {
+	    String name = readText(in);
+	    Frame frame = readFrame(in);
+	    if (name.isEmpty()) {
+		int limit = sessions.limit();
+		for (int id = 0; id < limit; id++) {
+		    Session receiver = sessions.get(id);
+		    if (receiver != null && !receiver.isRemote()) receiver.send(frame);
+		}
+		journal.append(Journal.NOTICE, frame, null);
+	    } else {
+		Room room = sessions.room(name);
+		if (room == null) return;
+		FanOut.broadcast(room.receivers(), null, frame, null, null);
+		journal.append(Journal.NOTICE, frame, room == sessions.lobby() ? null : room.name());
+	    }
+	    break;
+	}
+	case DIRECT: {
+	    Session receiver = sessions.find(readText(in));
+	    Frame frame = readFrame(in);
+	    if (receiver != null && !receiver.isRemote()) FanOut.send(receiver, frame);
+	    break;
+	}
+	case KICK: {
+	    Session target = sessions.find(readText(in));
+	    Session admin = sessions.find(readText(in));
+	    // Only an Administrator of the other node kicks out a user of this
+	    // node, who is not an Administrator himself/herself
+	    if (target == null || target.isRemote() || target.isAdmin() || admin == null
+		    || admin.peer() != peer || !admin.isAdmin()) {
+		return;
+	    }
+	    target.send(Server.KICKED_OUT);
+	    break;
+	}
+	case CLAIM: {
+	    String name = readText(in);
+	    long number = in.readLong();
+	    peer.send(new Message(GRANT).number(number).flag(grant(name, peer.node())).bytes());
+	    break;
+	}
+	case GRANT: {
+	    Claim claim = claimNumbers.get(in.readLong());
+	    if (claim != null) claim.answer(peer, in.readBoolean());
+	    break;
+	}
+	default:
+	    throw new IOException("Unknown message type " + type);
+	}
+    }
+
+    /**
+     * Decodes a string.
+     *
+     * @param in
+     *            the message, positioned at the string
+     * @return the string
+     * @throws IOException
+     *             if the message is too short or the length is invalid
+     */
+    private static String readText(DataInputStream in) throws IOException {
+	return new String(readBytes(in), XorCodec.UTF_8);
+    }
+
+    /**
+     * Decodes a frame, which must be a line of text: the other signals of
+     * the protocol are only ever given by the node of the user.
+     *
+     * @param in
+     *            the message, positioned at the frame
+     * @return the frame
+     * @throws IOException
+     *             if the message is too short, the length is invalid or the
+     *             frame is not a line of text
+     */
+    private static Frame readFrame(DataInputStream in) throws IOException {
+	byte opcode = in.readByte();
+	if (opcode != Protocol.TEXT) {
+	    throw new IOException("Only lines of text are relayed, not opcode " + opcode);
+	}
+	return Frame.restore(readBytes(in));
+    }
+
+    /**
+     * Decodes a length, at most {@link Protocol#MAX_FRAME}, and as many
+     * bytes.
+     *
+     * @param in
+     *            the message, positioned at the length
+     * @return the bytes
+     * @throws IOException
+     *             if the message is too short or the length is invalid
+     */
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+	int length = in.readInt();
+	if (length < 0 || length > Protocol.MAX_FRAME) {
+	    throw new IOException("Invalid length " + length);
+	}
+	byte[] bytes = new byte[length];
+	in.readFully(bytes);
+	return bytes;
+    }
+
+    /**
+     * Decides whether another node may have a name.
+     *
+     * @param name
+     *            the name
+     * @param claimant
+     *            the node which claims it
+     * @return <tt>true</tt> if the name is granted
+     */
+    private boolean grant(String name, String claimant) {
+	lock.lock();
+	try {
+	    if (sessions.find(name) != null) return false;
+	    // Of two nodes claiming the same name, the smaller one wins, even if
+	    // the larger one has been granted the name here already: the
+	    // smaller one is claiming it, so it refuses the larger one itself
+	    String holder = reservedFor(name);
+	    if (holder != null && holder.compareTo(claimant) < 0) return false;
+	    if (claims.containsKey(name) && node.compareTo(claimant) < 0) return false;
+	    reserved.put(name, new Reservation(claimant, Clock.monotonicMillis() + RESERVE_MILLIS));
+	    return true;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Finds the node a name has been granted to. Only called while holding
+     * the lock.
+     *
+     * @param name
+     *            the name
+     * @return the node which may be about to use the name, or <tt>null</tt>
+     */
+    private String reservedFor(String name) {
+	Reservation reservation = reserved.get(name);
+	if (reservation == null) return null;
+	if (reservation.expiry < Clock.monotonicMillis()) {
+	    reserved.remove(name, reservation);
+	    return null;
+	}
+	return reservation.node;
+    }
+
+    /**
+     * Accepts a link once the other node has said its name and the secret,
+     * says hello back if the link was accepted, and sends it the users of
+     * this node.
+     *
+     * @param peer
+     *            the link
+     * @param name
+     *            the name of the other node
+     * @param given
+     *            the secret the other node has said
+     */
+    private void hello(Peer peer, String name, byte[] given) {
+	if (!MessageDigest.isEqual(secret, given)) {
+	    EventLog.warn(EventLog.Type.CLUSTER,
+		    "Node " + name + " has not given the cluster secret, the link is closed.");
+	    peer.close();
+	    return;
+	}
+	lock.lock();
+	try {
+	    if (peer.node() != null) return;
+	    if (name.equals(node) || links.containsKey(name)) {
+		EventLog.warn(EventLog.Type.CLUSTER, "Node " + name + " is already linked, the new link is closed.");
+		peer.close();
+		return;
+	    }
+	    peer.setNode(name);
+	    links.put(name, peer);
+	    linked = links.values().toArray(new Peer[0]);
+	    if (!peer.dialled()) greet(peer);
+
+	    // Sends the users of this node, and then their blocks
+	    List<Session> local = new ArrayList<Session>();
+	    int limit = sessions.limit();
+	    for (int id = 0; id < limit; id++) {
+		Session session = sessions.get(id);
+		if (session != null && !session.isRemote()) {
+		    local.add(session);
+		    peer.send(user(session));
+		}
+	    }
+	    for (Session receiver : local) {
+		for (Session sender : sessions.blockedBy(receiver)) {
+		    peer.send(new Message(BLOCK).text(receiver.name()).text(sender.name()).bytes());
+		}
+	    }
+	} finally {
+	    lock.unlock();
+	}
+	EventLog.info(EventLog.Type.CLUSTER, null, "Node " + name + " is linked.");
+    }
+
+    /**
+     * Removes a lost link, together with the users of the other node, and
+     * takes the other node as agreeing to the claims it has not answered.
+     * Called by the thread which read the link.
+     *
+     * @param peer
+     *            the link
+     */
+    void unlink(Peer peer) {
+	String name = peer.node();
+	if (name == null) return;
+	lock.lock();
+	try {
+	    if (!links.remove(name, peer)) return;
+	    linked = links.values().toArray(new Peer[0]);
+	    for (Reservation reservation : reserved.values()) {
+		if (reservation.node.equals(name)) reserved.values().remove(reservation);
+	    }
+	} finally {
+	    lock.unlock();
+	}
+	for (Claim claim : claimNumbers.values()) {
+	    claim.answer(peer, true);
+	}
+	int limit = sessions.limit();
+	for (int id = 0; id < limit; id++) {
+	    Session user = sessions.get(id);
+	    if (user != null && user.peer() == peer) {
+		sessions.unregister(user);
+		Frame notice = Frame.of("[Server] " + user.name() + " has left the chat room.");
+		for (Session receiver : user.room().members()) {
+		    if (!receiver.isRemote()) receiver.send(notice);
+		}
+	    }
+	}
+	EventLog.info(EventLog.Type.CLUSTER, null, "Node " + name + " is unlinked.");
+    }
+
+    /**
+     * A claim of a name by this node, waiting for the answers of the other
+     * nodes.
+     */
+    static final class Claim {
+
+	/**
+	 * The name.
+	 */
+	final String name;
+
+	/**
+	 * The claim number.
+	 */
+	final long number;
+
+	/**
+	 * The links which have not answered yet.
+	 */
+	private final Set<Peer> waiting = Collections.newSetFromMap(new ConcurrentHashMap<Peer, Boolean>());
+
+	/**
+	 * When the nodes which have not answered are taken to agree, from
+	 * {@link System#nanoTime()}.
+	 */
+	private final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLAIM_MILLIS);
+
+	/**
+	 * Whether a node has refused.
+	 */
+	private volatile boolean refused;
+
+	/**
+	 * Creates a new Claim.
+	 *
+	 * @param name
+	 *            the name
+	 * @param number
+	 *            the claim number
+	 * @param peers
+	 *            the links to be asked
+	 */
+	Claim(String name, long number, Peer[] peers) {
+	    this.name = name;
+	    this.number = number;
+	    Collections.addAll(waiting, peers);
+	}
+
+	/**
+	 * Records the answer of a node.
+	 *
+	 * @param peer
+	 *            the link to the node
+	 * @param granted
+	 *            whether the node has granted the name
+	 */
+	void answer(Peer peer, boolean granted) {
+	    if (!waiting.remove(peer)) return;
+	    if (!granted) refused = true;
+	}
+
+	/**
+	 * Is the claim done: has every node answered, or one refused, or
+	 * {@link Cluster#CLAIM_MILLIS} passed?
+	 *
+	 * @return <tt>true</tt> if the user may be
+	 *         {@linkplain Cluster#register(Claim, Outbound) registered}
+	 */
+	boolean isDone() {
+	    return refused || waiting.isEmpty() || System.nanoTime() - deadline >= 0;
+	}
+    }
+
+    /**
+     * A name granted to another node.
+     */
+    private static final class Reservation {
+
+	/**
+	 * The node.
+	 */
+	final String node;
+
+	/**
+	 * When the name is given up if the user has not entered, from
+	 * {@link Clock#monotonicMillis()}.
+	 */
+	final long expiry;
+
+	/**
+	 * Creates a new Reservation.
+	 *
+	 * @param node
+	 *            the node
+	 * @param expiry
+	 *            when the name is given up
+	 */
+	Reservation(String node, long expiry) {
+	    this.node = node;
+	    this.expiry = expiry;
+	}
+    }
+
+    /**
+     * Encodes a message of the cluster.
+     */
+    private static final class Message {
+
+	/**
+	 * The encoded bytes.
+	 */
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+
+	/**
+	 * Writes into the bytes.
+	 */
+	private final DataOutputStream out = new DataOutputStream(bytes);
+
+	/**
+	 * Starts a message.
+	 *
+	 * @param type
+	 *            the type of the message
+	 */
+	Message(byte type) {
+	    try {
+		out.writeByte(type);
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	}
+
+	/**
+	 * Adds a string: its length in bytes and its UTF-8 bytes. Unlike
+	 * {@link DataOutputStream#writeUTF(String)}, this takes a string longer
+	 * than 65535 bytes, up to {@link Protocol#MAX_FRAME}.
+	 *
+	 * @param text
+	 *            the string
+	 * @return this Message
+	 * @throws IllegalArgumentException
+	 *             if the string is longer than {@link Protocol#MAX_FRAME}
+	 *             bytes
+	 */
+	Message text(String text) {
+	    byte[] bytes = text.getBytes(XorCodec.UTF_8);
+	    if (bytes.length > Protocol.MAX_FRAME) {
+		throw new IllegalArgumentException("A string of " + bytes.length + " bytes is too long for a node.");
+	    }
+	    try {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    return this;
+	}
+
+	/**
+	 * Adds some bytes: their length and the bytes.
+	 *
+	 * @param bytes
+	 *            the bytes, at most {@link Protocol#MAX_FRAME}
+	 * @return this Message
+	 */
+	Message data(byte[] bytes) {
+	    try {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    return this;
+	}
+
+	/**
+	 * Adds a number.
+	 *
+	 * @param number
+	 *            the number
+	 * @return this Message
+	 */
+	Message number(long number) {
+	    try {
+		out.writeLong(number);
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    return this;
+	}
+
+	/**
+	 * Adds a flag.
+	 *
+	 * @param flag
+	 *            the flag
+	 * @return this Message
+	 */
+	Message flag(boolean flag) {
+	    try {
+		out.writeBoolean(flag);
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    return this;
+	}
+
+	/**
+	 * Adds a frame: its opcode and its payload, which is already encrypted.
+	 *
+	 * @param frame
+	 *            the frame
+	 * @return this Message
+	 */
+	Message frame(Frame frame) {
+	    try {
+		out.writeByte(frame.opcode());
+		out.writeInt(frame.payloadLength());
+		byte[] payload = new byte[frame.payloadLength()];
+		frame.payload().get(payload);
+		out.write(payload);
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    return this;
+	}
+
+	/**
+	 * Gets the encoded message.
+	 *
+	 * @return the bytes
+	 */
+	byte[] bytes() {
+	    return bytes.toByteArray();
+	}
+    }
+}
@@ -0,0 +1,691 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * ****************************
+ * Filename: EventLog.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * The log of the events of the server: the start-up information, the
+ * notifications of the rooms (users entering, leaving and being kicked out),
+ * the announcements to everybody and the problems with clients, nodes and
+ * files.
+ * </p>
+ * <p>
+ * A thread which logs an event never writes it: the event is put into a
+ * bounded ring buffer, and a single appender thread takes the events out and
+ * writes them in batches. <tt>System.out</tt> is synchronized, so printing
+ * on the thread of a client would make every join, leave and kick wait for
+ * the terminal, one client after another. Putting an event into the ring
+ * takes no lock: the slot is claimed with a compare-and-set on the tail, and
+ * its sequence number tells the appender when it has been filled. What
+ * happens to an event when the ring is full is decided by the
+ * {@linkplain Overflow overflow policy}.
+ * </p>
+ * <p>
+ * The appender prints every event on the server's screen in the same way as
+ * before, and, if asked to, also writes it to a log file, one line of
+ * tab-separated fields for each event but the {@linkplain #screenOnly(Type,
+ * String) secret ones}: the date and time, the level, the
+ * {@linkplain Type type}, the room (or "-") and the text. A file which has
+ * grown too large is renamed with the suffix ".1", the older ones moving up
+ * to ".2" and so on, and a new one is started. The options are read by
+ * {@link #configure(Options)}.
+ * </p>
+ */
+public final class EventLog {
+
+    /**
+     * What an event is about.
+     */
+    public enum Type {
+
+	/**
+	 * The start-up information and the announcements to everybody.
+	 */
+	SERVER,
+
+	/**
+	 * A notification of a room.
+	 */
+	ROOM,
+
+	/**
+	 * Something about one client.
+	 */
+	CLIENT,
+
+	/**
+	 * The links to the other nodes of the {@link Cluster}.
+	 */
+	CLUSTER,
+
+	/**
+	 * The journal and the statistics files.
+	 */
+	FILE
+    }
+
+    /**
+     * What happens to an event when the ring buffer is full.
+     */
+    public enum Overflow {
+
+	/**
+	 * Discards the event. The appender reports how many events were
+	 * discarded once it has caught up.
+	 */
+	DROP,
+
+	/**
+	 * Waits for the appender to make room.
+	 */
+	BLOCK
+    }
+
+    /**
+     * The number of slots in the ring buffer, a power of two.
+     */
+    private static int capacity = 8192;
+
+    /**
+     * The overflow policy.
+     */
+    private static Overflow overflow = Overflow.DROP;
+
+    /**
+     * The log file, or <tt>null</tt> if the events are only printed.
+     */
+    private static File file;
+
+    /**
+     * The size (in bytes) at which the log file is rolled over.
+     */
+    private static long maxBytes = 16L << 20;
+
+    /**
+     * The number of rolled-over log files kept.
+     */
+    private static int keep = 5;
+
+    /**
+     * The number of characters gathered before the appender writes them,
+     * even if more events are waiting.
+     */
+    private static final int BATCH_CHARS = 64 * 1024;
+
+    /**
+     * The ring buffer, or <tt>null</tt> until {@link #configure(Options)}
+     * has been called, in which case the events are printed at once.
+     */
+    private static volatile Ring ring;
+
+    /**
+     * The appender thread.
+     */
+    private static Thread appender;
+
+    /**
+     * Has the log been closed?
+     */
+    private static volatile boolean closed;
+
+    /**
+     * Is the appender waiting for events?
+     */
+    private static volatile boolean idle;
+
+    /**
+     * EventLog only has static members.
+     */
+    private EventLog() {
+    }
+
+    /**
+     * <p>
+     * Reads the options of the event log and starts the appender:
+     * </p>
+     * <ul>
+     * <li>{@code --log-file}: the file the events are also written to
+     * (default none).</li>
+     * <li>{@code --log-file-mb}: the size in megabytes at which the file is
+     * rolled over (default 16).</li>
+     * <li>{@code --log-files}: how many rolled-over files are kept (default
+     * 5).</li>
+     * <li>{@code --log-queue}: how many events may wait for the appender
+     * (default 8192, rounded up to a power of two).</li>
+     * <li>{@code --log-overflow}: {@code drop} (default) or {@code block}.
+     * </li>
+     * </ul>
+     *
+     * @param options
+     *            the start-up options
+     * @throws IllegalArgumentException
+     *             if an option has an invalid value
+     */
+    public static void configure(Options options) {
+	if (ring != null) return;
+	String name = options.get("log-file", null);
+	file = name != null ? new File(name) : null;
+	long megabytes = options.getLong("log-file-mb", 16);
+	if (megabytes < 1) {
+	    throw new IllegalArgumentException("Option 'log-file-mb' should be at least 1.");
+	}
+	maxBytes = megabytes << 20;
+	keep = options.getInt("log-files", keep);
+	if (keep < 0) {
+	    throw new IllegalArgumentException("Option 'log-files' should not be negative.");
+	}
+	int size = options.getInt("log-queue", capacity);
+	if (size < 1 || size > 1 << 24) {
+	    throw new IllegalArgumentException("Option 'log-queue' should be between 1 and 16777216.");
+	}
+	capacity = Integer.highestOneBit(size) == size ? size : Integer.highestOneBit(size) << 1;
+	String policy = options.get("log-overflow", "drop");
+	try {
+	    overflow = Overflow.valueOf(policy.toUpperCase());
+	} catch (IllegalArgumentException e) {
+	    throw new IllegalArgumentException("Option 'log-overflow' should be drop or block: " + policy);
+	}
+
+	ring = new Ring(capacity);
+	appender = new Thread("event-log") {
+	    @Override
+	    public void run() {
+		append();
+	    }
+	};
+	appender.setDaemon(true);
+	appender.start();
+	Runtime.getRuntime().addShutdownHook(new Thread("event-log-close") {
+	    @Override
+	    public void run() {
+		close();
+	    }
+	});
+    }
+
+    /**
+     * Gets the log file.
+     *
+     * @return the file, or <tt>null</tt> if the events are only printed
+     */
+    public static File file() {
+	return file;
+    }
+
+    /**
+     * Logs an event, printed on the standard output.
+     *
+     * @param type
+     *            what the event is about
+     * @param room
+     *            the room the event happened in, or <tt>null</tt>
+     * @param text
+     *            the text of the event
+     */
+    public static void info(Type type, String room, String text) {
+	log(false, false, type, room, text);
+    }
+
+    /**
+     * Logs an event which is printed on the standard output but never
+     * written to the log file, such as the Administrator Password, which must
+     * not be kept on disk.
+     *
+     * @param type
+     *            what the event is about
+     * @param text
+     *            the text of the event
+     */
+    public static void screenOnly(Type type, String text) {
+	log(false, true, type, null, text);
+    }
+
+    /**
+     * Logs a problem, printed on the standard error output.
+     *
+     * @param type
+     *            what the problem is about
+     * @param text
+     *            the text of the problem
+     */
+    public static void warn(Type type, String text) {
+	log(true, false, type, null, text);
+    }
+
+    /**
+     * Puts an event into the ring buffer.
+     *
+     * @param error
+     *            whether the event is a problem
+     * @param screenOnly
+     *            whether the event is kept out of the log file
+     * @param type
+     *            what the event is about
+     * @param room
+     *            the room, or <tt>null</tt>
+     * @param text
+     *            the text
+     */
+    private static void log(boolean error, boolean screenOnly, Type type, String room, String text) {
+	Ring events = ring;
+	if (events == null || closed) {
+	    // Not started yet, or the program is exiting
+	    print(error, Clock.prefix(), room, text);
+	    return;
+	}
+	while (!events.offer(error, screenOnly, type, room, text, Clock.prefix(), System.currentTimeMillis())) {
+	    if (overflow == Overflow.DROP) {
+		Metrics.eventsDropped.increment();
+		return;
+	    }
+	    // Gives the appender a moment to make room
+	    LockSupport.unpark(appender);
+	    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+	}
+	if (idle) LockSupport.unpark(appender);
+    }
+
+    /**
+     * Prints an event on the server's screen.
+     *
+     * @param error
+     *            whether the event is a problem
+     * @param prefix
+     *            the time of the event, from {@link Clock#prefix()}
+     * @param room
+     *            the room, or <tt>null</tt>
+     * @param text
+     *            the text
+     */
+    private static void print(boolean error, String prefix, String room, String text) {
+	(error ? System.err : System.out).println(prefix + (room != null ? "[" + room + "] " : "") + text);
+    }
+
+    /**
+     * Closes the log: the appender writes the events still in the ring
+     * buffer and stops. The events logged afterwards are printed at once.
+     */
+    public static void close() {
+	Thread thread = appender;
+	if (thread == null || closed) return;
+	closed = true;
+	LockSupport.unpark(thread);
+	try {
+	    thread.join(TimeUnit.SECONDS.toMillis(5));
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /**
+     * The loop of the appender thread: takes the events out of the ring
+     * buffer in batches and writes each batch at once, until the log is
+     * closed and the ring is empty.
+     */
+    private static void append() {
+	Ring events = ring;
+	StringBuilder out = new StringBuilder();
+	StringBuilder err = new StringBuilder();
+	StringBuilder lines = new StringBuilder();
+	SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+	RollingFile log = file != null ? new RollingFile(file) : null;
+	long reported = 0;
+	while (true) {
+	    boolean stop = closed;
+	    Slot slot;
+	    while ((slot = events.peek()) != null) {
+		StringBuilder screen = slot.error ? err : out;
+		screen.append(slot.prefix);
+		if (slot.room != null) screen.append('[').append(slot.room).append("] ");
+		screen.append(slot.text).append(System.lineSeparator());
+		if (log != null && !slot.screenOnly) {
+		    lines.append(format.format(slot.millis)).append('\t').append(slot.error ? "WARN" : "INFO")
+			    .append('\t').append(slot.type).append('\t').append(slot.room != null ? slot.room : "-")
+			    .append('\t').append(slot.text.replace('\t', ' ').replace('\n', ' ')).append('\n');
+		}
+		events.poll();
+		Metrics.eventsLogged.increment();
+		if (out.length() + err.length() + lines.length() > BATCH_CHARS) {
+		    write(out, err, lines, log);
+		}
+	    }
+	    long dropped = Metrics.eventsDropped.sum();
+	    if (dropped != reported) {
+		// Tells how many events were lost since the last batch
+		String text = (dropped - reported) + " events were dropped, the event log is full.";
+		err.append(Clock.prefix()).append(text).append(System.lineSeparator());
+		if (log != null) {
+		    lines.append(format.format(System.currentTimeMillis())).append("\tWARN\t").append(Type.SERVER)
+			    .append("\t-\t").append(text).append('\n');
+		}
+		reported = dropped;
+	    }
+	    write(out, err, lines, log);
+	    if (stop) break;
+	    // Sleeps until an event is logged, checking the ring again after
+	    // saying so, in case an event came in between
+	    idle = true;
+	    if (events.peek() == null && !closed) {
+		LockSupport.park();
+	    }
+	    idle = false;
+	}
+	if (log != null) log.close();
+    }
+
+    /**
+     * Writes the events gathered by the appender and empties the buffers.
+     *
+     * @param out
+     *            the events for the standard output
+     * @param err
+     *            the events for the standard error output
+     * @param lines
+     *            the lines for the log file
+     * @param log
+     *            the log file, or <tt>null</tt>
+     */
+    private static void write(StringBuilder out, StringBuilder err, StringBuilder lines, RollingFile log) {
+	if (out.length() > 0) {
+	    System.out.print(out);
+	    System.out.flush();
+	    out.setLength(0);
+	}
+	if (err.length() > 0) {
+	    System.err.print(err);
+	    System.err.flush();
+	    err.setLength(0);
+	}
+	if (lines.length() > 0) {
+	    log.write(lines);
+	    lines.setLength(0);
+	}
+    }
+
+    /**
+     * One slot of the ring buffer.
+     */
+    private static final class Slot {
+
+	/**
+	 * Whether the event is a problem.
+	 */
+	boolean error;
+
+	/**
+	 * Whether the event is kept out of the log file.
+	 */
+	boolean screenOnly;
+
+	/**
+	 * What the event is about.
+	 */
+	Type type;
+
+	/**
+	 * The room, or <tt>null</tt>.
+	 */
+	String room;
+
+	/**
+	 * The text.
+	 */
+	String text;
+
+	/**
+	 * The time of the event, from {@link Clock#prefix()}.
+	 */
+	String prefix;
+
+	/**
+	 * The time of the event, from {@link System#currentTimeMillis()}.
+	 */
+	long millis;
+    }
+
+    /**
+     * <p>
+     * A bounded ring buffer which many threads put events into and one
+     * thread takes them out of, without any lock.
+     * </p>
+     * Every slot has a sequence number. Slot <tt>i</tt> of lap <tt>n</tt> is
+     * free for the event number <tt>p = n * capacity + i</tt> when its
+     * sequence is <tt>p</tt>, and holds that event when its sequence is
+     * <tt>p + 1</tt>. A producer claims position <tt>p</tt> by moving the
+     * tail from <tt>p</tt> to <tt>p + 1</tt> with a compare-and-set, fills the
+     * slot and then sets its sequence, which is what makes the event visible
+     * to the appender. The appender frees the slot by setting its sequence to
+     * the position of the next lap.
+     */
+    private static final class Ring {
+
+	/**
+	 * The slots, reused forever.
+	 */
+	private final Slot[] slots;
+
+	/**
+	 * The sequence numbers of the slots.
+	 */
+	private final AtomicLongArray sequences;
+
+	/**
+	 * <tt>capacity - 1</tt>, which turns a position into an index.
+	 */
+	private final int mask;
+
+	/**
+	 * The next position to be claimed by a producer.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * The next position to be read by the appender, which is the only
+	 * thread using it.
+	 */
+	private long head;
+
+	/**
+	 * Creates a new empty Ring.
+	 *
+	 * @param capacity
+	 *            the number of slots, a power of two
+	 */
+	Ring(int capacity) {
+	    slots = new Slot[capacity];
+	    sequences = new AtomicLongArray(capacity);
+	    mask = capacity - 1;
+	    for (int i = 0; i < capacity; i++) {
+		slots[i] = new Slot();
+		sequences.set(i, i);
+	    }
+	}
+
+	/**
+	 * Puts an event into the ring, unless it is full.
+	 *
+	 * @param error
+	 *            whether the event is a problem
+	 * @param screenOnly
+	 *            whether the event is kept out of the log file
+	 * @param type
+	 *            what the event is about
+	 * @param room
+	 *            the room, or <tt>null</tt>
+	 * @param text
+	 *            the text
+	 * @param prefix
+	 *            the time of the event, from {@link Clock#prefix()}
+	 * @param millis
+	 *            the time of the event, from
+	 *            {@link System#currentTimeMillis()}
+	 * @return <tt>false</tt> if the ring is full
+	 */
+	boolean offer(boolean error, boolean screenOnly, Type type, String room, String text, String prefix,
+		long millis) {
+	    while (true) {
+		long position = tail.get();
+		int index = (int) position & mask;
+		long sequence = sequences.get(index);
+		if (sequence == position) {
+		    if (!tail.compareAndSet(position, position + 1)) continue;
+		    Slot slot = slots[index];
+		    slot.error = error;
+		    slot.screenOnly = screenOnly;
+		    slot.type = type;
+		    slot.room = room;
+		    slot.text = text;
+		    slot.prefix = prefix;
+		    slot.millis = millis;
+		    // Hands the slot to the appender
+		    sequences.set(index, position + 1);
+		    return true;
+		}
+		if (sequence < position) {
+		    // The slot still holds the event of the last lap
+		    return false;
+		}
+		// Another producer has claimed the position, tries the next one
+	    }
+	}
+
+	/**
+	 * Gets the oldest event, if it has been filled in.
+	 *
+	 * @return the slot, or <tt>null</tt> if there is none
+	 */
+	Slot peek() {
+	    int index = (int) head & mask;
+	    return sequences.get(index) == head + 1 ? slots[index] : null;
+	}
+
+	/**
+	 * Frees the slot of the oldest event, which has been written.
+	 */
+	void poll() {
+	    int index = (int) head & mask;
+	    Slot slot = slots[index];
+	    slot.room = null;
+	    slot.text = null;
+	    sequences.set(index, head + slots.length);
+	    head++;
+	}
+    }
+
+    /**
+     * A log file which is rolled over when it grows too large. Only used by
+     * the appender thread.
+     */
+    private static final class RollingFile {
+
+	/**
+	 * The path of the file being written.
+	 */
+	private final File path;
+
+	/**
+	 * The open file, or <tt>null</tt> if it could not be opened.
+	 */
+	private Writer writer;
+
+	/**
+	 * The size of the file.
+	 */
+	private long size;
+
+	/**
+	 * Creates a new RollingFile and opens the file for appending.
+	 *
+	 * @param path
+	 *            the path of the file
+	 */
+	RollingFile(File path) {
+	    this.path = path;
+	    open();
+	}
+
+	/**
+	 * Opens the file for appending.
+	 */
+	private void open() {
+	    try {
+		File parent = path.getAbsoluteFile().getParentFile();
+		if (parent != null) parent.mkdirs();
+		size = path.length();
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true), XorCodec.UTF_8));
+	    } catch (IOException e) {
+		writer = null;
+		System.err.println(Clock.prefix() + "Cannot open the log file " + path + ": " + e.getMessage());
+	    }
+	}
+
+	/**
+	 * Writes some lines, then rolls the file over if it has grown too
+	 * large.
+	 *
+	 * @param lines
+	 *            the lines
+	 */
+	void write(CharSequence lines) {
+	    if (writer == null) return;
+	    try {
+		writer.append(lines);
+		writer.flush();
+		// Near enough, since most of the text is ASCII
+		size += lines.length();
+	    } catch (IOException e) {
+		System.err.println(Clock.prefix() + "Cannot write the log file " + path + ": " + e.getMessage());
+	    }
+	    if (size >= maxBytes) roll();
+	}
+
+	/**
+	 * Renames the file with the suffix ".1", after moving the older files
+	 * up, deletes the oldest one and starts a new file.
+	 */
+	private void roll() {
+	    close();
+	    if (keep == 0) {
+		path.delete();
+	    } else {
+		new File(path + "." + keep).delete();
+		for (int i = keep - 1; i >= 1; i--) {
+		    File older = new File(path + "." + i);
+		    if (older.exists()) older.renameTo(new File(path + "." + (i + 1)));
+		}
+		path.renameTo(new File(path + ".1"));
+	    }
+	    open();
+	}
+
+	/**
+	 * Closes the file.
+	 */
+	void close() {
+	    if (writer == null) return;
+	    try {
+		writer.close();
+	    } catch (IOException e) {
+		// Nothing else to do
+	    }
+	    writer = null;
+	}
+    }
+}
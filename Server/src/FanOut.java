@@ -0,0 +1,339 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * ****************************
+ * Filename: FanOut.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Hands the chat messages and the notifications of a {@link Room} to its
+ * members.
+ * </p>
+ * <p>
+ * By default a message is handed to every member by the thread of the
+ * sender, which is the cheapest for small rooms. With
+ * {@code --fanout-workers=N}, the users are split into N shards by session
+ * ID, each served by a worker thread of its own: a message is published once
+ * to all the workers, and each of them hands it to the members of its shard,
+ * so the fan-out of a large room runs on N cores in parallel and the sender's
+ * thread goes back to reading at once. Every Room keeps its members by shard
+ * as well (see {@link Room#receivers()}), so a worker only walks its own.
+ * </p>
+ * <p>
+ * A user always belongs to the same shard, so every message reaches his/her
+ * {@link Outbound} from the same worker and in the order the workers were
+ * given them, and the workers never contend for the same queue. This is why
+ * the private messages go through the worker of the receiver as well (see
+ * {@link #send(Session, Frame)}), while the sender's own copy of a chat
+ * message is given on his/her thread, in order with the answers to his/her
+ * commands.
+ * </p>
+ * <p>
+ * The queue of a worker is bounded: when it is full, the thread publishing a
+ * message waits for room in it, which slows the senders down to the pace of
+ * the workers instead of piling the messages up in memory. A worker never
+ * waits, since an {@link Outbound} applies its own slow-consumer policy.
+ * </p>
+ */
+public final class FanOut {
+
+    /**
+     * The workers, none if the fan-out runs on the sender's thread.
+     */
+    private static Worker[] workers = new Worker[0];
+
+    /**
+     * FanOut only has static members.
+     */
+    private FanOut() {
+    }
+
+    /**
+     * <p>
+     * Reads the fan-out options of the server and starts the workers:
+     * </p>
+     * <ul>
+     * <li>{@code --fanout-workers}: the number of fan-out workers (default 0,
+     * which hands the messages over on the sender's thread).</li>
+     * <li>{@code --fanout-queue}: how many messages may wait for each worker
+     * before the senders wait in turn (default 4096).</li>
+     * </ul>
+     * Must be called before any {@link Room} is created.
+     *
+     * @param options
+     *            the start-up options
+     * @throws IllegalArgumentException
+     *             if an option has an invalid value
+     */
+    public static void configure(Options options) {
+	int count = options.getInt("fanout-workers", 0);
+	int capacity = options.getInt("fanout-queue", 4096);
+	if (count < 0) {
+	    throw new IllegalArgumentException("Option 'fanout-workers' should not be negative.");
+	}
+	if (capacity <= 0) {
+	    throw new IllegalArgumentException("Option 'fanout-queue' should be positive.");
+	}
+	Worker[] started = new Worker[count];
+	for (int i = 0; i < count; i++) {
+	    started[i] = new Worker(i, capacity);
+	    started[i].start();
+	}
+	workers = started;
+    }
+
+    /**
+     * Gets the number of shards.
+     *
+     * @return the number of fan-out workers, 0 if there are none
+     */
+    public static int shards() {
+	return workers.length;
+    }
+
+    /**
+     * Gets the shard of a user.
+     *
+     * @param session
+     *            the user
+     * @return the index of the shard
+     */
+    static int shardOf(Session session) {
+	return session.id() % workers.length;
+    }
+
+    /**
+     * Hands a message to the members of a room who are connected to this
+     * server, except those who have blocked the sender.
+     *
+     * @param receivers
+     *            the members of the room, from {@link Room#receivers()} or
+     *            {@link Room#record(Frame, Session)}
+     * @param sender
+     *            the sender, who is given his/her own version of the message
+     *            or nothing
+     * @param toOthers
+     *            the message, as sent to the members other than the sender
+     * @param toSender
+     *            the message as sent to the sender, or <tt>null</tt> if the
+     *            sender is not sent anything
+     * @param blockers
+     *            the users who have blocked the sender, or <tt>null</tt>
+     */
+    public static void broadcast(Session[][] receivers, Session sender, Frame toOthers, Frame toSender,
+	    long[] blockers) {
+	long start = System.nanoTime();
+	if (toSender != null) {
+	    // Feedback given to the sender, on his/her own thread
+	    sender.send(toSender);
+	}
+	Worker[] shards = workers;
+	if (shards.length == 0) {
+	    deliver(receivers[0], sender, toOthers, blockers);
+	    Metrics.fanOut.record(System.nanoTime() - start);
+	} else {
+	    // Published once, shared by all the workers
+	    Delivery delivery = new Delivery(receivers, sender, toOthers, blockers, start,
+		    new AtomicInteger(shards.length));
+	    for (Worker worker : shards) {
+		worker.publish(delivery);
+	    }
+	}
+    }
+
+    /**
+     * Hands a message to one user, after the messages published to him/her
+     * before, so that a private message does not overtake a chat message
+     * sent before it.
+     *
+     * @param receiver
+     *            the user, who is connected to this server
+     * @param frame
+     *            the message
+     */
+    public static void send(Session receiver, Frame frame) {
+	Worker[] shards = workers;
+	if (shards.length == 0) {
+	    receiver.send(frame);
+	} else {
+	    int shard = shardOf(receiver);
+	    Session[][] receivers = new Session[shards.length][];
+	    receivers[shard] = new Session[] { receiver };
+	    shards[shard].publish(new Delivery(receivers, null, frame, null, 0, null));
+	}
+    }
+
+    /**
+     * Hands a message to some users.
+     *
+     * @param receivers
+     *            the users
+     * @param sender
+     *            the sender, who is left out, or <tt>null</tt>
+     * @param message
+     *            the message
+     * @param blockers
+     *            the users who have blocked the sender, or <tt>null</tt>
+     */
+    private static void deliver(Session[] receivers, Session sender, Frame message, long[] blockers) {
+	for (Session receiver : receivers) {
+	    // Check whether the sender is blocked by the receiver
+	    if (blockers != null && BlockIndex.get(blockers, receiver.id())) {
+		// If the sender is blocked by this receiver, do not send to him/her
+		continue;
+	    }
+	    if (receiver.isRemote()) {
+		// Handed to him/her by his/her own node
+		continue;
+	    }
+	    if (receiver != sender) {
+		// Message sent to others
+		receiver.send(message);
+	    }
+	}
+    }
+
+    /**
+     * A message published to the workers.
+     */
+    private static final class Delivery {
+
+	/**
+	 * The receivers by shard.
+	 */
+	final Session[][] receivers;
+
+	/**
+	 * The sender, or <tt>null</tt>.
+	 */
+	final Session sender;
+
+	/**
+	 * The message, as sent to the receivers other than the sender.
+	 */
+	final Frame message;
+
+	/**
+	 * The users who have blocked the sender, or <tt>null</tt>.
+	 */
+	final long[] blockers;
+
+	/**
+	 * When the message was published, from {@link System#nanoTime()}.
+	 */
+	final long start;
+
+	/**
+	 * The number of workers which have not handed the message over yet, or
+	 * <tt>null</tt> if the message is not timed.
+	 */
+	final AtomicInteger remaining;
+
+	/**
+	 * Creates a new Delivery.
+	 *
+	 * @param receivers
+	 *            the receivers by shard
+	 * @param sender
+	 *            the sender, or <tt>null</tt>
+	 * @param message
+	 *            the message, as sent to the receivers other than the
+	 *            sender
+	 * @param blockers
+	 *            the users who have blocked the sender, or <tt>null</tt>
+	 * @param start
+	 *            when the message was published
+	 * @param remaining
+	 *            the number of workers it is published to, or <tt>null</tt>
+	 *            if the fan-out is not timed
+	 */
+	Delivery(Session[][] receivers, Session sender, Frame message, long[] blockers, long start,
+		AtomicInteger remaining) {
+	    this.receivers = receivers;
+	    this.sender = sender;
+	    this.message = message;
+	    this.blockers = blockers;
+	    this.start = start;
+	    this.remaining = remaining;
+	}
+    }
+
+    /**
+     * A worker hands the messages to the users of one shard.
+     */
+    private static final class Worker extends Thread {
+
+	/**
+	 * The index of the shard.
+	 */
+	private final int shard;
+
+	/**
+	 * The messages waiting to be handed over.
+	 */
+	private final ArrayBlockingQueue<Delivery> queue;
+
+	/**
+	 * Creates a new Worker.
+	 *
+	 * @param shard
+	 *            the index of the shard
+	 * @param capacity
+	 *            the number of messages which may wait
+	 */
+	Worker(int shard, int capacity) {
+	    super("fanout-" + shard);
+	    this.shard = shard;
+	    this.queue = new ArrayBlockingQueue<Delivery>(capacity);
+	    setDaemon(true);
+	}
+
+	/**
+	 * Gives a message to this worker, waiting for room in the queue if it
+	 * is full.
+	 *
+	 * @param delivery
+	 *            the message
+	 */
+	void publish(Delivery delivery) {
+	    if (queue.offer(delivery)) return;
+	    Metrics.fanOutWaits.increment();
+	    try {
+		queue.put(delivery);
+	    } catch (InterruptedException e) {
+		// The sender's thread is being stopped
+		Thread.currentThread().interrupt();
+	    }
+	}
+
+	/**
+	 * Hands the messages over until the program exits.
+	 */
+	@Override
+	public void run() {
+	    while (true) {
+		Delivery delivery;
+		try {
+		    delivery = queue.take();
+		} catch (InterruptedException e) {
+		    return;
+		}
+		try {
+		    deliver(delivery.receivers[shard], delivery.sender, delivery.message, delivery.blockers);
+		} catch (RuntimeException e) {
+		    EventLog.warn(EventLog.Type.SERVER, getName() + ": " + e);
+		}
+		// The last worker records how long the whole fan-out took
+		if (delivery.remaining != null && delivery.remaining.decrementAndGet() == 0) {
+		    Metrics.fanOut.record(System.nanoTime() - delivery.start);
+		}
+	    }
+	}
+    }
+}
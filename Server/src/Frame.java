@@ -0,0 +1,249 @@
+import java.nio.ByteBuffer;
+
+/*
+ * ****************************
+ * Filename: Frame.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * A Frame is one line of text exactly as it is sent to a client: encrypted,
+ * followed by the line separator and encoded into bytes.
+ * </p>
+ * <p>
+ * A Frame is immutable, so the same Frame can be queued for any number of
+ * clients. When a message is broadcast, it is encrypted and encoded once and
+ * every receiver is given the same bytes.
+ * </p>
+ * <p>
+ * The same bytes serve both protocols: an old client is sent the whole line,
+ * and a client of the {@linkplain Protocol framed protocol} is sent the line
+ * without its separator as the payload, after a header written by its
+ * {@link Outbound} (which numbers the frames of each client). A Frame also
+ * has an opcode, so a signal such as {@link Protocol#VALID} is a plain
+ * opcode for a new client and the familiar special line for an old one.
+ * </p>
+ */
+public final class Frame {
+
+    /**
+     * The line separator, the same as the one used by
+     * {@link java.io.PrintWriter#println()}. It is not encrypted.
+     */
+    private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes(XorCodec.UTF_8);
+
+    /**
+     * An empty line.
+     */
+    public static final Frame EMPTY = of("");
+
+    /**
+     * The answer of the server to a client which starts the framed protocol.
+     * It is never sent to an old client.
+     */
+    public static final Frame HELLO = of(Protocol.HELLO, new byte[] { Protocol.VERSION });
+
+    /**
+     * Asks a client of the framed protocol whether he/she is still there.
+     */
+    public static final Frame PING = of(Protocol.PING, new byte[0]);
+
+    /**
+     * The answer to a ping of a client of the framed protocol.
+     */
+    public static final Frame PONG = of(Protocol.PONG, new byte[0]);
+
+    /**
+     * The opcode, used by the framed protocol.
+     */
+    private final byte opcode;
+
+    /**
+     * The bytes sent to an old client: the payload, followed by the line
+     * separator.
+     */
+    private final byte[] bytes;
+
+    /**
+     * The number of bytes in the payload.
+     */
+    private final int payloadLength;
+
+    /**
+     * Creates a new Frame.
+     *
+     * @param opcode
+     *            the opcode
+     * @param bytes
+     *            the payload, followed by the line separator
+     * @param payloadLength
+     *            the number of bytes in the payload
+     */
+    private Frame(byte opcode, byte[] bytes, int payloadLength) {
+	this.opcode = opcode;
+	this.bytes = bytes;
+	this.payloadLength = payloadLength;
+    }
+
+    /**
+     * Creates a Frame from a line of text which has not been encrypted yet.
+     *
+     * @param line
+     *            the original line, without a line separator
+     * @return the Frame
+     */
+    public static Frame of(String line) {
+	return of(Protocol.TEXT, line);
+    }
+
+    /**
+     * Creates a Frame with an opcode from a line of text which has not been
+     * encrypted yet.
+     *
+     * @param opcode
+     *            the opcode sent to a client of the framed protocol
+     * @param line
+     *            the original line, which is also what an old client is
+     *            sent, without a line separator
+     * @return the Frame
+     */
+    public static Frame of(byte opcode, String line) {
+	int length = XorCodec.encodedLength(line);
+	byte[] bytes = new byte[length + LINE_SEPARATOR.length];
+	// Encrypts the line with the XOR Cipher
+	XorCodec.encode(line, bytes, 0);
+	System.arraycopy(LINE_SEPARATOR, 0, bytes, length, LINE_SEPARATOR.length);
+	return new Frame(opcode, bytes, length);
+    }
+
+    /**
+     * Creates a Frame with an opcode from a payload which is not text.
+     *
+     * @param opcode
+     *            the opcode
+     * @param payload
+     *            the payload, copied into the Frame as it is
+     * @return the Frame
+     */
+    private static Frame of(byte opcode, byte[] payload) {
+	byte[] bytes = new byte[payload.length + LINE_SEPARATOR.length];
+	System.arraycopy(payload, 0, bytes, 0, payload.length);
+	System.arraycopy(LINE_SEPARATOR, 0, bytes, payload.length, LINE_SEPARATOR.length);
+	return new Frame(opcode, bytes, payload.length);
+    }
+
+    /**
+     * Creates a text Frame from a payload which has already been encrypted,
+     * such as one read back from the {@link Journal}.
+     *
+     * @param payload
+     *            the encrypted line, without a line separator
+     * @return the Frame
+     */
+    public static Frame restore(byte[] payload) {
+	return of(Protocol.TEXT, payload);
+    }
+
+    /**
+     * Creates a Frame from two encrypted prefixes, such as the time and the
+     * sender's name, and the UTF-8 bytes of a message which has not been
+     * encrypted yet. The bytes are copied into the Frame and encrypted there,
+     * so they are never turned into a String.
+     *
+     * @param first
+     *            the encrypted bytes of the first prefix
+     * @param second
+     *            the encrypted bytes of the second prefix
+     * @param content
+     *            the array holding the original message
+     * @param offset
+     *            the index of the first byte of the message
+     * @param length
+     *            the number of bytes in the message
+     * @return the Frame
+     */
+    public static Frame of(byte[] first, byte[] second, byte[] content, int offset, int length) {
+	int prefixLength = first.length + second.length;
+	byte[] bytes = new byte[prefixLength + length + LINE_SEPARATOR.length];
+	System.arraycopy(first, 0, bytes, 0, first.length);
+	System.arraycopy(second, 0, bytes, first.length, second.length);
+	System.arraycopy(content, offset, bytes, prefixLength, length);
+	XorCodec.apply(bytes, prefixLength, length);
+	System.arraycopy(LINE_SEPARATOR, 0, bytes, prefixLength + length, LINE_SEPARATOR.length);
+	return new Frame(Protocol.TEXT, bytes, prefixLength + length);
+    }
+
+    /**
+     * Gets the opcode of this Frame.
+     *
+     * @return one of the opcodes of {@link Protocol}
+     */
+    public byte opcode() {
+	return opcode;
+    }
+
+    /**
+     * Gets the number of bytes in this Frame, as sent to an old client.
+     *
+     * @return the number of bytes
+     */
+    public int length() {
+	return bytes.length;
+    }
+
+    /**
+     * Gets the number of bytes in the payload of this Frame, as sent to a
+     * client of the framed protocol after the header.
+     *
+     * @return the number of bytes
+     */
+    public int payloadLength() {
+	return payloadLength;
+    }
+
+    /**
+     * Copies the bytes in this Frame, as sent to an old client, into a
+     * buffer.
+     *
+     * @param target
+     *            the buffer, which must have room for {@link #length()} bytes
+     */
+    public void copyTo(ByteBuffer target) {
+	target.put(bytes);
+    }
+
+    /**
+     * Copies the payload of this Frame into a buffer, after the header.
+     *
+     * @param target
+     *            the buffer, which must have room for {@link #payloadLength()}
+     *            bytes
+     */
+    public void copyPayloadTo(ByteBuffer target) {
+	target.put(bytes, 0, payloadLength);
+    }
+
+    /**
+     * Gets a read-only buffer of the bytes in this Frame, for writing to a
+     * channel.
+     *
+     * @return a new buffer, positioned at the first byte
+     */
+    public ByteBuffer buffer() {
+	return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets a read-only buffer of the payload of this Frame, for writing to a
+     * channel after the header.
+     *
+     * @return a new buffer, positioned at the first byte
+     */
+    public ByteBuffer payload() {
+	return ByteBuffer.wrap(bytes, 0, payloadLength).slice().asReadOnlyBuffer();
+    }
+}
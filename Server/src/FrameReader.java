@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * ****************************
+ * Filename: FrameReader.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Reads the frames of the {@linkplain Protocol framed protocol} from an
+ * InputStream.
+ * </p>
+ * Like a {@link LineReader}, a FrameReader creates no object for a frame: the
+ * payload is left in the reader's own buffer, where it can be decoded in
+ * place. Since every frame starts with its length, no byte has to be scanned.
+ */
+public class FrameReader {
+
+    /**
+     * The stream to read from.
+     */
+    private final InputStream in;
+
+    /**
+     * The bytes read from the stream.
+     */
+    private byte[] buffer = new byte[1024];
+
+    /**
+     * The index of the first byte which has not been returned as part of a
+     * frame.
+     */
+    private int start;
+
+    /**
+     * The index after the last byte read from the stream.
+     */
+    private int end;
+
+    /**
+     * The opcode of the current frame.
+     */
+    private byte opcode;
+
+    /**
+     * The sequence number of the current frame.
+     */
+    private int sequence;
+
+    /**
+     * The index of the first byte of the current payload.
+     */
+    private int payloadStart;
+
+    /**
+     * The number of bytes in the current payload.
+     */
+    private int payloadLength;
+
+    /**
+     * Creates a new FrameReader.
+     *
+     * @param in
+     *            the stream to read from
+     */
+    public FrameReader(InputStream in) {
+	this.in = in;
+    }
+
+    /**
+     * Reads the next frame. The frame can be found with {@link #opcode()},
+     * {@link #sequence()}, {@link #buffer()}, {@link #offset()} and
+     * {@link #length()} until this method is called again.
+     *
+     * @return <tt>true</tt> if a frame has been read, or <tt>false</tt> if
+     *         the end of the stream has been reached
+     * @throws IOException
+     *             if the stream cannot be read, or the frame is invalid
+     */
+    public boolean next() throws IOException {
+	if (!fill(4)) return false;
+	int length = Protocol.readInt(buffer, start);
+	if (length < Protocol.HEADER - 4 || length > Protocol.MAX_FRAME - 4) {
+	    throw new IOException("Invalid frame length: " + length);
+	}
+	if (!fill(4 + length)) throw new IOException("Incomplete frame.");
+	opcode = buffer[start + 4];
+	sequence = Protocol.readInt(buffer, start + 5);
+	payloadStart = start + Protocol.HEADER;
+	payloadLength = length - (Protocol.HEADER - 4);
+	start += 4 + length;
+	return true;
+    }
+
+    /**
+     * Reads from the stream until the buffer holds a number of bytes after
+     * {@link #start}.
+     *
+     * @param count
+     *            the number of bytes needed
+     * @return <tt>false</tt> if the stream ended before any of them
+     * @throws IOException
+     *             if the stream cannot be read, or ends in the middle
+     */
+    private boolean fill(int count) throws IOException {
+	if (end - start >= count) return true;
+	if (start + count > buffer.length) {
+	    // Moves the unfinished frame to the start of the buffer, making the
+	    // buffer larger if the frame does not fit
+	    byte[] target = buffer;
+	    if (count > buffer.length) {
+		int capacity = buffer.length;
+		while (capacity < count) capacity *= 2;
+		target = new byte[capacity];
+	    }
+	    System.arraycopy(buffer, start, target, 0, end - start);
+	    buffer = target;
+	    end -= start;
+	    start = 0;
+	}
+	while (end - start < count) {
+	    int n = in.read(buffer, end, buffer.length - end);
+	    if (n < 0) {
+		if (end == start) return false;
+		throw new IOException("Incomplete frame.");
+	    }
+	    end += n;
+	}
+	return true;
+    }
+
+    /**
+     * Gets the opcode of the current frame.
+     *
+     * @return one of the opcodes of {@link Protocol}
+     */
+    public byte opcode() {
+	return opcode;
+    }
+
+    /**
+     * Gets the sequence number of the current frame.
+     *
+     * @return the sequence number
+     */
+    public int sequence() {
+	return sequence;
+    }
+
+    /**
+     * Gets the buffer holding the current payload.
+     *
+     * @return the buffer, which may be changed in place
+     */
+    public byte[] buffer() {
+	return buffer;
+    }
+
+    /**
+     * Gets the index of the first byte of the current payload.
+     *
+     * @return the index in {@link #buffer()}
+     */
+    public int offset() {
+	return payloadStart;
+    }
+
+    /**
+     * Gets the number of bytes in the current payload.
+     *
+     * @return the number of bytes
+     */
+    public int length() {
+	return payloadLength;
+    }
+}
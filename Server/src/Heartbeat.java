@@ -0,0 +1,245 @@
+import java.util.concurrent.TimeUnit;
+
+/*
+ * ****************************
+ * Filename: Heartbeat.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Watches one connection for silence. A client whose connection has died
+ * without being closed, such as one whose computer has been switched off,
+ * never sends anything again, and would otherwise keep his/her
+ * {@link Server.ThreadHandler} and his/her place in the chat room forever.
+ * </p>
+ * <p>
+ * A client of the {@linkplain Protocol framed protocol} who has been quiet
+ * for the ping interval is sent a {@link Protocol#PING}, which he/she answers
+ * with a {@link Protocol#PONG}; writing the ping also finds out a connection
+ * which the other end has reset. A client who has been quiet for the idle
+ * timeout, pongs included, is disconnected, and removed from the chat room
+ * in the same way as if he/she had left. An old client cannot answer pings,
+ * so a quiet one is only disconnected if the idle timeout has been set
+ * explicitly. Both are start-up options of the server (see
+ * {@link #configure(Options)}).
+ * </p>
+ * <p>
+ * Every line or frame received only writes down the time. The Heartbeat
+ * looks at that time when its {@link TimingWheel} timeout expires, and
+ * schedules the next one from there, so a busy client costs one timeout per
+ * interval rather than one for every message.
+ * </p>
+ */
+public final class Heartbeat implements TimingWheel.Task {
+
+    /**
+     * How long (in nanoseconds) a client of the framed protocol may be quiet
+     * before he/she is pinged, or 0 if no client is.
+     */
+    private static long pingNanos;
+
+    /**
+     * How long (in nanoseconds) a client of the framed protocol may be quiet
+     * before he/she is disconnected, or 0 if no client is.
+     */
+    private static long idleNanos;
+
+    /**
+     * How long (in nanoseconds) an old client may be quiet before he/she is
+     * disconnected, or 0 if no old client is.
+     */
+    private static long lineIdleNanos;
+
+    /**
+     * The wheel all the timeouts run on, or <tt>null</tt> if both are off.
+     */
+    private static TimingWheel wheel;
+
+    /**
+     * The handler of the client.
+     */
+    private final Server.ThreadHandler handler;
+
+    /**
+     * The queue of messages to be sent to the client.
+     */
+    private final Outbound out;
+
+    /**
+     * When something was last received from the client, from
+     * {@link System#nanoTime()}.
+     */
+    private volatile long lastRead = System.nanoTime();
+
+    /**
+     * Does the client speak the framed protocol, and so answer pings?
+     */
+    private volatile boolean framed;
+
+    /**
+     * Has the connection been closed?
+     */
+    private volatile boolean stopped;
+
+    /**
+     * The next check, or <tt>null</tt> before {@link #start()}.
+     */
+    private volatile TimingWheel.Timeout timeout;
+
+    /**
+     * <p>
+     * Reads the heartbeat options of the server and starts the timing wheel:
+     * </p>
+     * <ul>
+     * <li>{@code --ping-interval}: how many seconds a client of the framed
+     * protocol may be quiet before he/she is pinged (default 30, 0 for
+     * never).</li>
+     * <li>{@code --idle-timeout}: how many seconds a client may be quiet
+     * before he/she is disconnected (default three times the ping interval,
+     * 0 for never). It should be longer than the ping interval, or quiet
+     * clients of the framed protocol are disconnected as well. An old client
+     * does not answer pings, so the default only applies to the clients of
+     * the framed protocol, and an old client is only disconnected if the
+     * option is given.</li>
+     * </ul>
+     *
+     * @param options
+     *            the start-up options
+     * @throws IllegalArgumentException
+     *             if an option has an invalid value
+     */
+    public static void configure(Options options) {
+	long ping = options.getLong("ping-interval", 30);
+	if (ping < 0) {
+	    throw new IllegalArgumentException("Option 'ping-interval' should not be negative.");
+	}
+	boolean given = options.get("idle-timeout", null) != null;
+	long idle = options.getLong("idle-timeout", 3 * ping);
+	if (idle < 0) {
+	    throw new IllegalArgumentException("Option 'idle-timeout' should not be negative.");
+	}
+	pingNanos = TimeUnit.SECONDS.toNanos(ping);
+	idleNanos = TimeUnit.SECONDS.toNanos(idle);
+	lineIdleNanos = given ? idleNanos : 0;
+	if (wheel == null && (ping > 0 || idle > 0)) {
+	    // Ticks of 100 ms, 512 buckets to a turn of 51.2 s
+	    wheel = new TimingWheel("timing-wheel", 100, TimeUnit.MILLISECONDS, 512);
+	}
+    }
+
+    /**
+     * Gets the ping interval.
+     *
+     * @return the interval in seconds, or 0 if clients are not pinged
+     */
+    public static long pingSeconds() {
+	return TimeUnit.NANOSECONDS.toSeconds(pingNanos);
+    }
+
+    /**
+     * Gets the idle timeout.
+     *
+     * @return the timeout in seconds, or 0 if quiet clients stay
+     */
+    public static long idleSeconds() {
+	return TimeUnit.NANOSECONDS.toSeconds(idleNanos);
+    }
+
+    /**
+     * Does the idle timeout apply to the old clients as well?
+     *
+     * @return <tt>true</tt> if quiet old clients are disconnected
+     */
+    public static boolean idleLines() {
+	return lineIdleNanos > 0;
+    }
+
+    /**
+     * Creates a new Heartbeat.
+     *
+     * @param handler
+     *            the handler of the client, which is told when the client
+     *            has been quiet for too long
+     * @param out
+     *            the queue of messages to be sent to the client
+     */
+    Heartbeat(Server.ThreadHandler handler, Outbound out) {
+	this.handler = handler;
+	this.out = out;
+    }
+
+    /**
+     * Starts watching the connection, if the heartbeat is on.
+     */
+    public void start() {
+	if (wheel == null || (pingNanos == 0 && idleNanos == 0)) return;
+	schedule(pingNanos == 0 ? idleNanos : idleNanos == 0 ? pingNanos : Math.min(pingNanos, idleNanos));
+    }
+
+    /**
+     * Writes down that something has been received from the client.
+     */
+    public void touch() {
+	lastRead = System.nanoTime();
+    }
+
+    /**
+     * Writes down that the client speaks the framed protocol.
+     */
+    public void useFrames() {
+	framed = true;
+    }
+
+    /**
+     * Stops watching the connection, which has been closed.
+     */
+    public void stop() {
+	stopped = true;
+	TimingWheel.Timeout next = timeout;
+	if (next != null) next.cancel();
+    }
+
+    /**
+     * Looks at how long the client has been quiet: disconnects him/her,
+     * pings him/her, or just schedules the next check.
+     */
+    @Override
+    public void expire() {
+	if (stopped) return;
+	long quiet = System.nanoTime() - lastRead;
+	long idle = framed ? idleNanos : lineIdleNanos;
+	if (idle > 0 && quiet >= idle) {
+	    handler.expire();
+	    return;
+	}
+	long next = Long.MAX_VALUE;
+	if (pingNanos > 0) {
+	    if (quiet < pingNanos) {
+		next = pingNanos - quiet;
+	    } else {
+		if (framed) out.send(Frame.PING);
+		next = pingNanos;
+	    }
+	}
+	if (idle > 0) {
+	    next = Math.min(next, idle - quiet);
+	}
+	schedule(next);
+    }
+
+    /**
+     * Schedules the next check.
+     *
+     * @param delay
+     *            how long from now, in nanoseconds
+     */
+    private void schedule(long delay) {
+	timeout = wheel.schedule(this, delay, TimeUnit.NANOSECONDS);
+	// The connection may have been closed meanwhile
+	if (stopped) timeout.cancel();
+    }
+}
@@ -0,0 +1,567 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ****************************
+ * Filename: HeavyHitters.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Finds the users who have sent the most chat messages lately, and the
+ * messages which have been sent the most times, by however many users, so
+ * that an Administrator can see who is flooding the chat room and which spam
+ * is going round (see {@link Server.ThreadHandler#showTop()}).
+ * </p>
+ * <p>
+ * Counting every user and every message exactly would take memory for each
+ * of them. Instead, each of the two counts keeps a fixed number of counters
+ * with the Space-Saving algorithm: a user or a message without a counter
+ * takes over the smallest one, adding one to its count. A count may then be
+ * too high by the count it took over, which is shown as its error, but
+ * anything sent more often than the total divided by the number of counters
+ * is sure to have a counter. A message is counted by a 64-bit fingerprint of
+ * its letters and digits, without regard to case, spaces and punctuation, so
+ * small changes do not hide a copy, and each of its counters keeps a 64-bit
+ * sketch of the users who have sent it, from which their number is
+ * estimated.
+ * </p>
+ * <p>
+ * The counts are over a sliding window, cut into {@value #SLICES} slices
+ * with their own counters: when the oldest slice is needed again, it is
+ * cleared and starts counting afresh. The memory used is the same however
+ * many users connect. The number of counters and the window are start-up
+ * options of the server (see {@link #configure(Options)}).
+ * </p>
+ * <p>
+ * Every chat message is counted, so the counters are split into
+ * {@linkplain #STRIPES stripes} with a lock of their own, and a thread always
+ * counts in the same stripe, picked by its ID: the threads of different
+ * clients, or the event loops, seldom wait for each other. The stripes are
+ * added up when the counts are asked for, which is rare. Space-Saving counts
+ * add up as they are, with their errors, so the counts of a user or a message
+ * split over several stripes are still never too low.
+ * </p>
+ */
+public final class HeavyHitters {
+
+    /**
+     * The number of slices in the window.
+     */
+    private static final int SLICES = 6;
+
+    /**
+     * The number of stripes: the number of processors, rounded up to a power
+     * of two.
+     */
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+    /**
+     * The number of bytes of a message kept to show it.
+     */
+    private static final int SAMPLE = 48;
+
+    /**
+     * The offset basis of the FNV-1a hash.
+     */
+    private static final long FNV_BASIS = 0xcbf29ce484222325L;
+
+    /**
+     * The prime of the FNV-1a hash.
+     */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The number of counters in each slice, or 0 if nothing is counted.
+     */
+    private static int capacity = 32;
+
+    /**
+     * The length of a slice in nanoseconds.
+     */
+    private static long sliceNanos = TimeUnit.SECONDS.toNanos(60) / SLICES;
+
+    /**
+     * The senders of the chat messages.
+     */
+    private static final HeavyHitters senders = new HeavyHitters();
+
+    /**
+     * The chat messages, by fingerprint.
+     */
+    private static final HeavyHitters messages = new HeavyHitters();
+
+    /**
+     * The stripes.
+     */
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * A count in the window.
+     */
+    public static final class Entry {
+
+	/**
+	 * The user name, or the start of the message.
+	 */
+	private final String name;
+
+	/**
+	 * The count.
+	 */
+	private long count;
+
+	/**
+	 * How much too high the count may be.
+	 */
+	private long error;
+
+	/**
+	 * The sketch of the users who have sent the message.
+	 */
+	private long users;
+
+	/**
+	 * Creates a new Entry.
+	 *
+	 * @param name
+	 *            the user name, or the start of the message
+	 */
+	private Entry(String name) {
+	    this.name = name;
+	}
+
+	/**
+	 * Gets the user name, or the start of the message.
+	 *
+	 * @return the name
+	 */
+	public String name() {
+	    return name;
+	}
+
+	/**
+	 * Gets the count, which may be too high by {@link #error()}.
+	 *
+	 * @return the count
+	 */
+	public long count() {
+	    return count;
+	}
+
+	/**
+	 * Gets how much too high the count may be.
+	 *
+	 * @return the error
+	 */
+	public long error() {
+	    return error;
+	}
+
+	/**
+	 * Estimates the number of users who have sent the message, by linear
+	 * counting: with <i>z</i> of the 64 bits of the sketch still clear,
+	 * there were about <tt>64 ln(64 / z)</tt> users.
+	 *
+	 * @return the estimate, which cannot go above about 310
+	 */
+	public long users() {
+	    int clear = Long.SIZE - Long.bitCount(users);
+	    return Math.round(Long.SIZE * Math.log((double) Long.SIZE / Math.max(clear, 0.5)));
+	}
+    }
+
+    /**
+     * The Space-Saving counters of one slice of the window.
+     */
+    private static final class Slice {
+
+	/**
+	 * The number of the slice since the clock started, or -1 if the slice
+	 * has not been used.
+	 */
+	private long number = -1;
+
+	/**
+	 * The number of counters in use.
+	 */
+	private int size;
+
+	/**
+	 * The key of each counter.
+	 */
+	private final long[] keys = new long[capacity];
+
+	/**
+	 * The count of each counter.
+	 */
+	private final long[] counts = new long[capacity];
+
+	/**
+	 * How much too high the count of each counter may be.
+	 */
+	private final long[] errors = new long[capacity];
+
+	/**
+	 * The sketch of the users of each counter.
+	 */
+	private final long[] users = new long[capacity];
+
+	/**
+	 * The user name or the start of the message of each counter.
+	 */
+	private final String[] names = new String[capacity];
+
+	/**
+	 * Counts a key once.
+	 *
+	 * @param key
+	 *            the key
+	 * @param user
+	 *            the bit of the user in the sketch
+	 * @param name
+	 *            the name of the key, or <tt>null</tt> to take it from the
+	 *            text
+	 * @param text
+	 *            the array holding the message
+	 * @param offset
+	 *            the index of the first byte of the message
+	 * @param length
+	 *            the number of bytes in the message
+	 */
+	private void offer(long key, long user, String name, byte[] text, int offset, int length) {
+	    for (int i = 0; i < size; i++) {
+		if (keys[i] == key) {
+		    counts[i]++;
+		    users[i] |= user;
+		    return;
+		}
+	    }
+	    int i;
+	    if (size < keys.length) {
+		i = size++;
+		counts[i] = 0;
+	    } else {
+		// Takes over the smallest counter
+		i = 0;
+		for (int j = 1; j < size; j++) {
+		    if (counts[j] < counts[i]) i = j;
+		}
+	    }
+	    keys[i] = key;
+	    errors[i] = counts[i];
+	    counts[i]++;
+	    users[i] = user;
+	    // The name is only made for a new counter
+	    names[i] = name != null ? name : new String(text, offset, Math.min(length, SAMPLE), XorCodec.UTF_8);
+	}
+    }
+
+    /**
+     * The slices of the window counted by some of the threads.
+     */
+    private static final class Stripe {
+
+	/**
+	 * Guards the slices.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * The slices, used in turn.
+	 */
+	private final Slice[] slices = new Slice[SLICES];
+
+	/**
+	 * Creates a new Stripe with empty slices.
+	 */
+	private Stripe() {
+	    for (int i = 0; i < SLICES; i++) {
+		slices[i] = new Slice();
+	    }
+	}
+    }
+
+    /**
+     * Creates a new HeavyHitters with empty slices.
+     */
+    private HeavyHitters() {
+	for (int i = 0; i < STRIPES; i++) {
+	    stripes[i] = new Stripe();
+	}
+    }
+
+    /**
+     * <p>
+     * Reads the heavy-hitter options of the server:
+     * </p>
+     * <ul>
+     * <li>{@code --top-k}: how many senders and messages are counted in each
+     * slice of the window (default 32, 0 to count nothing).</li>
+     * <li>{@code --top-window}: how many seconds the window lasts (default
+     * 60).</li>
+     * </ul>
+     *
+     * @param options
+     *            the start-up options
+     * @throws IllegalArgumentException
+     *             if an option has an invalid value
+     */
+    public static void configure(Options options) {
+	int k = options.getInt("top-k", capacity);
+	if (k < 0) {
+	    throw new IllegalArgumentException("Option 'top-k' should not be negative.");
+	}
+	long window = options.getLong("top-window", 60);
+	if (window < 1) {
+	    throw new IllegalArgumentException("Option 'top-window' should be at least 1.");
+	}
+	capacity = k;
+	sliceNanos = TimeUnit.SECONDS.toNanos(window) / SLICES;
+	senders.clear();
+	messages.clear();
+    }
+
+    /**
+     * Is anything counted?
+     *
+     * @return <tt>true</tt> if there are counters
+     */
+    public static boolean enabled() {
+	return capacity > 0;
+    }
+
+    /**
+     * Gets the number of counters in each slice.
+     *
+     * @return the number of counters
+     */
+    public static int capacity() {
+	return capacity;
+    }
+
+    /**
+     * Gets the length of the window.
+     *
+     * @return the window in seconds
+     */
+    public static long windowSeconds() {
+	return TimeUnit.NANOSECONDS.toSeconds(sliceNanos * SLICES);
+    }
+
+    /**
+     * Counts the sender of a chat message which has not been sent, because
+     * of a banned word, leaving the message itself out.
+     *
+     * @param sender
+     *            the user name of the sender
+     */
+    public static void recordSender(String sender) {
+	if (capacity == 0) return;
+	senders.offer(System.nanoTime(), hash(sender), 0, sender, null, 0, 0);
+    }
+
+    /**
+     * Counts a chat message, as it is sent after the moderation, and its
+     * sender.
+     *
+     * @param sender
+     *            the user name of the sender
+     * @param content
+     *            the array holding the UTF-8 bytes of the message
+     * @param offset
+     *            the index of the first byte of the message
+     * @param length
+     *            the number of bytes in the message
+     */
+    public static void record(String sender, byte[] content, int offset, int length) {
+	if (capacity == 0) return;
+	long now = System.nanoTime();
+	long user = hash(sender);
+	senders.offer(now, user, 0, sender, null, 0, 0);
+	// The top 6 bits of the sender's mixed hash pick his/her bit in the
+	// sketch
+	messages.offer(now, fingerprint(content, offset, length), 1L << (mix(user) >>> 58), null, content,
+		offset, length);
+    }
+
+    /**
+     * Gets the users who have sent the most chat messages in the window.
+     *
+     * @param n
+     *            the largest number of users
+     * @return the users, the one with the highest count first
+     */
+    public static List<Entry> topSenders(int n) {
+	return senders.top(n);
+    }
+
+    /**
+     * Gets the chat messages which have been sent the most times in the
+     * window.
+     *
+     * @param n
+     *            the largest number of messages
+     * @return the messages, the one with the highest count first
+     */
+    public static List<Entry> topMessages(int n) {
+	return messages.top(n);
+    }
+
+    /**
+     * Counts a key once in the current slice.
+     *
+     * @param now
+     *            the time from {@link System#nanoTime()}
+     * @param key
+     *            the key
+     * @param user
+     *            the bit of the user in the sketch
+     * @param name
+     *            the name of the key, or <tt>null</tt> to take it from the
+     *            text
+     * @param text
+     *            the array holding the message
+     * @param offset
+     *            the index of the first byte of the message
+     * @param length
+     *            the number of bytes in the message
+     */
+    private void offer(long now, long key, long user, String name, byte[] text, int offset, int length) {
+	long number = Math.floorDiv(now, sliceNanos);
+	Stripe stripe = stripes[(int) mix(Thread.currentThread().getId()) & (STRIPES - 1)];
+	stripe.lock.lock();
+	try {
+	    Slice slice = stripe.slices[(int) Math.floorMod(number, (long) SLICES)];
+	    if (slice.number != number) {
+		// The slice is reused for a new stretch of time
+		slice.number = number;
+		slice.size = 0;
+	    }
+	    slice.offer(key, user, name, text, offset, length);
+	} finally {
+	    stripe.lock.unlock();
+	}
+    }
+
+    /**
+     * Adds up the slices of the window in every stripe and takes the highest
+     * counts.
+     *
+     * @param n
+     *            the largest number of counts
+     * @return the counts, the highest first
+     */
+    private List<Entry> top(int n) {
+	long current = Math.floorDiv(System.nanoTime(), sliceNanos);
+	HashMap<Long, Entry> entries = new HashMap<Long, Entry>();
+	for (Stripe stripe : stripes) {
+	    stripe.lock.lock();
+	    try {
+		for (Slice slice : stripe.slices) {
+		    if (slice.number < 0 || current - slice.number >= SLICES) continue;
+		    for (int i = 0; i < slice.size; i++) {
+			Entry entry = entries.get(slice.keys[i]);
+			if (entry == null) {
+			    entry = new Entry(slice.names[i]);
+			    entries.put(slice.keys[i], entry);
+			}
+			entry.count += slice.counts[i];
+			entry.error += slice.errors[i];
+			entry.users |= slice.users[i];
+		    }
+		}
+	    } finally {
+		stripe.lock.unlock();
+	    }
+	}
+	List<Entry> list = new ArrayList<Entry>(entries.values());
+	Collections.sort(list, new Comparator<Entry>() {
+	    @Override
+	    public int compare(Entry a, Entry b) {
+		return Long.compare(b.count, a.count);
+	    }
+	});
+	return list.size() > n ? list.subList(0, n) : list;
+    }
+
+    /**
+     * Forgets every count, and makes the slices the size of
+     * {@link #capacity}. Only called at start-up, before any message is
+     * counted.
+     */
+    private void clear() {
+	for (int i = 0; i < STRIPES; i++) {
+	    stripes[i] = new Stripe();
+	}
+    }
+
+    /**
+     * Hashes a user name with 64-bit FNV-1a.
+     *
+     * @param name
+     *            the user name
+     * @return the hash
+     */
+    private static long hash(String name) {
+	long hash = FNV_BASIS;
+	for (int i = 0; i < name.length(); i++) {
+	    hash = (hash ^ name.charAt(i)) * FNV_PRIME;
+	}
+	return hash;
+    }
+
+    /**
+     * Mixes the bits of a hash, as the last step of MurmurHash3 does. The top
+     * bits of an FNV-1a hash hardly change between names which only differ in
+     * their last characters, such as "user1" and "user2".
+     *
+     * @param hash
+     *            the hash
+     * @return the mixed hash
+     */
+    private static long mix(long hash) {
+	hash ^= hash >>> 33;
+	hash *= 0xff51afd7ed558ccdL;
+	hash ^= hash >>> 33;
+	hash *= 0xc4ceb9fe1a85ec53L;
+	return hash ^ hash >>> 33;
+    }
+
+    /**
+     * Takes the fingerprint of a message with 64-bit FNV-1a, over its ASCII
+     * letters (in lower case), its digits and its other characters, leaving
+     * out spaces and punctuation.
+     *
+     * @param content
+     *            the array holding the UTF-8 bytes of the message
+     * @param offset
+     *            the index of the first byte of the message
+     * @param length
+     *            the number of bytes in the message
+     * @return the fingerprint
+     */
+    static long fingerprint(byte[] content, int offset, int length) {
+	long hash = FNV_BASIS;
+	for (int i = offset; i < offset + length; i++) {
+	    int b = content[i];
+	    if (b >= 'A' && b <= 'Z') {
+		b += 'a' - 'A';
+	    } else if (b >= 0 && !(b >= 'a' && b <= 'z') && !(b >= '0' && b <= '9')) {
+		// A space, a punctuation mark or a control character
+		continue;
+	    }
+	    hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+	}
+	return hash;
+    }
+}
@@ -0,0 +1,263 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ****************************
+ * Filename: History.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * The most recent chat messages of a {@link Room}, which are shown to a user
+ * when he/she enters it, so that he/she does not join the conversation
+ * without any context.
+ * </p>
+ * <p>
+ * The History is a ring buffer of fixed capacity: once it is full, every new
+ * message takes the place of the oldest one. It keeps the {@link Frame} which
+ * was sent to the other users, already encoded and shared with their
+ * outbound queues, in arrays allocated once when the room is created, so
+ * recording a message creates no garbage at all.
+ * </p>
+ * <p>
+ * Messages older than the maximum age, if there is one, are not replayed.
+ * </p>
+ */
+public class History {
+
+    /**
+     * Guards the ring buffer.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The messages, as sent to the users other than the sender.
+     */
+    private final Frame[] frames;
+
+    /**
+     * The senders of the messages, <tt>null</tt> for those put back from the
+     * {@link Journal}.
+     */
+    private final Session[] senders;
+
+    /**
+     * The times (from {@link Clock#monotonicMillis()}) when the messages
+     * were sent.
+     */
+    private final long[] times;
+
+    /**
+     * The numbers of the messages, counted from the first one ever recorded.
+     */
+    private final long[] numbers;
+
+    /**
+     * The number of messages recorded so far, which is the number of the
+     * next one.
+     */
+    private long recorded;
+
+    /**
+     * The index of the slot which the next message is written to.
+     */
+    private int next;
+
+    /**
+     * The number of messages in the buffer.
+     */
+    private int count;
+
+    /**
+     * The maximum age of a message replayed, in milliseconds, or 0 if there
+     * is none.
+     */
+    private final long maxAgeMillis;
+
+    /**
+     * <p>
+     * Creates the History from the start-up options of the server:
+     * </p>
+     * <ul>
+     * <li>{@code --history}: how many of the latest messages are kept and
+     * replayed (default 50, 0 to turn the history off).</li>
+     * <li>{@code --history-minutes}: messages older than this are not
+     * replayed (default 0, which means no limit).</li>
+     * </ul>
+     *
+     * @param options
+     *            the start-up options
+     * @throws IllegalArgumentException
+     *             if an option has an invalid value
+     */
+    public History(Options options) {
+	int capacity = options.getInt("history", 50);
+	long minutes = options.getLong("history-minutes", 0);
+	if (capacity < 0) {
+	    throw new IllegalArgumentException("Option 'history' should not be negative.");
+	}
+	if (minutes < 0) {
+	    throw new IllegalArgumentException("Option 'history-minutes' should not be negative.");
+	}
+	frames = new Frame[capacity];
+	senders = new Session[capacity];
+	times = new long[capacity];
+	numbers = new long[capacity];
+	maxAgeMillis = TimeUnit.MINUTES.toMillis(minutes);
+    }
+
+    /**
+     * Creates an empty History of the same size as another, for a new
+     * {@link Room}.
+     *
+     * @param settings
+     *            the History whose capacity and maximum age are copied
+     */
+    public History(History settings) {
+	frames = new Frame[settings.capacity()];
+	senders = new Session[settings.capacity()];
+	times = new long[settings.capacity()];
+	numbers = new long[settings.capacity()];
+	maxAgeMillis = settings.maxAgeMillis;
+    }
+
+    /**
+     * Gets the number of messages kept.
+     *
+     * @return the capacity of the History, 0 if it is off
+     */
+    public int capacity() {
+	return frames.length;
+    }
+
+    /**
+     * Gets the maximum age of a message replayed.
+     *
+     * @return the maximum age in milliseconds, or 0 if there is none
+     */
+    public long maxAgeMillis() {
+	return maxAgeMillis;
+    }
+
+    /**
+     * Gets the number of messages recorded so far.
+     *
+     * @return the number of the next message
+     */
+    public long recorded() {
+	lock.lock();
+	try {
+	    return recorded;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Records a chat message. Only called by its {@link Room}, see
+     * {@link Room#record(Frame, Session)}.
+     *
+     * @param frame
+     *            the message, as sent to the users other than the sender
+     * @param sender
+     *            the sender
+     */
+    public void record(Frame frame, Session sender) {
+	if (frames.length == 0) return;
+	long now = Clock.monotonicMillis();
+	lock.lock();
+	try {
+	    frames[next] = frame;
+	    senders[next] = sender;
+	    times[next] = now;
+	    numbers[next] = recorded++;
+	    next = (next + 1) % frames.length;
+	    if (count < frames.length) count++;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Puts back a chat message read from the {@link Journal} when the server
+     * starts. Its sender has left, so nobody's block list applies to it.
+     *
+     * @param frame
+     *            the message, as sent to the users other than the sender
+     * @param sentAt
+     *            when the message was sent, in milliseconds since 1970
+     */
+    public void restore(Frame frame, long sentAt) {
+	if (frames.length == 0) return;
+	// Works out the time on the clock of this run of the server
+	long time = Clock.monotonicMillis() - (Clock.currentTimeMillis() - sentAt);
+	lock.lock();
+	try {
+	    frames[next] = frame;
+	    senders[next] = null;
+	    times[next] = time;
+	    numbers[next] = recorded++;
+	    next = (next + 1) % frames.length;
+	    if (count < frames.length) count++;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Gets the messages to be replayed to a user who has just entered the
+     * chat room: those which are not too old, leaving out the messages from
+     * anybody he/she has blocked, and those recorded after he/she entered,
+     * which have been handed to him/her already as a member.
+     *
+     * @param joiner
+     *            the user who has entered the chat room
+     * @param sessions
+     *            the users in the chat room, with their block lists
+     * @param header
+     *            a message to put before the replayed messages
+     * @return the header and the messages, oldest first, or an empty array if
+     *         there is no message to replay
+     */
+    public Frame[] replay(Session joiner, SessionRegistry sessions, Frame header) {
+	long oldest = maxAgeMillis > 0 ? Clock.monotonicMillis() - maxAgeMillis : Long.MIN_VALUE;
+	long mark = joiner.historyMark();
+
+	// Copies the messages which are not too old, oldest first, so that
+	// the block lists are looked up without holding the lock
+	Frame[] recent;
+	Session[] from;
+	int found = 0;
+	lock.lock();
+	try {
+	    recent = new Frame[count];
+	    from = new Session[count];
+	    for (int i = 0; i < count; i++) {
+		int slot = (next - count + i + frames.length) % frames.length;
+		if (times[slot] < oldest || numbers[slot] >= mark) continue;
+		recent[found] = frames[slot];
+		from[found++] = senders[slot];
+	    }
+	} finally {
+	    lock.unlock();
+	}
+
+	Frame[] replay = new Frame[found + 1];
+	int n = 0;
+	for (int i = 0; i < found; i++) {
+	    // A sender who has left has no block against him/her any more
+	    Session sender = from[i];
+	    if (sender != null && sessions.get(sender.id()) == sender && sessions.isBlocked(joiner, sender)) continue;
+	    if (n == 0) replay[n++] = header;
+	    replay[n++] = recent[i];
+	}
+	if (n == replay.length) return replay;
+	Frame[] trimmed = new Frame[n];
+	System.arraycopy(replay, 0, trimmed, 0, n);
+	return trimmed;
+    }
+}
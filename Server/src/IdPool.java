@@ -0,0 +1,64 @@
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ****************************
+ * Filename: IdPool.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Gives out session IDs: small integers which identify the users who are in
+ * the chat room.
+ * </p>
+ * The smallest free ID is always given out first, and the ID of a user who
+ * has left is used again, so the IDs stay dense and can index arrays and
+ * bitsets.
+ */
+public class IdPool {
+
+    /**
+     * The IDs in use.
+     */
+    private final BitSet used = new BitSet();
+
+    /**
+     * Guards the IDs.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Takes the smallest free ID.
+     *
+     * @return the ID
+     */
+    public int acquire() {
+	lock.lock();
+	try {
+	    int id = used.nextClearBit(0);
+	    used.set(id);
+	    return id;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Gives back an ID which is no longer in use.
+     *
+     * @param id
+     *            the ID
+     */
+    public void release(int id) {
+	lock.lock();
+	try {
+	    used.clear(id);
+	} finally {
+	    lock.unlock();
+	}
+    }
+}
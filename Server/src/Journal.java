@@ -0,0 +1,641 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/*
+ * ****************************
+ * Filename: Journal.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * The Journal keeps every chat message, notification and private message on
+ * disk, so that they are not lost when the server stops, and refills the
+ * {@link History} of the lobby from them when the server starts again (the
+ * other rooms only exist while somebody is in them).
+ * </p>
+ * <p>
+ * The messages are appended to segment files of fixed size, which are mapped
+ * into memory, so writing a message is only copying its bytes. When a segment
+ * is full, a new one is started and the oldest segments beyond the retention
+ * are deleted. Each record is:
+ * </p>
+ *
+ * <pre>
+ * int  length of the body
+ * int  CRC-32 of the body
+ * body:
+ *   byte  type ({@link #CHAT}, {@link #NOTICE} or {@link #PRIVATE})
+ *   long  time, in milliseconds since 1970
+ *   int   length of the target, 0 for a message to the lobby
+ *   ...   the target, in UTF-8: the receiver of a private message, or
+ *         the room of any other message outside the lobby
+ *   ...   the message, exactly as sent to the clients (encrypted)
+ * </pre>
+ * <p>
+ * A length of 0, or a record whose checksum does not match, is the end of a
+ * segment, so a record half written when the server was killed is simply
+ * ignored and written over.
+ * </p>
+ * <p>
+ * The threads which handle the clients never touch the files: they only put
+ * the message in a queue, and a writer thread of its own appends it and
+ * forces it to the disk according to the fsync policy (see
+ * {@link #Journal(Options)}). If the queue is full because the disk cannot
+ * keep up, the message is not journaled rather than holding up the chat room.
+ * </p>
+ */
+public class Journal {
+
+    /**
+     * A chat message from a user, which is replayed by the {@link History}.
+     */
+    public static final byte CHAT = 1;
+
+    /**
+     * A notification broadcast by the server.
+     */
+    public static final byte NOTICE = 2;
+
+    /**
+     * A private message.
+     */
+    public static final byte PRIVATE = 3;
+
+    /**
+     * When the journaled messages are forced to the disk.
+     */
+    public enum Sync {
+
+	/**
+	 * After every message. The safest and the slowest.
+	 */
+	ALWAYS,
+
+	/**
+	 * After every batch of messages taken from the queue, so the messages
+	 * which arrive while the disk is busy share the next fsync (group
+	 * commit).
+	 */
+	BATCH,
+
+	/**
+	 * At most once per fsync interval. Up to an interval of messages may
+	 * be lost if the machine (not only the server) goes down.
+	 */
+	PERIODIC
+    }
+
+    /**
+     * The number of bytes before the body of a record: the length and the
+     * checksum.
+     */
+    private static final int RECORD_HEADER = 8;
+
+    /**
+     * The number of bytes at the start of the body: the type, the time and
+     * the length of the target.
+     */
+    private static final int BODY_HEADER = 13;
+
+    /**
+     * The extension of the segment files, whose names are their numbers.
+     */
+    private static final String SUFFIX = ".journal";
+
+    /**
+     * How long the writer waits for a message before it checks the fsync
+     * interval and whether the Journal is closed, in milliseconds.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * The target of a message to the lobby.
+     */
+    private static final byte[] LOBBY = new byte[0];
+
+    /**
+     * The directory of the segment files, or <tt>null</tt> if the Journal is
+     * off.
+     */
+    private final Path directory;
+
+    /**
+     * The fsync policy.
+     */
+    private final Sync sync;
+
+    /**
+     * The fsync interval of {@link Sync#PERIODIC}, in milliseconds.
+     */
+    private final long syncMillis;
+
+    /**
+     * The size of a segment file in bytes.
+     */
+    private final int segmentBytes;
+
+    /**
+     * The number of segment files kept.
+     */
+    private final int segments;
+
+    /**
+     * The messages waiting to be written.
+     */
+    private final ArrayBlockingQueue<Entry> queue;
+
+    /**
+     * The writer thread, or <tt>null</tt> if the Journal has not been started.
+     */
+    private volatile Thread writer;
+
+    /**
+     * Whether the Journal has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The number of chat messages put back into the History on start-up.
+     */
+    private int recovered;
+
+    /*
+     * The rest is only used by the writer thread once it has been started.
+     */
+
+    /**
+     * The number of the segment being written.
+     */
+    private long segmentNumber;
+
+    /**
+     * The segment being written, positioned after its last record.
+     */
+    private MappedByteBuffer segment;
+
+    /**
+     * Computes the checksums.
+     */
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Whether something has been written since the last fsync.
+     */
+    private boolean dirty;
+
+    /**
+     * The time of the last fsync, from {@link Clock#monotonicMillis()}.
+     */
+    private long lastSync;
+
+    /**
+     * <p>
+     * Creates the Journal from the start-up options of the server:
+     * </p>
+     * <ul>
+     * <li>{@code --journal}: the directory of the segment files (by default
+     * none, which turns the Journal off).</li>
+     * <li>{@code --journal-fsync}: {@code always}, {@code batch} (default) or
+     * {@code periodic}, see {@link Sync}.</li>
+     * <li>{@code --journal-fsync-interval}: the fsync interval of
+     * {@code periodic} in milliseconds (default 1000).</li>
+     * <li>{@code --journal-segment-mb}: the size of a segment file in MB
+     * (default 64).</li>
+     * <li>{@code --journal-segments}: how many segment files are kept, the
+     * oldest being deleted (default 16).</li>
+     * <li>{@code --journal-queue}: how many messages may wait for the writer
+     * (default 65536).</li>
+     * </ul>
+     * Nothing is read or written until {@link #start(History)}.
+     *
+     * @param options
+     *            the start-up options
+     * @throws IllegalArgumentException
+     *             if an option has an invalid value
+     */
+    public Journal(Options options) {
+	String name = options.get("journal", null);
+	directory = name == null ? null : Paths.get(name);
+	String policy = options.get("journal-fsync", "batch");
+	try {
+	    sync = Sync.valueOf(policy.toUpperCase());
+	} catch (IllegalArgumentException e) {
+	    throw new IllegalArgumentException("Option 'journal-fsync' should be always, batch or periodic: " + policy);
+	}
+	syncMillis = options.getLong("journal-fsync-interval", 1000);
+	if (syncMillis < 1) {
+	    throw new IllegalArgumentException("Option 'journal-fsync-interval' should be at least 1.");
+	}
+	int megabytes = options.getInt("journal-segment-mb", 64);
+	if (megabytes < 1 || megabytes > 1024) {
+	    throw new IllegalArgumentException("Option 'journal-segment-mb' should be between 1 and 1024.");
+	}
+	segmentBytes = megabytes << 20;
+	segments = options.getInt("journal-segments", 16);
+	if (segments < 1) {
+	    throw new IllegalArgumentException("Option 'journal-segments' should be at least 1.");
+	}
+	int capacity = options.getInt("journal-queue", 65536);
+	if (capacity < 1) {
+	    throw new IllegalArgumentException("Option 'journal-queue' should be at least 1.");
+	}
+	queue = new ArrayBlockingQueue<Entry>(capacity);
+    }
+
+    /**
+     * Gets the directory of the segment files.
+     *
+     * @return the directory, or <tt>null</tt> if the Journal is off
+     */
+    public Path directory() {
+	return directory;
+    }
+
+    /**
+     * Gets the fsync policy.
+     *
+     * @return the policy
+     */
+    public Sync sync() {
+	return sync;
+    }
+
+    /**
+     * Gets the number of chat messages put back into the History by
+     * {@link #start(History)}.
+     *
+     * @return the number of messages
+     */
+    public int recovered() {
+	return recovered;
+    }
+
+    /**
+     * Reads the segment files left by the last run of the server, puts the
+     * latest chat messages back into the History, and starts the writer
+     * thread, which goes on after the last complete record. Does nothing if
+     * the Journal is off.
+     *
+     * @param history
+     *            the empty History of the lobby
+     * @throws IOException
+     *             if the segment files cannot be read or created
+     */
+    public void start(History history) throws IOException {
+	if (directory == null) return;
+	Files.createDirectories(directory);
+	List<Long> numbers = segmentNumbers();
+	if (numbers.isEmpty()) {
+	    open(0);
+	} else {
+	    // Opens the newest segment, which is written on
+	    int newest = numbers.size() - 1;
+	    open(numbers.get(newest));
+
+	    // Goes back from the tail only as far as the History can hold
+	    int first = newest;
+	    int found = scan(segment.duplicate(), null);
+	    while (found < history.capacity() && first > 0) {
+		first--;
+		found += scan(read(numbers.get(first)), null);
+	    }
+	    for (int i = first; i < newest; i++) {
+		recovered += scan(read(numbers.get(i)), history);
+	    }
+	    // Leaves the newest segment positioned after its last record
+	    recovered += scan(segment, history);
+	    recovered = Math.min(recovered, history.capacity());
+	}
+	lastSync = Clock.monotonicMillis();
+
+	writer = new Thread("journal") {
+	    @Override
+	    public void run() {
+		write();
+	    }
+	};
+	writer.setDaemon(true);
+	writer.start();
+
+	// Writes what is left in the queue when the program exits, including
+	// by -shutdown, which calls System.exit()
+	Runtime.getRuntime().addShutdownHook(new Thread("journal-close") {
+	    @Override
+	    public void run() {
+		close();
+	    }
+	});
+    }
+
+    /**
+     * Journals a message. This never blocks: the message is only queued for
+     * the writer thread. Does nothing if the Journal is off or closed.
+     *
+     * @param type
+     *            {@link #CHAT}, {@link #NOTICE} or {@link #PRIVATE}
+     * @param frame
+     *            the message, as sent to the clients
+     * @param target
+     *            the name of the receiver of a private message, the room of
+     *            any other message, or <tt>null</tt> for the lobby
+     */
+    public void append(byte type, Frame frame, String target) {
+	if (writer == null || closed) return;
+	Entry entry = new Entry(type, Clock.currentTimeMillis(), frame,
+		target == null ? LOBBY : target.getBytes(XorCodec.UTF_8));
+	if (!queue.offer(entry)) {
+	    Metrics.journalDropped.increment();
+	}
+    }
+
+    /**
+     * Writes the messages still in the queue, forces them to the disk and
+     * stops the writer thread. Waits a few seconds at most.
+     */
+    public void close() {
+	Thread thread = writer;
+	if (thread == null || closed) return;
+	closed = true;
+	try {
+	    thread.join(TimeUnit.SECONDS.toMillis(5));
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /**
+     * The loop of the writer thread: takes the messages from the queue in
+     * batches, appends them and forces them to the disk according to the
+     * fsync policy.
+     */
+    private void write() {
+	List<Entry> batch = new ArrayList<Entry>();
+	while (true) {
+	    try {
+		Entry first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+		if (first != null) {
+		    batch.add(first);
+		    queue.drainTo(batch);
+		}
+	    } catch (InterruptedException e) {
+		// Only stops when the Journal is closed
+	    }
+	    try {
+		for (Entry entry : batch) {
+		    append(entry);
+		    if (sync == Sync.ALWAYS) force();
+		}
+		Metrics.journaled.add(batch.size());
+		if (dirty && (sync == Sync.BATCH || closed
+			|| Clock.monotonicMillis() - lastSync >= syncMillis)) {
+		    force();
+		}
+	    } catch (IOException e) {
+		EventLog.warn(EventLog.Type.FILE, "Cannot write the journal: " + e.getMessage());
+	    }
+	    batch.clear();
+	    if (closed && queue.isEmpty()) return;
+	}
+    }
+
+    /**
+     * Appends a record to the segment being written, starting a new segment
+     * if it is full.
+     *
+     * @param entry
+     *            the message
+     * @throws IOException
+     *             if a new segment cannot be created
+     */
+    private void append(Entry entry) throws IOException {
+	int length = BODY_HEADER + entry.target.length + entry.frame.payloadLength();
+	if (segment.remaining() < RECORD_HEADER + length) {
+	    roll();
+	}
+	int start = segment.position();
+	segment.position(start + RECORD_HEADER);
+	segment.put(entry.type).putLong(entry.time).putInt(entry.target.length).put(entry.target)
+		.put(entry.frame.payload());
+	crc.reset();
+	crc.update(body(segment, start, length));
+	segment.putInt(start + 4, (int) crc.getValue());
+	// The length goes in last, so that a torn record reads as the end
+	segment.putInt(start, length);
+	dirty = true;
+    }
+
+    /**
+     * Forces the segment being written to the disk.
+     */
+    private void force() {
+	segment.force();
+	dirty = false;
+	lastSync = Clock.monotonicMillis();
+	Metrics.journalSyncs.increment();
+    }
+
+    /**
+     * Finishes the segment being written, starts the next one and deletes
+     * the oldest segments beyond the retention.
+     *
+     * @throws IOException
+     *             if the new segment cannot be created
+     */
+    private void roll() throws IOException {
+	if (dirty) force();
+	open(segmentNumber + 1);
+	List<Long> numbers = segmentNumbers();
+	for (int i = 0; i < numbers.size() - segments; i++) {
+	    try {
+		Files.deleteIfExists(path(numbers.get(i)));
+	    } catch (IOException e) {
+		// Tries again at the next roll
+		EventLog.warn(EventLog.Type.FILE, "Cannot delete an old journal segment: " + e.getMessage());
+	    }
+	}
+    }
+
+    /**
+     * Maps a segment file to be written, creating it if it does not exist.
+     *
+     * @param number
+     *            the number of the segment
+     * @throws IOException
+     *             if the file cannot be created or mapped
+     */
+    private void open(long number) throws IOException {
+	try (FileChannel channel = FileChannel.open(path(number), StandardOpenOption.CREATE,
+		StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+	    segment = channel.map(MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentBytes));
+	}
+	segmentNumber = number;
+    }
+
+    /**
+     * Maps a segment file to be read.
+     *
+     * @param number
+     *            the number of the segment
+     * @return the contents of the file
+     * @throws IOException
+     *             if the file cannot be mapped
+     */
+    private ByteBuffer read(long number) throws IOException {
+	try (FileChannel channel = FileChannel.open(path(number), StandardOpenOption.READ)) {
+	    return channel.map(MapMode.READ_ONLY, 0, channel.size());
+	}
+    }
+
+    /**
+     * Reads the complete records of a segment from the position of the
+     * buffer, and leaves the buffer positioned after the last of them.
+     *
+     * @param buffer
+     *            the contents of the segment
+     * @param history
+     *            the History to put the chat messages into, or <tt>null</tt>
+     *            to only count them
+     * @return the number of chat messages
+     */
+    private int scan(ByteBuffer buffer, History history) {
+	int chats = 0;
+	while (buffer.remaining() >= RECORD_HEADER + BODY_HEADER) {
+	    int start = buffer.position();
+	    int length = buffer.getInt(start);
+	    if (length < BODY_HEADER || length > buffer.remaining() - RECORD_HEADER) break;
+	    crc.reset();
+	    crc.update(body(buffer, start, length));
+	    if ((int) crc.getValue() != buffer.getInt(start + 4)) break;
+	    int targetLength = buffer.getInt(start + RECORD_HEADER + 9);
+	    if (targetLength < 0 || targetLength > length - BODY_HEADER) break;
+	    // Only the lobby is there when the server starts
+	    if (buffer.get(start + RECORD_HEADER) == CHAT && targetLength == 0) {
+		chats++;
+		if (history != null) {
+		    ByteBuffer body = body(buffer, start, length);
+		    long time = body.getLong(body.position() + 1);
+		    body.position(body.position() + BODY_HEADER + targetLength);
+		    byte[] payload = new byte[body.remaining()];
+		    body.get(payload);
+		    history.restore(Frame.restore(payload), time);
+		}
+	    }
+	    buffer.position(start + RECORD_HEADER + length);
+	}
+	return chats;
+    }
+
+    /**
+     * Gets a view of the body of a record.
+     *
+     * @param buffer
+     *            the contents of the segment
+     * @param start
+     *            the index of the record
+     * @param length
+     *            the length of the body
+     * @return a new buffer, from the first to the last byte of the body
+     */
+    private static ByteBuffer body(ByteBuffer buffer, int start, int length) {
+	ByteBuffer body = buffer.duplicate();
+	body.limit(start + RECORD_HEADER + length).position(start + RECORD_HEADER);
+	return body;
+    }
+
+    /**
+     * Lists the segment files in the directory.
+     *
+     * @return the numbers of the segments, oldest first
+     * @throws IOException
+     *             if the directory cannot be read
+     */
+    private List<Long> segmentNumbers() throws IOException {
+	List<Long> numbers = new ArrayList<Long>();
+	try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+	    for (Path file : files) {
+		String name = file.getFileName().toString();
+		try {
+		    numbers.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+		} catch (NumberFormatException e) {
+		    // Not a segment
+		}
+	    }
+	}
+	Collections.sort(numbers);
+	return numbers;
+    }
+
+    /**
+     * Gets the path of a segment file.
+     *
+     * @param number
+     *            the number of the segment
+     * @return the path
+     */
+    private Path path(long number) {
+	return directory.resolve(String.format("%016d%s", number, SUFFIX));
+    }
+
+    /**
+     * A message waiting to be written.
+     */
+    private static final class Entry {
+
+	/**
+	 * The type of the message.
+	 */
+	final byte type;
+
+	/**
+	 * When the message was sent, in milliseconds since 1970.
+	 */
+	final long time;
+
+	/**
+	 * The message, as sent to the clients.
+	 */
+	final Frame frame;
+
+	/**
+	 * The UTF-8 bytes of the target, empty for a message to the lobby.
+	 */
+	final byte[] target;
+
+	/**
+	 * Creates a new Entry.
+	 *
+	 * @param type
+	 *            the type of the message
+	 * @param time
+	 *            when the message was sent
+	 * @param frame
+	 *            the message
+	 * @param target
+	 *            the target
+	 */
+	Entry(byte type, long time, Frame frame, byte[] target) {
+	    this.type = type;
+	    this.time = time;
+	    this.frame = frame;
+	    this.target = target;
+	}
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * ****************************
+ * Filename: LatencyHistogram.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * A histogram of latencies in nanoseconds, which many threads can record into
+ * at the same time.
+ * </p>
+ * <p>
+ * Keeping every latency would take too much memory over a long run with
+ * thousands of sessions, so the latencies are counted in buckets instead. The
+ * buckets below 128 ns are 1 ns wide; above that, every power of two is split
+ * into 64 buckets, so a percentile is never more than about 1.6% above the
+ * real value, however long the latency.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of bits of a latency kept exactly: the buckets of every
+     * power of two are told apart by the 6 bits after the highest one.
+     */
+    private static final int SUB_BITS = 6;
+
+    /**
+     * The number of buckets in every power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * The count of every bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(bucketOf(Long.MAX_VALUE) + 1);
+
+    /**
+     * The number of latencies recorded.
+     */
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * The longest latency recorded.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Finds the bucket of a latency.
+     *
+     * @param nanos
+     *            the latency, not negative
+     * @return the index of the bucket
+     */
+    private static int bucketOf(long nanos) {
+	if (nanos < 2 * SUB_BUCKETS) return (int) nanos;
+	int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+	return (shift << SUB_BITS) + (int) (nanos >>> shift);
+    }
+
+    /**
+     * Finds the longest latency which falls in a bucket.
+     *
+     * @param bucket
+     *            the index of the bucket
+     * @return the latency in nanoseconds
+     */
+    private static long highestIn(int bucket) {
+	if (bucket < 2 * SUB_BUCKETS) return bucket;
+	int shift = (bucket >>> SUB_BITS) - 1;
+	long mantissa = bucket - ((long) shift << SUB_BITS);
+	return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos
+     *            the latency in nanoseconds; a negative one (which the clock
+     *            should never give) is recorded as 0
+     */
+    public void record(long nanos) {
+	if (nanos < 0) nanos = 0;
+	counts.incrementAndGet(bucketOf(nanos));
+	total.incrementAndGet();
+	long longest;
+	while (nanos > (longest = max.get()) && !max.compareAndSet(longest, nanos)) {
+	    // Another thread has just recorded a longer one, tries again
+	}
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long count() {
+	return total.get();
+    }
+
+    /**
+     * @return the longest latency recorded in nanoseconds
+     */
+    public long max() {
+	return max.get();
+    }
+
+    /**
+     * Finds a percentile of the latencies recorded.
+     *
+     * @param percent
+     *            the percentile, for example 99.9
+     * @return the latency in nanoseconds which that percent of the latencies
+     *         are no longer than, or 0 if nothing has been recorded
+     */
+    public long percentile(double percent) {
+	long count = total.get();
+	if (count == 0) return 0;
+	long rank = Math.max(1, (long) Math.ceil(count * percent / 100));
+	long seen = 0;
+	for (int i = 0; i < counts.length(); i++) {
+	    seen += counts.get(i);
+	    if (seen >= rank) return Math.min(highestIn(i), max.get());
+	}
+	return max.get();
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * ****************************
+ * Filename: LineReader.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Reads lines of bytes from an InputStream.
+ * </p>
+ * <p>
+ * Unlike a BufferedReader, a LineReader does not turn the bytes into
+ * characters and creates no String: a line is left in the reader's own
+ * buffer, where it can be decoded in place with {@link XorCodec}. A line is
+ * terminated by '\n', '\r' or "\r\n", the same as for
+ * {@link java.io.BufferedReader#readLine()}.
+ * </p>
+ */
+public class LineReader {
+
+    /**
+     * The largest line (in bytes) a client may send. A client which sends a
+     * longer line is disconnected.
+     */
+    public static final int MAX_LINE = 64 * 1024;
+
+    /**
+     * The stream to read from.
+     */
+    private final InputStream in;
+
+    /**
+     * The bytes read from the stream.
+     */
+    private byte[] buffer = new byte[1024];
+
+    /**
+     * The index of the first byte which has not been returned as part of a
+     * line.
+     */
+    private int start;
+
+    /**
+     * The index after the last byte read from the stream.
+     */
+    private int end;
+
+    /**
+     * The index of the first byte of the current line.
+     */
+    private int lineStart;
+
+    /**
+     * The number of bytes in the current line.
+     */
+    private int lineLength;
+
+    /**
+     * Was the last line terminated by '\r'? If so, a following '\n' belongs to
+     * the same line terminator.
+     */
+    private boolean skipLF;
+
+    /**
+     * Has the end of the stream been reached?
+     */
+    private boolean eof;
+
+    /**
+     * Creates a new LineReader.
+     *
+     * @param in
+     *            the stream to read from
+     */
+    public LineReader(InputStream in) {
+	this.in = in;
+    }
+
+    /**
+     * Reads the next line. The line can be found with {@link #buffer()},
+     * {@link #offset()} and {@link #length()} until this method is called
+     * again.
+     *
+     * @return <tt>true</tt> if a line has been read, or <tt>false</tt> if
+     *         the end of the stream has been reached
+     * @throws IOException
+     *             if the stream cannot be read, or the line is too long
+     */
+    public boolean readLine() throws IOException {
+	int scanned = start;
+	while (true) {
+	    for (int i = scanned; i < end; i++) {
+		byte b = buffer[i];
+		if (skipLF) {
+		    skipLF = false;
+		    if (b == '\n' && i == start) {
+			start++;
+			continue;
+		    }
+		}
+		if (b == '\n' || b == '\r') {
+		    skipLF = b == '\r';
+		    lineStart = start;
+		    lineLength = i - start;
+		    start = i + 1;
+		    return true;
+		}
+	    }
+	    if (eof) {
+		if (start == end) return false;
+		// The last line has no terminator
+		lineStart = start;
+		lineLength = end - start;
+		start = end;
+		return true;
+	    }
+	    scanned = fill();
+	}
+    }
+
+    /**
+     * Reads more bytes from the stream, making room in the buffer first.
+     *
+     * @return the index of the first byte which has not been scanned
+     * @throws IOException
+     *             if the stream cannot be read, or the line is too long
+     */
+    private int fill() throws IOException {
+	int pending = end - start;
+	if (start > 0) {
+	    // Moves the unfinished line to the start of the buffer
+	    System.arraycopy(buffer, start, buffer, 0, pending);
+	    start = 0;
+	    end = pending;
+	}
+	if (end == buffer.length) {
+	    if (buffer.length >= MAX_LINE) {
+		throw new IOException("Line too long.");
+	    }
+	    byte[] larger = new byte[Math.min(buffer.length * 2, MAX_LINE)];
+	    System.arraycopy(buffer, 0, larger, 0, end);
+	    buffer = larger;
+	}
+	int n = in.read(buffer, end, buffer.length - end);
+	if (n < 0) {
+	    eof = true;
+	} else {
+	    end += n;
+	}
+	return pending;
+    }
+
+    /**
+     * Gets the buffer holding the current line.
+     *
+     * @return the buffer, which may be changed in place
+     */
+    public byte[] buffer() {
+	return buffer;
+    }
+
+    /**
+     * Gets the index of the first byte of the current line.
+     *
+     * @return the index in {@link #buffer()}
+     */
+    public int offset() {
+	return lineStart;
+    }
+
+    /**
+     * Gets the number of bytes in the current line, not counting the line
+     * terminator.
+     *
+     * @return the number of bytes
+     */
+    public int length() {
+	return lineLength;
+    }
+}
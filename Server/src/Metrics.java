@@ -0,0 +1,377 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * ****************************
+ * Filename: Metrics.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * The performance counters of the server.
+ * </p>
+ * <p>
+ * The counters are recorded by every thread that handles a client, so they
+ * have to cost next to nothing: a counter is a {@link LongAdder}, which gives
+ * each contending thread its own cell instead of making them all update one
+ * value, and a duration goes into a {@link LatencyHistogram}, which only
+ * counts it in a bucket. The gauges, such as the number of messages waiting
+ * in the outbound queues, are only worked out when they are read.
+ * </p>
+ * <p>
+ * An Administrator reads the numbers with the request command
+ * {@code -stats}; they can also be appended to a file periodically (see
+ * {@link #configure(Options, SessionRegistry)}).
+ * </p>
+ */
+public final class Metrics {
+
+    /**
+     * The request commands which have their own histogram. Any other
+     * command is counted as "other", so that a client cannot make the server
+     * keep a histogram for every word he/she types.
+     */
+    private static final String[] COMMANDS = { "-block", "-unblock", "-private", "-admin", "-kick", "-h", "-ct",
+	    "-st", "-sip", "-num", "-cls", "-exit", "-shutdown", "-stats", "-top", "-join", "-leave", "-rooms" };
+
+    /**
+     * The lines (or text frames) received from the clients.
+     */
+    static final LongAdder messagesIn = new LongAdder();
+
+    /**
+     * The bytes in the lines received, after decryption.
+     */
+    static final LongAdder bytesIn = new LongAdder();
+
+    /**
+     * The messages taken from the outbound queues to be written.
+     */
+    static final LongAdder messagesOut = new LongAdder();
+
+    /**
+     * The bytes in the messages taken to be written, with their line
+     * terminators or frame headers.
+     */
+    static final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * The messages thrown away because an outbound queue was full.
+     */
+    static final LongAdder dropped = new LongAdder();
+
+    /**
+     * The clients disconnected because they did not read their messages.
+     */
+    static final LongAdder slowConsumers = new LongAdder();
+
+    /**
+     * The connections open at the moment, including those of clients who
+     * have not entered the chat room yet.
+     */
+    static final LongAdder connections = new LongAdder();
+
+    /**
+     * The clients who have entered the chat room since the server started.
+     */
+    static final LongAdder entered = new LongAdder();
+
+    /**
+     * The user names refused because they were empty or in use.
+     */
+    static final LongAdder refusedNames = new LongAdder();
+
+    /**
+     * The connections closed before the client entered the chat room, or
+     * because of an I/O problem.
+     */
+    static final LongAdder failed = new LongAdder();
+
+    /**
+     * The clients disconnected by their {@link Heartbeat} for being quiet
+     * for too long.
+     */
+    static final LongAdder idleTimeouts = new LongAdder();
+
+    /**
+     * The messages written to the {@link Journal}.
+     */
+    static final LongAdder journaled = new LongAdder();
+
+    /**
+     * The messages not journaled because the queue of the journal writer was
+     * full.
+     */
+    static final LongAdder journalDropped = new LongAdder();
+
+    /**
+     * The times the journal was forced to the disk.
+     */
+    static final LongAdder journalSyncs = new LongAdder();
+
+    /**
+     * The messages queued for the other nodes of the {@link Cluster}.
+     */
+    static final LongAdder relayedOut = new LongAdder();
+
+    /**
+     * The messages received from the other nodes of the {@link Cluster}.
+     */
+    static final LongAdder relayedIn = new LongAdder();
+
+    /**
+     * The lines which found the {@link RateLimiter} of their client empty.
+     */
+    static final LongAdder rateLimited = new LongAdder();
+
+    /**
+     * The events written by the {@link EventLog}.
+     */
+    static final LongAdder eventsLogged = new LongAdder();
+
+    /**
+     * The events discarded because the {@link EventLog} was full.
+     */
+    static final LongAdder eventsDropped = new LongAdder();
+
+    /**
+     * The chat messages and private messages in which the {@link Moderator}
+     * has found a banned term.
+     */
+    static final LongAdder moderated = new LongAdder();
+
+    /**
+     * The direct buffers allocated because the {@link BufferPool} had none to
+     * lend.
+     */
+    static final LongAdder buffersAllocated = new LongAdder();
+
+    /**
+     * The buffers lost without being given back to the {@link BufferPool},
+     * if leak detection is on.
+     */
+    static final LongAdder bufferLeaks = new LongAdder();
+
+    /**
+     * The times a sender waited because the queue of a {@link FanOut}
+     * worker was full.
+     */
+    static final LongAdder fanOutWaits = new LongAdder();
+
+    /**
+     * The time from a connection being built to the client entering the chat
+     * room, which includes the time the user took to type a name.
+     */
+    static final LatencyHistogram handshake = new LatencyHistogram();
+
+    /**
+     * The time taken to hand a chat message to all its receivers.
+     */
+    static final LatencyHistogram fanOut = new LatencyHistogram();
+
+    /**
+     * The time taken by the request commands, by command.
+     */
+    private static final Map<String, LatencyHistogram> commands = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * The start time of the server, from {@link Clock#monotonicMillis()}.
+     */
+    private static final long startTime = Clock.monotonicMillis();
+
+    /**
+     * The file to which the statistics are dumped, or <tt>null</tt>.
+     */
+    private static String file;
+
+    /**
+     * The number of seconds between two dumps.
+     */
+    private static long interval = 60;
+
+    /**
+     * Metrics only has static members.
+     */
+    private Metrics() {
+    }
+
+    /**
+     * <p>
+     * Reads the metrics options of the server:
+     * </p>
+     * <ul>
+     * <li>{@code --stats-file}: a file to which the statistics are appended
+     * periodically (by default none).</li>
+     * <li>{@code --stats-interval}: how many seconds there are between two
+     * dumps (default 60).</li>
+     * </ul>
+     *
+     * @param options
+     *            the start-up options
+     * @param sessions
+     *            the users in the chat room
+     * @throws IllegalArgumentException
+     *             if an option has an invalid value
+     */
+    public static void configure(Options options, final SessionRegistry sessions) {
+	file = options.get("stats-file", null);
+	interval = options.getLong("stats-interval", interval);
+	if (interval < 1) {
+	    throw new IllegalArgumentException("Option 'stats-interval' should be at least 1.");
+	}
+	if (file == null) return;
+	Thread dumper = new Thread("stats") {
+	    @Override
+	    public void run() {
+		while (true) {
+		    try {
+			Thread.sleep(TimeUnit.SECONDS.toMillis(interval));
+		    } catch (InterruptedException e) {
+			return;
+		    }
+		    dump(file, sessions);
+		}
+	    }
+	};
+	dumper.setDaemon(true);
+	dumper.start();
+    }
+
+    /**
+     * Gets the file to which the statistics are dumped.
+     *
+     * @return the name of the file, or <tt>null</tt> if there is none
+     */
+    public static String file() {
+	return file;
+    }
+
+    /**
+     * Gets how often the statistics are dumped.
+     *
+     * @return the number of seconds between two dumps
+     */
+    public static long interval() {
+	return interval;
+    }
+
+    /**
+     * Appends the statistics to a file.
+     *
+     * @param file
+     *            the name of the file
+     * @param sessions
+     *            the users in the chat room
+     */
+    private static void dump(String file, SessionRegistry sessions) {
+	try (PrintWriter pw = new PrintWriter(new FileWriter(file, true))) {
+	    for (String line : report(sessions)) {
+		pw.println(Clock.prefix() + line);
+	    }
+	} catch (IOException e) {
+	    EventLog.warn(EventLog.Type.FILE, "Cannot write the statistics to " + file + ": " + e.getMessage());
+	}
+    }
+
+    /**
+     * Records how long a request command took.
+     *
+     * @param userInput
+     *            the whole command
+     * @param nanos
+     *            the time taken in nanoseconds
+     */
+    static void command(String userInput, long nanos) {
+	int space = userInput.indexOf(' ');
+	String name = space < 0 ? userInput : userInput.substring(0, space);
+	String key = "other";
+	for (String command : COMMANDS) {
+	    if (command.equals(name)) {
+		key = command;
+		break;
+	    }
+	}
+	LatencyHistogram histogram = commands.get(key);
+	if (histogram == null) {
+	    LatencyHistogram created = new LatencyHistogram();
+	    histogram = commands.putIfAbsent(key, created);
+	    if (histogram == null) histogram = created;
+	}
+	histogram.record(nanos);
+    }
+
+    /**
+     * Puts the statistics into words.
+     *
+     * @param sessions
+     *            the users in the chat room
+     * @return the lines of the statistics
+     */
+    public static List<String> report(SessionRegistry sessions) {
+	// Walks the outbound queues for their depth
+	long waiting = 0;
+	int deepest = 0;
+	int limit = sessions.limit();
+	for (int id = 0; id < limit; id++) {
+	    Session session = sessions.get(id);
+	    if (session != null && !session.isRemote()) {
+		int size = session.out().size();
+		waiting += size;
+		deepest = Math.max(deepest, size);
+	    }
+	}
+	long seconds = Math.max(1, (Clock.monotonicMillis() - startTime) / 1000);
+
+	List<String> lines = new ArrayList<String>();
+	lines.add("Sessions: " + sessions.size() + " in " + sessions.rooms().size() + " rooms, " + connections.sum()
+		+ " connections open, " + entered.sum() + " entered, " + failed.sum() + " failed, "
+		+ refusedNames.sum() + " names refused, " + idleTimeouts.sum() + " idle timeouts");
+	lines.add("Messages in: " + messagesIn.sum() + " (" + messagesIn.sum() / seconds + "/s), " + bytesIn.sum()
+		+ " bytes, " + rateLimited.sum() + " over the rate limit, " + moderated.sum() + " with banned words");
+	lines.add("Messages out: " + messagesOut.sum() + " (" + messagesOut.sum() / seconds + "/s), "
+		+ bytesOut.sum() + " bytes, " + dropped.sum() + " dropped, " + slowConsumers.sum()
+		+ " slow consumers disconnected");
+	lines.add("Outbound queues: " + waiting + " messages waiting, " + deepest + " in the longest queue");
+	lines.add("Journal: " + journaled.sum() + " messages written, " + journalDropped.sum() + " dropped, "
+		+ journalSyncs.sum() + " fsyncs");
+	lines.add("Cluster: " + relayedOut.sum() + " messages relayed out, " + relayedIn.sum() + " in");
+	lines.add("Event log: " + eventsLogged.sum() + " events written, " + eventsDropped.sum() + " dropped");
+	lines.add("Buffers: " + BufferPool.borrowed() + " borrowed, " + BufferPool.pooledBytes() / 1024
+		+ " KB pooled, " + buffersAllocated.sum() + " allocated, " + bufferLeaks.sum() + " leaked");
+	lines.add(format("Handshake", handshake));
+	lines.add(format("Broadcast fan-out", fanOut) + ", " + fanOutWaits.sum() + " waits for a full queue");
+	for (String command : COMMANDS) {
+	    LatencyHistogram histogram = commands.get(command);
+	    if (histogram != null) lines.add(format("Command " + command, histogram));
+	}
+	LatencyHistogram other = commands.get("other");
+	if (other != null) lines.add(format("Other commands", other));
+	return lines;
+    }
+
+    /**
+     * Puts a histogram into words.
+     *
+     * @param name
+     *            what has been measured
+     * @param histogram
+     *            the histogram
+     * @return the count and the percentiles of the histogram in milliseconds
+     */
+    private static String format(String name, LatencyHistogram histogram) {
+	return String.format("%s: %d, p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms", name,
+		histogram.count(), histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6,
+		histogram.percentile(99.9) / 1e6, histogram.max() / 1e6);
+    }
+}
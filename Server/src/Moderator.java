@@ -0,0 +1,638 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * ****************************
+ * Filename: Moderator.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Looks for banned words and phrases in the chat messages and the private
+ * messages before they are sent, and masks them, rejects the message or
+ * flags it for the Administrator, depending on the {@linkplain Action
+ * action}.
+ * </p>
+ * <p>
+ * The banned terms are read from a file, one to a line, and compiled into a
+ * single {@linkplain Dictionary Aho-Corasick automaton}, so a message is
+ * scanned once, byte by byte, however many terms there are, where looking for
+ * each term in turn would cost the number of terms for every message. The
+ * terms match whole words only, and without regard to the case of the ASCII
+ * letters.
+ * </p>
+ * <p>
+ * The file is looked at again every few seconds. When it has changed, a new
+ * automaton is compiled by the thread watching the file and then put in the
+ * place of the old one, so the messages keep flowing while the terms are
+ * reloaded: a message is scanned either with the old terms or with the new
+ * ones. The file, the action and the reload interval are start-up options of
+ * the server (see {@link #configure(Options)}); by default nothing is
+ * filtered.
+ * </p>
+ */
+public final class Moderator {
+
+    /**
+     * What happens to a message with a banned term.
+     */
+    public enum Action {
+
+	/**
+	 * Sends the message with every character of the banned terms replaced
+	 * by '*'.
+	 */
+	MASK,
+
+	/**
+	 * Does not send the message, and tells the sender.
+	 */
+	REJECT,
+
+	/**
+	 * Sends the message as it is, and writes the sender down in the
+	 * {@link EventLog}.
+	 */
+	FLAG
+    }
+
+    /**
+     * The file the banned terms are read from, or <tt>null</tt> if there is
+     * none.
+     */
+    private static Path file;
+
+    /**
+     * The action taken on a message with a banned term.
+     */
+    private static Action action = Action.MASK;
+
+    /**
+     * The banned terms at the moment, or <tt>null</tt> if nothing is
+     * filtered.
+     */
+    private static volatile Dictionary terms;
+
+    /**
+     * When the file was last changed, as of the last time it was read.
+     */
+    private static FileTime modified;
+
+    /**
+     * The size of the file, as of the last time it was read.
+     */
+    private static long size;
+
+    /**
+     * Moderator only has static members.
+     */
+    private Moderator() {
+    }
+
+    /**
+     * <p>
+     * Reads the moderation options of the server, reads the banned terms and
+     * starts watching their file:
+     * </p>
+     * <ul>
+     * <li>{@code --moderation-file}: the file of banned terms, one word or
+     * phrase to a line, where empty lines and lines starting with '#' are
+     * left out (by default none).</li>
+     * <li>{@code --moderation-action}: {@code mask} (default), {@code reject}
+     * or {@code flag}.</li>
+     * <li>{@code --moderation-reload}: how many seconds there are between two
+     * looks at the file for changes (default 5, 0 for never).</li>
+     * </ul>
+     *
+     * @param options
+     *            the start-up options
+     * @throws IllegalArgumentException
+     *             if an option has an invalid value, or the file cannot be
+     *             read
+     */
+    public static void configure(Options options) {
+	String name = options.get("moderation-action", "mask");
+	try {
+	    action = Action.valueOf(name.toUpperCase());
+	} catch (IllegalArgumentException e) {
+	    throw new IllegalArgumentException("Option 'moderation-action' should be mask, reject or flag: " + name);
+	}
+	final long reload = options.getLong("moderation-reload", 5);
+	if (reload < 0) {
+	    throw new IllegalArgumentException("Option 'moderation-reload' should not be negative.");
+	}
+	String path = options.get("moderation-file", null);
+	if (path == null || file != null) return;
+	file = Paths.get(path);
+	try {
+	    load();
+	} catch (IOException e) {
+	    throw new IllegalArgumentException("Option 'moderation-file' should name a readable file: " + e);
+	}
+	if (reload > 0) {
+	    Thread watcher = new Thread("moderation-reload") {
+		@Override
+		public void run() {
+		    watch(TimeUnit.SECONDS.toMillis(reload));
+		}
+	    };
+	    watcher.setDaemon(true);
+	    watcher.start();
+	}
+    }
+
+    /**
+     * Are the messages filtered?
+     *
+     * @return <tt>true</tt> if there is a file of banned terms
+     */
+    public static boolean enabled() {
+	return terms != null;
+    }
+
+    /**
+     * Gets the action taken on a message with a banned term.
+     *
+     * @return the action
+     */
+    public static Action action() {
+	return action;
+    }
+
+    /**
+     * Describes the filter for the server's screen.
+     *
+     * @return for example "1200 terms from banned.txt, mask"
+     */
+    public static String describe() {
+	Dictionary current = terms;
+	return (current == null ? 0 : current.size()) + " terms from " + file + ", "
+		+ action.toString().toLowerCase();
+    }
+
+    /**
+     * Tells whether a message has a banned term.
+     *
+     * @param content
+     *            the array holding the UTF-8 bytes of the message
+     * @param offset
+     *            the index of the first byte of the message
+     * @param length
+     *            the number of bytes in the message
+     * @return <tt>true</tt> if there is a banned term in the message
+     */
+    public static boolean matches(byte[] content, int offset, int length) {
+	Dictionary current = terms;
+	return current != null && current.find(content, offset, length, null) > 0;
+    }
+
+    /**
+     * Replaces every character of the banned terms in a message by '*', in
+     * place. A character of several bytes becomes a single '*', so the
+     * message may become shorter.
+     *
+     * @param content
+     *            the array holding the UTF-8 bytes of the message
+     * @param offset
+     *            the index of the first byte of the message
+     * @param length
+     *            the number of bytes in the message
+     * @return the number of bytes in the masked message
+     */
+    public static int mask(byte[] content, int offset, int length) {
+	Dictionary current = terms;
+	return current == null ? length : current.mask(content, offset, length);
+    }
+
+    /**
+     * Looks at the file every now and then, and reloads the terms when it
+     * has changed. A file which cannot be read leaves the terms as they
+     * are.
+     *
+     * @param interval
+     *            the milliseconds between two looks
+     */
+    private static void watch(long interval) {
+	while (true) {
+	    try {
+		Thread.sleep(interval);
+	    } catch (InterruptedException e) {
+		return;
+	    }
+	    try {
+		if (!Files.getLastModifiedTime(file).equals(modified) || Files.size(file) != size) {
+		    load();
+		}
+	    } catch (IOException e) {
+		EventLog.warn(EventLog.Type.FILE, "Cannot reload the moderation terms from " + file + ": " + e);
+	    }
+	}
+    }
+
+    /**
+     * Reads the terms from the file and puts a new automaton in the place of
+     * the old one.
+     *
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    private static void load() throws IOException {
+	long start = System.nanoTime();
+	FileTime time = Files.getLastModifiedTime(file);
+	long bytes = Files.size(file);
+	List<String> lines = Files.readAllLines(file, XorCodec.UTF_8);
+	List<String> list = new ArrayList<String>(lines.size());
+	for (String line : lines) {
+	    String term = line.trim();
+	    if (!term.isEmpty() && !term.startsWith("#")) list.add(term);
+	}
+	terms = Dictionary.compile(list);
+	modified = time;
+	size = bytes;
+	EventLog.info(EventLog.Type.FILE, null, "Moderation: " + terms.size() + " terms loaded from " + file + " in "
+		+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * <p>
+     * An Aho-Corasick automaton which finds any number of terms in a text in
+     * one pass.
+     * </p>
+     * <p>
+     * The terms are put in a trie of their bytes, and every state of the trie
+     * is given the transitions of its longest proper suffix which is also in
+     * the trie, so that the automaton never has to go back: each byte of the
+     * text costs a single look in a table. To keep the table small, the bytes
+     * are first mapped to classes: the bytes which appear in no term share
+     * class 0, and an upper-case ASCII letter shares the class of its lower
+     * case. A state where a term ends links to the next shorter term ending
+     * at the same place, so all the terms ending at a byte can be checked
+     * against the word boundaries.
+     * </p>
+     * A Dictionary is never changed once compiled, so any number of threads
+     * may use it at once.
+     */
+    static final class Dictionary {
+
+	/**
+	 * The class of every byte.
+	 */
+	private final int[] classes;
+
+	/**
+	 * The number of classes.
+	 */
+	private final int width;
+
+	/**
+	 * The transitions: the state after a byte of class <i>c</i> in state
+	 * <i>s</i> is at <tt>s * width + c</tt>. It is kept as the index of its
+	 * own transitions, <tt>state * width</tt>, so that a byte costs no more
+	 * than an addition and a look in the table; the index is inverted (and
+	 * so negative) if a term ends in the state.
+	 */
+	private final int[] next;
+
+	/**
+	 * The state of the longest term ending in each state, which is the
+	 * state itself if a term ends there, or 0 if none does.
+	 */
+	private final int[] output;
+
+	/**
+	 * For a state where a term ends, the state of the next shorter term
+	 * ending at the same place, or 0 if there is none.
+	 */
+	private final int[] shorter;
+
+	/**
+	 * For a state where a term ends, the number of bytes in the term.
+	 */
+	private final int[] length;
+
+	/**
+	 * For a state where a term ends, whether the term starts (bit 1) or
+	 * ends (bit 2) with a letter or a digit, and so needs a word boundary
+	 * there.
+	 */
+	private final byte[] boundaries;
+
+	/**
+	 * The number of distinct terms.
+	 */
+	private final int size;
+
+	/**
+	 * Creates a new Dictionary.
+	 *
+	 * @param classes
+	 *            the class of every byte
+	 * @param width
+	 *            the number of classes
+	 * @param next
+	 *            the transitions
+	 * @param output
+	 *            the longest term ending in each state
+	 * @param shorter
+	 *            the next shorter term ending at the same place
+	 * @param length
+	 *            the number of bytes in the term ending in each state
+	 * @param boundaries
+	 *            the word boundaries needed by the term ending in each state
+	 * @param size
+	 *            the number of distinct terms
+	 */
+	private Dictionary(int[] classes, int width, int[] next, int[] output, int[] shorter, int[] length,
+		byte[] boundaries, int size) {
+	    this.classes = classes;
+	    this.width = width;
+	    this.next = next;
+	    this.output = output;
+	    this.shorter = shorter;
+	    this.length = length;
+	    this.boundaries = boundaries;
+	    this.size = size;
+	}
+
+	/**
+	 * Compiles a list of terms.
+	 *
+	 * @param list
+	 *            the terms, which are not empty
+	 * @return the automaton
+	 */
+	static Dictionary compile(List<String> list) {
+	    byte[][] words = new byte[list.size()][];
+	    for (int i = 0; i < words.length; i++) {
+		words[i] = list.get(i).getBytes(XorCodec.UTF_8);
+		for (int j = 0; j < words[i].length; j++) words[i][j] = fold(words[i][j]);
+	    }
+
+	    // Gives every byte which appears in a term a class of its own
+	    int[] classes = new int[256];
+	    int width = 1;
+	    for (byte[] word : words) {
+		for (byte b : word) {
+		    if (classes[b & 0xff] == 0) classes[b & 0xff] = width++;
+		}
+	    }
+	    for (int b = 'A'; b <= 'Z'; b++) classes[b] = classes[b + ('a' - 'A')];
+
+	    // Builds the trie; 0 is the root, and no transition leads back to it
+	    int states = 1;
+	    int[] next = new int[width * 16];
+	    int[] length = new int[16];
+	    int size = 0;
+	    for (byte[] word : words) {
+		int state = 0;
+		for (byte b : word) {
+		    int slot = state * width + classes[b & 0xff];
+		    if (next[slot] == 0) {
+			if ((states + 1) * width > next.length) {
+			    next = Arrays.copyOf(next, next.length * 2);
+			    length = Arrays.copyOf(length, length.length * 2);
+			}
+			next[slot] = states++;
+		    }
+		    state = next[slot];
+		}
+		if (length[state] == 0) size++;
+		length[state] = word.length;
+	    }
+	    next = Arrays.copyOf(next, states * width);
+	    length = Arrays.copyOf(length, states);
+
+	    // Walks the trie breadth first, so the suffix of a state is always
+	    // done before the state, and fills in the missing transitions
+	    int[] suffix = new int[states];
+	    int[] output = new int[states];
+	    int[] shorter = new int[states];
+	    int[] queue = new int[states];
+	    int head = 0, tail = 0;
+	    for (int c = 0; c < width; c++) {
+		if (next[c] != 0) queue[tail++] = next[c];
+	    }
+	    while (head < tail) {
+		int state = queue[head++];
+		int tails = output[suffix[state]];
+		if (length[state] > 0) {
+		    output[state] = state;
+		    shorter[state] = tails;
+		} else {
+		    output[state] = tails;
+		}
+		for (int c = 0; c < width; c++) {
+		    int slot = state * width + c;
+		    int fallback = next[suffix[state] * width + c];
+		    if (next[slot] == 0) {
+			next[slot] = fallback;
+		    } else {
+			suffix[next[slot]] = fallback;
+			queue[tail++] = next[slot];
+		    }
+		}
+	    }
+
+	    // Works out the word boundaries each term needs
+	    byte[] boundaries = new byte[states];
+	    for (byte[] word : words) {
+		int state = 0;
+		for (byte b : word) state = next[state * width + classes[b & 0xff]];
+		boundaries[state] = (byte) ((isWord(word[0]) ? 1 : 0) | (isWord(word[word.length - 1]) ? 2 : 0));
+	    }
+	    for (int slot = 0; slot < next.length; slot++) {
+		int state = next[slot];
+		next[slot] = output[state] != 0 ? ~(state * width) : state * width;
+	    }
+	    return new Dictionary(classes, width, next, output, shorter, length, boundaries, size);
+	}
+
+	/**
+	 * Gets the number of distinct terms.
+	 *
+	 * @return the number of terms
+	 */
+	int size() {
+	    return size;
+	}
+
+	/**
+	 * Finds the terms in a text. Where several terms overlap, the longest
+	 * one ending at each byte is taken.
+	 *
+	 * @param text
+	 *            the array holding the UTF-8 bytes of the text
+	 * @param offset
+	 *            the index of the first byte of the text
+	 * @param count
+	 *            the number of bytes in the text
+	 * @param spans
+	 *            an array to put the first and the last index of every term
+	 *            found in, merged where they overlap, or <tt>null</tt> to
+	 *            stop at the first term
+	 * @return the number of terms found, or the number of spans if there is
+	 *         an array
+	 */
+	int find(byte[] text, int offset, int count, IntList spans) {
+	    int end = offset + count;
+	    int found = 0;
+	    int row = 0;
+	    for (int i = offset; i < end; i++) {
+		row = next[row + classes[text[i] & 0xff]];
+		if (row >= 0) continue;
+		// A term ends here
+		row = ~row;
+		for (int term = output[row / width]; term != 0; term = shorter[term]) {
+		    int start = i + 1 - length[term];
+		    int needs = boundaries[term];
+		    if ((needs & 1) != 0 && start > offset && isWord(text[start - 1])) continue;
+		    if ((needs & 2) != 0 && i + 1 < end && isWord(text[i + 1])) continue;
+		    if (spans == null) return 1;
+		    found++;
+		    // Spans end in order, but a longer term may start earlier
+		    while (spans.size() > 0 && spans.get(spans.size() - 2) >= start) spans.pop(2);
+		    if (spans.size() > 0 && spans.get(spans.size() - 1) >= start - 1) {
+			spans.set(spans.size() - 1, i);
+		    } else {
+			spans.add(start);
+			spans.add(i);
+		    }
+		    break;
+		}
+	    }
+	    return spans == null ? found : spans.size() / 2;
+	}
+
+	/**
+	 * Replaces every character of the terms in a text by '*', in place.
+	 *
+	 * @param text
+	 *            the array holding the UTF-8 bytes of the text
+	 * @param offset
+	 *            the index of the first byte of the text
+	 * @param count
+	 *            the number of bytes in the text
+	 * @return the number of bytes in the masked text
+	 */
+	int mask(byte[] text, int offset, int count) {
+	    IntList spans = new IntList();
+	    if (find(text, offset, count, spans) == 0) return count;
+	    int read = offset, write = offset;
+	    for (int i = 0; i < spans.size(); i += 2) {
+		int start = spans.get(i), last = spans.get(i + 1);
+		System.arraycopy(text, read, text, write, start - read);
+		write += start - read;
+		for (int j = start; j <= last; j++) {
+		    // One '*' for the first byte of every character
+		    if ((text[j] & 0xc0) != 0x80) text[write++] = '*';
+		}
+		read = last + 1;
+	    }
+	    System.arraycopy(text, read, text, write, offset + count - read);
+	    return write + offset + count - read - offset;
+	}
+
+	/**
+	 * Turns an upper-case ASCII letter into lower case.
+	 *
+	 * @param b
+	 *            a byte of UTF-8
+	 * @return the byte in lower case
+	 */
+	private static byte fold(byte b) {
+	    return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+	}
+
+	/**
+	 * Is a byte an ASCII letter or digit, which a word boundary cannot be
+	 * next to?
+	 *
+	 * @param b
+	 *            a byte of UTF-8
+	 * @return <tt>true</tt> for a letter or a digit
+	 */
+	private static boolean isWord(byte b) {
+	    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9');
+	}
+    }
+
+    /**
+     * A growable array of <tt>int</tt>s.
+     */
+    static final class IntList {
+
+	/**
+	 * The elements.
+	 */
+	private int[] elements = new int[8];
+
+	/**
+	 * The number of elements.
+	 */
+	private int size;
+
+	/**
+	 * Gets the number of elements.
+	 *
+	 * @return the number of elements
+	 */
+	int size() {
+	    return size;
+	}
+
+	/**
+	 * Gets an element.
+	 *
+	 * @param index
+	 *            the index of the element
+	 * @return the element
+	 */
+	int get(int index) {
+	    return elements[index];
+	}
+
+	/**
+	 * Replaces an element.
+	 *
+	 * @param index
+	 *            the index of the element
+	 * @param value
+	 *            the new element
+	 */
+	void set(int index, int value) {
+	    elements[index] = value;
+	}
+
+	/**
+	 * Adds an element at the end.
+	 *
+	 * @param value
+	 *            the element
+	 */
+	void add(int value) {
+	    if (size == elements.length) elements = Arrays.copyOf(elements, size * 2);
+	    elements[size++] = value;
+	}
+
+	/**
+	 * Removes elements from the end.
+	 *
+	 * @param count
+	 *            the number of elements
+	 */
+	void pop(int count) {
+	    size -= count;
+	}
+    }
+}
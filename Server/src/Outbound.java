@@ -0,0 +1,591 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ****************************
+ * Filename: Outbound.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * The bounded queue of messages waiting to be sent to one client.
+ * </p>
+ * <p>
+ * A {@link Server.ThreadHandler} never writes to a client's socket itself: it
+ * only adds messages to the client's Outbound and returns at once. A writer
+ * takes the messages from the queue and writes them to the socket, so a
+ * client which reads slowly cannot hold up the client who is sending.
+ * </p>
+ * <p>
+ * When the queue is full, the {@linkplain Policy slow-consumer policy}
+ * decides what happens to a new message. The capacity and the policy are
+ * start-up options of the server (see {@link #configure(Options)}).
+ * </p>
+ * <p>
+ * With {@link Policy#DISCONNECT}, a client is disconnected once his/her
+ * queue has stayed over its high-water mark, below the capacity, for longer
+ * than the slow-consumer timeout. The clock only starts again when the queue
+ * falls below the mark, so a client who takes a message now and then but
+ * never catches up is disconnected as well. The deadline is watched by a
+ * {@link TimingWheel}, so a client who reads nothing at all is disconnected
+ * on time even if no more messages come for him/her.
+ * </p>
+ * <p>
+ * A writer does not write the messages one by one: it borrows a buffer from
+ * the {@link BufferPool} as large as {@link #batchBytes()}, copies as many
+ * messages as fit into it with {@link #drainTo(ByteBuffer)} and writes them
+ * with a single write, so a burst of messages (such as the list of request
+ * commands) costs one system call and usually one TCP segment. The writer
+ * gives the buffer back once it has been written, so a client with nothing
+ * to be written holds no buffer. The writer may also wait a short flush
+ * window for more messages before writing.
+ * </p>
+ * Subclasses decide how the messages are written by implementing
+ * {@link #signal()} and {@link #abort()}.
+ */
+public abstract class Outbound implements TimingWheel.Task {
+
+    /**
+     * What to do with a new message when a client's queue is full.
+     */
+    public enum Policy {
+
+	/**
+	 * Discards the oldest message in the queue to make room for the new
+	 * one.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Discards the new message.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Discards the new message, and disconnects the client if the queue
+	 * has stayed over its high-water mark for longer than the
+	 * slow-consumer timeout.
+	 */
+	DISCONNECT
+    }
+
+    /**
+     * The maximum number of messages waiting for one client.
+     */
+    private static int capacity = 1024;
+
+    /**
+     * The slow-consumer policy.
+     */
+    private static Policy policy = Policy.DROP_OLDEST;
+
+    /**
+     * The number of messages waiting for one client over which the
+     * slow-consumer timeout runs, if the policy is {@link Policy#DISCONNECT}.
+     */
+    private static int highWater = capacity * 3 / 4;
+
+    /**
+     * How long (in nanoseconds) a client's queue may stay over its
+     * high-water mark before the client is disconnected, if the policy is
+     * {@link Policy#DISCONNECT}.
+     */
+    private static long timeoutNanos = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * The wheel the slow-consumer deadlines run on, or <tt>null</tt> if the
+     * policy is not {@link Policy#DISCONNECT}.
+     */
+    private static TimingWheel wheel;
+
+    /**
+     * The largest number of bytes gathered into one write, unless a single
+     * message is larger.
+     */
+    private static int flushBytes = 64 * 1024;
+
+    /**
+     * How long (in nanoseconds) a writer waits for more messages before
+     * writing, unless {@link #flushBytes} are already waiting. 0 means that
+     * messages are written as soon as the writer runs.
+     */
+    private static long flushWindowNanos = 0;
+
+    /**
+     * Is Nagle's algorithm turned off on the client sockets? Since the
+     * writers already gather the messages, it is by default.
+     */
+    private static boolean tcpNoDelay = true;
+
+    /**
+     * Guards the queue.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The messages waiting to be written.
+     */
+    private final ArrayDeque<Frame> queue = new ArrayDeque<Frame>();
+
+    /**
+     * The time (from {@link System#nanoTime()}) at which the queue went over
+     * its high-water mark, or 0 if it is below it.
+     */
+    private long overSince;
+
+    /**
+     * The slow-consumer deadline, or <tt>null</tt> if the queue is below its
+     * high-water mark.
+     */
+    private TimingWheel.Timeout deadline;
+
+    /**
+     * The number of bytes in the queue.
+     */
+    private long queuedBytes;
+
+    /**
+     * Does the client speak the {@linkplain Protocol framed protocol}?
+     */
+    private boolean framed;
+
+    /**
+     * The sequence number of the next frame, if the client speaks the
+     * framed protocol.
+     */
+    private int sequence;
+
+    /**
+     * Has the queue been closed? A closed queue accepts no more messages.
+     */
+    private volatile boolean closed;
+
+    /**
+     * <p>
+     * Reads the outbound options of the server:
+     * </p>
+     * <ul>
+     * <li>{@code --outbound-capacity}: the maximum number of messages waiting
+     * for one client (default 1024).</li>
+     * <li>{@code --slow-consumer}: {@code drop-oldest} (default),
+     * {@code drop-newest} or {@code disconnect}.</li>
+     * <li>{@code --slow-consumer-timeout}: with {@code disconnect}, how many
+     * milliseconds a client's queue may stay over its high-water mark
+     * (default 5000).</li>
+     * <li>{@code --slow-consumer-high-water}: with {@code disconnect}, the
+     * number of waiting messages over which the timeout runs (default three
+     * quarters of the capacity).</li>
+     * <li>{@code --flush-bytes}: the largest number of bytes gathered into
+     * one write (default 65536).</li>
+     * <li>{@code --flush-window}: how many microseconds a writer waits for
+     * more messages before writing (default 0). A larger window means fewer
+     * system calls and TCP segments, at the cost of latency.</li>
+     * <li>{@code --tcp-nodelay}: turns Nagle's algorithm off on the client
+     * sockets (default true).</li>
+     * </ul>
+     *
+     * @param options
+     *            the start-up options
+     * @throws IllegalArgumentException
+     *             if an option has an invalid value
+     */
+    public static void configure(Options options) {
+	capacity = options.getInt("outbound-capacity", capacity);
+	if (capacity < 1) {
+	    throw new IllegalArgumentException("Option 'outbound-capacity' should be at least 1.");
+	}
+	String name = options.get("slow-consumer", "drop-oldest");
+	try {
+	    policy = Policy.valueOf(name.toUpperCase().replace('-', '_'));
+	} catch (IllegalArgumentException e) {
+	    throw new IllegalArgumentException(
+		    "Option 'slow-consumer' should be drop-oldest, drop-newest or disconnect: " + name);
+	}
+	timeoutNanos = TimeUnit.MILLISECONDS.toNanos(options.getLong("slow-consumer-timeout", 5000));
+	if (timeoutNanos < 0) {
+	    throw new IllegalArgumentException("Option 'slow-consumer-timeout' should not be negative.");
+	}
+	highWater = options.getInt("slow-consumer-high-water", Math.max(1, capacity * 3 / 4));
+	if (highWater < 1 || highWater > capacity) {
+	    throw new IllegalArgumentException("Option 'slow-consumer-high-water' should be between 1 and "
+		    + capacity + ".");
+	}
+	if (policy == Policy.DISCONNECT && wheel == null) {
+	    // Ticks of 100 ms, 64 buckets to a turn of 6.4 s
+	    wheel = new TimingWheel("slow-consumer", 100, TimeUnit.MILLISECONDS, 64);
+	}
+	flushBytes = options.getInt("flush-bytes", flushBytes);
+	if (flushBytes < 1) {
+	    throw new IllegalArgumentException("Option 'flush-bytes' should be at least 1.");
+	}
+	flushWindowNanos = TimeUnit.MICROSECONDS.toNanos(options.getLong("flush-window", 0));
+	if (flushWindowNanos < 0) {
+	    throw new IllegalArgumentException("Option 'flush-window' should not be negative.");
+	}
+	tcpNoDelay = options.getBoolean("tcp-nodelay", tcpNoDelay);
+    }
+
+    /**
+     * Gets the slow-consumer policy.
+     *
+     * @return the policy
+     */
+    public static Policy policy() {
+	return policy;
+    }
+
+    /**
+     * Gets the largest number of bytes gathered into one write.
+     *
+     * @return the number of bytes
+     */
+    public static int flushBytes() {
+	return flushBytes;
+    }
+
+    /**
+     * Gets how long a writer waits for more messages before writing.
+     *
+     * @return the flush window in nanoseconds, or 0 for none
+     */
+    public static long flushWindowNanos() {
+	return flushWindowNanos;
+    }
+
+    /**
+     * Should Nagle's algorithm be turned off on the client sockets?
+     *
+     * @return <tt>true</tt> if TCP_NODELAY should be set
+     */
+    public static boolean tcpNoDelay() {
+	return tcpNoDelay;
+    }
+
+    /**
+     * Queues a message to be sent to the client. If the queue is full, the
+     * slow-consumer policy is applied.
+     *
+     * @param frame
+     *            the message, which may be shared with other clients
+     */
+    public void send(Frame frame) {
+	boolean disconnect;
+	lock.lock();
+	try {
+	    if (closed) return;
+	    disconnect = offer(frame);
+	} finally {
+	    lock.unlock();
+	}
+	if (disconnect) {
+	    Metrics.slowConsumers.increment();
+	    discard();
+	    abort();
+	} else {
+	    signal();
+	}
+    }
+
+    /**
+     * Queues several messages to be sent to the client, one after another.
+     * The writer is told only once, when all of them are in the queue, so
+     * they are written together in as few gathering writes as they fit in.
+     *
+     * @param frames
+     *            the messages, which may be shared with other clients
+     */
+    public void send(Frame[] frames) {
+	boolean disconnect = false;
+	lock.lock();
+	try {
+	    if (closed) return;
+	    for (int i = 0; i < frames.length && !disconnect; i++) {
+		disconnect = offer(frames[i]);
+	    }
+	} finally {
+	    lock.unlock();
+	}
+	if (disconnect) {
+	    Metrics.slowConsumers.increment();
+	    discard();
+	    abort();
+	} else {
+	    signal();
+	}
+    }
+
+    /**
+     * Adds a message to the queue, or applies the slow-consumer policy if the
+     * queue is full. Called holding the lock.
+     *
+     * @param frame
+     *            the message
+     * @return <tt>true</tt> if the client should be disconnected
+     */
+    private boolean offer(Frame frame) {
+	if (queue.size() < capacity) {
+	    queue.add(frame);
+	    queuedBytes += frame.length();
+	} else if (policy == Policy.DROP_OLDEST) {
+	    queuedBytes -= queue.poll().length();
+	    queue.add(frame);
+	    queuedBytes += frame.length();
+	    Metrics.dropped.increment();
+	} else {
+	    // With DROP_NEWEST and DISCONNECT the message is simply not queued
+	    Metrics.dropped.increment();
+	}
+	if (policy != Policy.DISCONNECT || queue.size() < highWater) return false;
+	long now = System.nanoTime();
+	if (overSince == 0) {
+	    // Starts the clock, which the wheel watches even if no more
+	    // messages come
+	    overSince = now;
+	    deadline = wheel.schedule(this, timeoutNanos, TimeUnit.NANOSECONDS);
+	    return false;
+	}
+	// The client has not kept up for too long
+	return now - overSince > timeoutNanos;
+    }
+
+    /**
+     * Disconnects the client if his/her queue is still over its high-water
+     * mark at the slow-consumer deadline. Called by the thread of the
+     * {@link TimingWheel}.
+     */
+    @Override
+    public void expire() {
+	boolean disconnect = false;
+	lock.lock();
+	try {
+	    if (closed || overSince == 0) return;
+	    long late = System.nanoTime() - overSince - timeoutNanos;
+	    if (late >= 0) {
+		disconnect = true;
+	    } else {
+		deadline = wheel.schedule(this, -late, TimeUnit.NANOSECONDS);
+	    }
+	} finally {
+	    lock.unlock();
+	}
+	if (disconnect) {
+	    Metrics.slowConsumers.increment();
+	    discard();
+	    abort();
+	}
+    }
+
+    /**
+     * Stops the slow-consumer clock, because the queue has fallen below its
+     * high-water mark or has been closed. Called holding the lock.
+     */
+    private void calmDown() {
+	overSince = 0;
+	if (deadline != null) {
+	    deadline.cancel();
+	    deadline = null;
+	}
+    }
+
+    /**
+     * Switches to the {@linkplain Protocol framed protocol}: every message
+     * taken from now on is written as a frame.
+     */
+    public void useFrames() {
+	lock.lock();
+	try {
+	    framed = true;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Gets the size of the buffer the next messages should be written from:
+     * the bytes of as many messages as fit in {@link #flushBytes()} (but at
+     * least one).
+     *
+     * @return the number of bytes, 0 if the queue is empty
+     */
+    protected int batchBytes() {
+	lock.lock();
+	try {
+	    int bytes = 0;
+	    for (Frame frame : queue) {
+		int length = framed ? Protocol.HEADER + frame.payloadLength() : frame.length();
+		if (bytes > 0 && bytes + length > flushBytes) break;
+		bytes += length;
+	    }
+	    return bytes;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Takes the next messages to be written, as many as fit in the buffer
+     * and in {@link #flushBytes()}, and copies their bytes into the buffer. A
+     * message which does not fit stays in the queue.
+     *
+     * @param target
+     *            the buffer to copy the bytes of the messages into
+     * @return the number of messages copied, 0 if the queue is empty or the
+     *         first message does not fit
+     */
+    protected int drainTo(ByteBuffer target) {
+	lock.lock();
+	try {
+	    int frames = 0;
+	    long bytes = 0, written = 0;
+	    Frame frame;
+	    while ((frame = queue.peek()) != null) {
+		int length = framed ? Protocol.HEADER + frame.payloadLength() : frame.length();
+		if (length > target.remaining() || (frames > 0 && written + length > flushBytes)) break;
+		queue.poll();
+		if (framed) {
+		    // The header is the only part which is not shared with
+		    // other clients
+		    Protocol.writeHeader(target, frame.opcode(), sequence++, frame.payloadLength());
+		    frame.copyPayloadTo(target);
+		} else {
+		    frame.copyTo(target);
+		}
+		written += length;
+		bytes += frame.length();
+		frames++;
+	    }
+	    if (frames > 0) {
+		if (overSince != 0 && queue.size() < highWater) calmDown();
+		queuedBytes -= bytes;
+		Metrics.messagesOut.add(frames);
+		Metrics.bytesOut.add(written);
+	    }
+	    return frames;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Gets the number of bytes waiting to be written.
+     *
+     * @return the number of bytes
+     */
+    protected long queuedBytes() {
+	lock.lock();
+	try {
+	    return queuedBytes;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Gets the number of messages waiting to be written.
+     *
+     * @return the number of messages
+     */
+    public int size() {
+	lock.lock();
+	try {
+	    return queue.size();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Is the queue empty?
+     *
+     * @return <tt>true</tt> if no message is waiting
+     */
+    protected boolean isEmpty() {
+	lock.lock();
+	try {
+	    return queue.isEmpty();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Disconnects the client at once, discarding the messages still queued.
+     * His/her handler then removes him/her from the chat room as if he/she
+     * had left.
+     */
+    public void disconnect() {
+	discard();
+	abort();
+    }
+
+    /**
+     * Closes the queue. The messages already queued are still written, and
+     * then the connection is closed.
+     */
+    public void close() {
+	closed = true;
+	signal();
+    }
+
+    /**
+     * Closes the queue and throws away the messages in it, because they can
+     * no longer be written.
+     */
+    protected void discard() {
+	lock.lock();
+	try {
+	    closed = true;
+	    queue.clear();
+	    queuedBytes = 0;
+	    calmDown();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Has the queue been closed?
+     *
+     * @return <tt>true</tt> if the queue accepts no more messages
+     */
+    public boolean isClosed() {
+	return closed;
+    }
+
+    /**
+     * Waits until every message queued has been taken by the writer, or until
+     * the deadline has passed.
+     *
+     * @param deadline
+     *            the latest time (from {@link System#currentTimeMillis()}) to
+     *            wait until
+     */
+    public void awaitEmpty(long deadline) {
+	while (!isEmpty() && System.currentTimeMillis() < deadline) {
+	    try {
+		Thread.sleep(10);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Tells the writer that there are messages to be written, or that the
+     * queue has been closed. Called without holding any lock.
+     */
+    protected abstract void signal();
+
+    /**
+     * Disconnects the client at once because it is too slow to read its
+     * messages.
+     */
+    protected abstract void abort();
+}
@@ -0,0 +1,222 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * ****************************
+ * Filename: Peer.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * A Peer is the TCP link to another node of the {@link Cluster}.
+ * </p>
+ * <p>
+ * The link carries the messages of the cluster, each an int length followed
+ * by the bytes encoded by the Cluster. The thread which calls
+ * {@link #run()} reads them and hands them to the Cluster, and a writer thread
+ * of its own writes the messages queued with {@link #send(byte[])}, so a
+ * client's thread which relays a message never waits for the network. If the
+ * other node stops reading and the queue fills up, the link is closed and
+ * built again, which makes both nodes send their users afresh.
+ * </p>
+ */
+public class Peer {
+
+    /**
+     * The maximum number of messages waiting to be written.
+     */
+    private static final int QUEUE_CAPACITY = 65536;
+
+    /**
+     * The largest message accepted, which is more than a chat message with
+     * its room and sender.
+     */
+    private static final int MAX_MESSAGE = 1 << 20;
+
+    /**
+     * The Cluster this link belongs to.
+     */
+    private final Cluster cluster;
+
+    /**
+     * The connection.
+     */
+    private final Socket socket;
+
+    /**
+     * The messages waiting to be written.
+     */
+    private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>(QUEUE_CAPACITY);
+
+    /**
+     * Whether the link has been closed.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * The name of the other node, known once it has said hello.
+     */
+    private volatile String node;
+
+    /**
+     * Whether this node dialled the link, rather than accepted it.
+     */
+    private final boolean dialled;
+
+    /**
+     * Creates a new Peer and starts its writer thread. On a link this node
+     * dialled, it says hello to the other node at once; on an accepted link,
+     * only once the other node has said hello with the right secret, so that
+     * the secret is never given to whoever connects to the cluster port.
+     *
+     * @param cluster
+     *            the Cluster
+     * @param socket
+     *            the connection to the other node
+     * @param dialled
+     *            <tt>true</tt> if this node dialled the link
+     * @throws IOException
+     *             if the connection cannot be set up
+     */
+    Peer(Cluster cluster, Socket socket, boolean dialled) throws IOException {
+	this.cluster = cluster;
+	this.socket = socket;
+	this.dialled = dialled;
+	socket.setTcpNoDelay(true);
+	final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	Thread writer = new Thread("peer-writer") {
+	    @Override
+	    public void run() {
+		try {
+		    while (!closed.get()) {
+			byte[] message = queue.take();
+			// Woken up by close()
+			if (closed.get()) break;
+			out.writeInt(message.length);
+			out.write(message);
+			// Writes a burst of messages at once
+			if (queue.isEmpty()) out.flush();
+		    }
+		} catch (IOException | InterruptedException e) {
+		    close();
+		}
+	    }
+	};
+	writer.setDaemon(true);
+	writer.start();
+	if (dialled) cluster.greet(this);
+    }
+
+    /**
+     * Did this node dial the link?
+     *
+     * @return <tt>true</tt> if it dialled the link, <tt>false</tt> if it
+     *         accepted it
+     */
+    public boolean dialled() {
+	return dialled;
+    }
+
+    /**
+     * Gets the name of the other node.
+     *
+     * @return the name, or <tt>null</tt> if the other node has not said hello
+     *         yet
+     */
+    public String node() {
+	return node;
+    }
+
+    /**
+     * Sets the name of the other node once it has said hello.
+     *
+     * @param node
+     *            the name
+     */
+    void setNode(String node) {
+	this.node = node;
+    }
+
+    /**
+     * Queues a message to be sent to the other node. Never blocks: if the
+     * queue is full, the link is closed.
+     *
+     * @param message
+     *            the message encoded by the Cluster
+     */
+    public void send(byte[] message) {
+	if (closed.get()) return;
+	if (queue.offer(message)) {
+	    Metrics.relayedOut.increment();
+	} else {
+	    EventLog.warn(EventLog.Type.CLUSTER, "Node " + node + " is not reading, the link is closed.");
+	    close();
+	}
+    }
+
+    /**
+     * Sends a message to a user connected to the other node.
+     *
+     * @param name
+     *            the name of the user
+     * @param frame
+     *            the message
+     */
+    public void direct(String name, Frame frame) {
+	send(Cluster.direct(name, frame));
+    }
+
+    /**
+     * Reads the messages from the other node until the link is closed.
+     */
+    public void run() {
+	try {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+	    while (true) {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_MESSAGE) {
+		    throw new IOException("Invalid message length " + length);
+		}
+		byte[] message = new byte[length];
+		in.readFully(message);
+		Metrics.relayedIn.increment();
+		cluster.receive(this, message);
+	    }
+	} catch (IOException e) {
+	    if (node != null && !closed.get()) {
+		// A link closed by the other node gives no message
+		String reason = e.getMessage() != null ? e.getMessage() : "Connection closed.";
+		EventLog.warn(EventLog.Type.CLUSTER, "Node " + node + ": " + reason);
+	    }
+	} finally {
+	    close();
+	    cluster.unlink(this);
+	}
+    }
+
+    /**
+     * Closes the link. The reading thread then removes it from the Cluster.
+     */
+    public void close() {
+	if (closed.compareAndSet(false, true)) {
+	    queue.clear();
+	    // Wakes the writer thread up
+	    queue.offer(new byte[0]);
+	    try {
+		socket.close();
+	    } catch (IOException e) {
+		// Nothing else to do
+	    }
+	}
+    }
+}
@@ -0,0 +1,265 @@
+import java.util.concurrent.TimeUnit;
+
+/*
+ * ****************************
+ * Filename: RateLimiter.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * Limits how fast one client may send chat messages, private messages and
+ * request commands, each kind with a token bucket of its own. A chat message
+ * is copied to every member of the room, so a client sending in a tight loop
+ * would otherwise cost the server far more than he/she costs himself/herself.
+ * </p>
+ * <p>
+ * A bucket holds up to <i>burst</i> tokens and gains <i>rate</i> tokens a
+ * second; every line takes one token. Instead of the number of tokens, a
+ * bucket keeps the time at which it will be full again, which is enough to
+ * work the tokens out and is updated with a little arithmetic on a single
+ * <tt>long</tt>. What happens to a line which finds no token is decided by
+ * the {@linkplain Action action}. The rates, the bursts and the action are
+ * start-up options of the server (see {@link #configure(Options)}); by
+ * default nothing is limited.
+ * </p>
+ * <p>
+ * Each client has a RateLimiter of his/her own, which is only used by the
+ * thread reading from him/her, so checking a line takes no lock and creates
+ * no object.
+ * </p>
+ */
+public final class RateLimiter {
+
+    /**
+     * What happens when a client sends faster than he/she is allowed to.
+     */
+    public enum Action {
+
+	/**
+	 * Takes the line, then stops reading from the client until his/her
+	 * next line would find a token, so a flood only slows the client down.
+	 */
+	THROTTLE,
+
+	/**
+	 * Discards the line and tells the client, once for every run of
+	 * discarded lines.
+	 */
+	WARN,
+
+	/**
+	 * Discards the line and disconnects the client.
+	 */
+	DISCONNECT
+    }
+
+    /**
+     * The kind of a chat message.
+     */
+    public static final int CHAT = 0;
+
+    /**
+     * The kind of a private message.
+     */
+    public static final int PRIVATE = 1;
+
+    /**
+     * The kind of any other request command.
+     */
+    public static final int COMMAND = 2;
+
+    /**
+     * The names of the kinds, as used in the options.
+     */
+    private static final String[] KINDS = { "chat", "private", "command" };
+
+    /**
+     * The bytes a private message starts with.
+     */
+    private static final byte[] PRIVATE_PREFIX = "-private ".getBytes(XorCodec.UTF_8);
+
+    /**
+     * The nanoseconds it takes each bucket to gain a token, or 0 if the kind
+     * is not limited.
+     */
+    private static final long[] interval = new long[KINDS.length];
+
+    /**
+     * The nanoseconds it takes each bucket to fill up from empty.
+     */
+    private static final long[] capacity = new long[KINDS.length];
+
+    /**
+     * The action taken when a bucket is empty.
+     */
+    private static Action action = Action.THROTTLE;
+
+    /**
+     * Is any kind of line limited?
+     */
+    private static boolean enabled;
+
+    /**
+     * The time (from {@link System#nanoTime()}) at which each bucket will be
+     * full again. A bucket holds <tt>(capacity - (full - now)) / interval</tt>
+     * tokens, or all of them once <tt>full</tt> is past.
+     */
+    private final long[] full = new long[KINDS.length];
+
+    /**
+     * Has the client been warned about the lines discarded lately?
+     */
+    private boolean warned;
+
+    /**
+     * <p>
+     * Reads the rate-limiting options of the server:
+     * </p>
+     * <ul>
+     * <li>{@code --rate-chat}, {@code --rate-private} and
+     * {@code --rate-command}: how many chat messages, private messages and
+     * other request commands a client may send a second (default 0, no
+     * limit).</li>
+     * <li>{@code --rate-chat-burst}, {@code --rate-private-burst} and
+     * {@code --rate-command-burst}: how many of them he/she may send at once
+     * after being quiet (default twice the rate).</li>
+     * <li>{@code --rate-action}: {@code throttle} (default), {@code warn} or
+     * {@code disconnect}.</li>
+     * </ul>
+     *
+     * @param options
+     *            the start-up options
+     * @throws IllegalArgumentException
+     *             if an option has an invalid value
+     */
+    public static void configure(Options options) {
+	for (int kind = 0; kind < KINDS.length; kind++) {
+	    String name = "rate-" + KINDS[kind];
+	    long rate = options.getLong(name, 0);
+	    if (rate < 0) {
+		throw new IllegalArgumentException("Option '" + name + "' should not be negative.");
+	    }
+	    long burst = options.getLong(name + "-burst", 2 * rate);
+	    if (rate > 0 && burst < 1) {
+		throw new IllegalArgumentException("Option '" + name + "-burst' should be at least 1.");
+	    }
+	    interval[kind] = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+	    capacity[kind] = interval[kind] * burst;
+	    if (rate > 0) enabled = true;
+	}
+	String name = options.get("rate-action", "throttle");
+	try {
+	    action = Action.valueOf(name.toUpperCase());
+	} catch (IllegalArgumentException e) {
+	    throw new IllegalArgumentException("Option 'rate-action' should be throttle, warn or disconnect: " + name);
+	}
+    }
+
+    /**
+     * Is any kind of line limited?
+     *
+     * @return <tt>true</tt> if at least one rate is set
+     */
+    public static boolean enabled() {
+	return enabled;
+    }
+
+    /**
+     * Gets the action taken when a client sends too fast.
+     *
+     * @return the action
+     */
+    public static Action action() {
+	return action;
+    }
+
+    /**
+     * Describes the limits for the server's screen.
+     *
+     * @return for example "chat 10/s (burst 20), command 5/s (burst 10)"
+     */
+    public static String describe() {
+	StringBuilder text = new StringBuilder();
+	for (int kind = 0; kind < KINDS.length; kind++) {
+	    if (interval[kind] == 0) continue;
+	    if (text.length() > 0) text.append(", ");
+	    text.append(KINDS[kind]).append(' ').append(TimeUnit.SECONDS.toNanos(1) / interval[kind])
+		    .append("/s (burst ").append(capacity[kind] / interval[kind]).append(')');
+	}
+	return text.toString();
+    }
+
+    /**
+     * Tells which bucket a decrypted line of stage 2 takes its token from.
+     *
+     * @param line
+     *            the array holding the line
+     * @param offset
+     *            the index of the first byte of the line
+     * @param length
+     *            the number of bytes in the line
+     * @return {@link #CHAT}, {@link #PRIVATE} or {@link #COMMAND}
+     */
+    public static int kindOf(byte[] line, int offset, int length) {
+	if (length == 0 || line[offset] != '-') return CHAT;
+	if (length < PRIVATE_PREFIX.length) return COMMAND;
+	for (int i = 0; i < PRIVATE_PREFIX.length; i++) {
+	    if (line[offset + i] != PRIVATE_PREFIX[i]) return COMMAND;
+	}
+	return PRIVATE;
+    }
+
+    /**
+     * <p>
+     * Takes a token for a line, if there is one.
+     * </p>
+     * With {@link Action#THROTTLE}, the line always gets its token, and the
+     * result tells how long to stop reading before the next line.
+     *
+     * @param kind
+     *            the kind of the line
+     * @param now
+     *            the time from {@link System#nanoTime()}
+     * @return 0 if the line may be handled at once; with
+     *         {@link Action#THROTTLE}, the nanoseconds to wait before reading
+     *         again; otherwise -1 if the line has to be discarded
+     */
+    public long acquire(int kind, long now) {
+	long step = interval[kind];
+	if (step == 0) return 0;
+	long limit = capacity[kind] - step;
+	// An empty bucket is full again later than one interval short of its
+	// whole capacity
+	long after = full[kind] - now;
+	if (after <= 0) after = 0;
+	if (action == Action.THROTTLE) {
+	    full[kind] = now + after + step;
+	    return Math.max(0, after + step - limit);
+	}
+	if (after > limit) return -1;
+	full[kind] = now + after + step;
+	return 0;
+    }
+
+    /**
+     * Tells whether the client should be warned about a discarded line, which
+     * he/she is only once for every run of them.
+     *
+     * @param discarded
+     *            whether the latest line was discarded
+     * @return <tt>true</tt> if the client should be warned now
+     */
+    public boolean warn(boolean discarded) {
+	if (!discarded) {
+	    warned = false;
+	    return false;
+	}
+	if (warned) return false;
+	warned = true;
+	return true;
+    }
+}
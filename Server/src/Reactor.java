@@ -0,0 +1,872 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * ****************************
+ * Filename: Reactor.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * A Reactor serves all clients of the {@link Server} with a small fixed set of
+ * event loops instead of one blocking thread per client.
+ * </p>
+ * <p>
+ * The thread which calls {@link #run()} accepts new connections and hands each
+ * of them to one of the {@link EventLoop}s in turn. An event loop owns the
+ * connections it has been given: it reads from them without blocking, splits
+ * the input into lines and passes every line to the connection's
+ * {@link Server.ThreadHandler}, so the handshake, the name validation and the
+ * request commands work exactly as in the thread-per-client mode. A client of
+ * the {@linkplain Protocol framed protocol} is recognised by its first byte,
+ * and its input is split into frames instead.
+ * </p>
+ * <p>
+ * Output is written at the end of each round of the event loop, after all
+ * the input of that round has been handled, so the messages queued for a
+ * connection during the round leave in one write. With a
+ * {@linkplain Outbound#flushWindowNanos() flush window}, the event loop
+ * gathers the output of several rounds and writes it once per window.
+ * </p>
+ * <p>
+ * If the selector of an event loop fails, the event loop closes its
+ * connections and stops, and the new connections go to the other event loops
+ * only.
+ * </p>
+ * <p>
+ * When a client is {@linkplain RateLimiter throttled}, his/her connection
+ * stops asking for input and the event loop puts it back when the pause is
+ * over, so the unread input waits in the socket.
+ * </p>
+ * <p>
+ * An event loop reads every connection into the same direct buffer and
+ * splits the input in the same array. A connection only borrows a buffer from
+ * the {@link BufferPool} to keep the start of a line (or a frame) whose end
+ * has not arrived yet, or output which the client has not taken yet, so an
+ * idle connection holds no buffer.
+ * </p>
+ */
+public class Reactor {
+
+    /**
+     * The size of the buffer each event loop reads into.
+     */
+    private static final int READ_BUFFER = 16 * 1024;
+
+    /**
+     * The channel on which new connections are accepted.
+     */
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * The event loops.
+     */
+    private final EventLoop[] loops;
+
+    /**
+     * The event loop that will be given the next connection.
+     */
+    private int next;
+
+    /**
+     * Creates a new Reactor and starts its event loops.
+     *
+     * @param port
+     *            the port number to listen on
+     * @param loopCount
+     *            the number of event loops
+     * @throws IOException
+     *             if the port cannot be bound or a selector cannot be opened
+     */
+    public Reactor(int port, int loopCount) throws IOException {
+	serverChannel = ServerSocketChannel.open();
+	serverChannel.socket().bind(new InetSocketAddress(port));
+	loops = new EventLoop[Math.max(1, loopCount)];
+	for (int i = 0; i < loops.length; i++) {
+	    loops[i] = new EventLoop(i);
+	    loops[i].start();
+	}
+    }
+
+    /**
+     * Gets the server socket, which can be closed to stop accepting new
+     * connections.
+     *
+     * @return the server socket
+     */
+    public ServerSocket socket() {
+	return serverChannel.socket();
+    }
+
+    /**
+     * Gets the number of event loops.
+     *
+     * @return the number of event loops
+     */
+    public int loopCount() {
+	return loops.length;
+    }
+
+    /**
+     * Accepts new connections until the server socket is closed.
+     *
+     * @throws IOException
+     *             if a connection cannot be accepted
+     */
+    public void run() throws IOException {
+	while (true) {
+	    SocketChannel channel = serverChannel.accept();
+	    channel.configureBlocking(false);
+	    channel.socket().setTcpNoDelay(Outbound.tcpNoDelay());
+	    if (!hand(channel)) {
+		EventLog.warn(EventLog.Type.SERVER, "No event loop is left to serve a new connection.");
+		channel.close();
+	    }
+	}
+    }
+
+    /**
+     * Hands a new channel to the next event loop which has not stopped.
+     *
+     * @param channel
+     *            the channel, in non-blocking mode
+     * @return <tt>false</tt> if every event loop has stopped
+     */
+    private boolean hand(SocketChannel channel) {
+	for (int tried = 0; tried < loops.length; tried++) {
+	    EventLoop loop = loops[next];
+	    next = (next + 1) % loops.length;
+	    if (loop.register(channel)) return true;
+	}
+	return false;
+    }
+
+    /**
+     * An EventLoop is a thread which waits on its own {@link Selector} and
+     * serves the connections registered with it.
+     */
+    private static class EventLoop extends Thread {
+
+	/**
+	 * The selector of this event loop.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Channels accepted but not yet registered with the selector.
+	 */
+	private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+
+	/**
+	 * Connections which have output waiting to be written.
+	 */
+	private final Queue<Connection> writeRequests = new ConcurrentLinkedQueue<Connection>();
+
+	/**
+	 * The time (from {@link System#nanoTime()}) at which the write requests
+	 * are due, if there is a flush window, or 0 if there are none.
+	 */
+	private long flushAt;
+
+	/**
+	 * Connections which have stopped reading for a while.
+	 */
+	private final ArrayList<Connection> paused = new ArrayList<Connection>();
+
+	/**
+	 * The time (from {@link System#nanoTime()}) at which the first paused
+	 * connection is due to read again, or 0 if there are none.
+	 */
+	private long resumeAt;
+
+	/**
+	 * The buffer every connection of this event loop reads into.
+	 */
+	private final ByteBuffer input = ByteBuffer.allocateDirect(READ_BUFFER);
+
+	/**
+	 * The array in which the input of a connection is split into lines or
+	 * frames: the unfinished line kept by the connection, followed by what
+	 * has just been read. It grows when a long line does not fit.
+	 */
+	private byte[] work = new byte[READ_BUFFER];
+
+	/**
+	 * Has this event loop stopped, because its selector has failed? It is
+	 * given no more channels then.
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * Creates a new EventLoop.
+	 *
+	 * @param index
+	 *            the index of the event loop, used in the thread name
+	 * @throws IOException
+	 *             if the selector cannot be opened
+	 */
+	private EventLoop(int index) throws IOException {
+	    super("event-loop-" + index);
+	    selector = Selector.open();
+	}
+
+	/**
+	 * Hands a new channel to this event loop.
+	 *
+	 * @param channel
+	 *            the channel, in non-blocking mode
+	 * @return <tt>false</tt> if this event loop has stopped, and does not
+	 *         take the channel
+	 */
+	private boolean register(SocketChannel channel) {
+	    if (stopped) return false;
+	    newChannels.add(channel);
+	    // Takes the channel back if the event loop has stopped meanwhile
+	    // without closing it
+	    if (stopped && newChannels.remove(channel)) return false;
+	    selector.wakeup();
+	    return true;
+	}
+
+	/**
+	 * Asks this event loop to write the output of a connection. The output
+	 * is written at the end of the current round, or of the next one if
+	 * the event loop is waiting.
+	 *
+	 * @param connection
+	 *            a connection owned by this event loop
+	 */
+	private void requestWrite(Connection connection) {
+	    if (connection.writeRequested.compareAndSet(false, true)) {
+		writeRequests.add(connection);
+		if (Thread.currentThread() != this) {
+		    selector.wakeup();
+		}
+	    }
+	}
+
+	/**
+	 * Waits for events and serves the connections.
+	 */
+	@Override
+	public void run() {
+	    while (true) {
+		try {
+		    long due = flushAt == 0 || (resumeAt != 0 && resumeAt - flushAt < 0) ? resumeAt : flushAt;
+		    if (due == 0) {
+			selector.select();
+		    } else {
+			// Wakes up when the write requests or the paused
+			// connections are due
+			long wait = due - System.nanoTime();
+			if (wait > 0) selector.select(Math.max(1, wait / 1000000));
+			else selector.selectNow();
+		    }
+		} catch (IOException e) {
+		    EventLog.warn(EventLog.Type.SERVER, getName() + " has stopped, its selector failed: " + e.getMessage());
+		    shutDown();
+		    return;
+		}
+
+		// Registers the channels accepted since the last round
+		SocketChannel channel;
+		while ((channel = newChannels.poll()) != null) {
+		    accept(channel);
+		}
+
+		// Lets the connections whose pause is over read again
+		if (resumeAt != 0 && System.nanoTime() - resumeAt >= 0) {
+		    resumePaused();
+		}
+
+		// Serves the ready connections
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+		    SelectionKey key = keys.next();
+		    keys.remove();
+		    Connection connection = (Connection) key.attachment();
+		    try {
+			if (key.isValid() && key.isWritable()) {
+			    connection.write();
+			}
+			if (key.isValid() && key.isReadable()) {
+			    connection.read(true);
+			}
+		    } catch (RuntimeException e) {
+			connection.fail(e);
+		    }
+		}
+
+		// Writes the output produced in this round and by other threads
+		flush();
+	    }
+	}
+
+	/**
+	 * Stops this event loop for good: closes its connections, as if the
+	 * clients had disconnected, and the channels it has not registered yet.
+	 */
+	private void shutDown() {
+	    stopped = true;
+	    SocketChannel channel;
+	    while ((channel = newChannels.poll()) != null) {
+		try {
+		    channel.close();
+		} catch (IOException ignored) {
+		    // The channel is unusable anyway
+		}
+	    }
+	    for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+		Connection connection = (Connection) key.attachment();
+		if (connection == null) continue;
+		try {
+		    connection.close();
+		} catch (RuntimeException e) {
+		    connection.report(e);
+		}
+	    }
+	    try {
+		selector.close();
+	    } catch (IOException ignored) {
+		// Nothing is served by it any more
+	    }
+	}
+
+	/**
+	 * Writes the output of the connections which have asked for it, unless
+	 * the flush window has not passed yet.
+	 */
+	private void flush() {
+	    if (writeRequests.isEmpty()) {
+		flushAt = 0;
+		return;
+	    }
+	    long window = Outbound.flushWindowNanos();
+	    if (window > 0) {
+		long now = System.nanoTime();
+		if (flushAt == 0) {
+		    // Starts the window with the first request
+		    flushAt = now + window;
+		    return;
+		}
+		if (now - flushAt < 0) return;
+		flushAt = 0;
+	    }
+	    Connection connection;
+	    while ((connection = writeRequests.poll()) != null) {
+		connection.writeRequested.set(false);
+		try {
+		    connection.write();
+		} catch (RuntimeException e) {
+		    connection.fail(e);
+		}
+	    }
+	}
+
+	/**
+	 * Gets the array in which the input of a connection is split.
+	 *
+	 * @param size
+	 *            the number of bytes it has to hold
+	 * @return the array, with room for at least that many bytes
+	 */
+	private byte[] work(int size) {
+	    if (work.length < size) {
+		work = new byte[Math.max(size, work.length * 2)];
+	    }
+	    return work;
+	}
+
+	/**
+	 * Stops reading from a connection for a while.
+	 *
+	 * @param connection
+	 *            a connection owned by this event loop
+	 * @param until
+	 *            the time (from {@link System#nanoTime()}) at which it
+	 *            should read again
+	 */
+	private void pause(Connection connection, long until) {
+	    paused.add(connection);
+	    if (resumeAt == 0 || until - resumeAt < 0) resumeAt = until;
+	}
+
+	/**
+	 * Lets the paused connections whose time has come read again.
+	 */
+	private void resumePaused() {
+	    long now = System.nanoTime();
+	    resumeAt = 0;
+	    for (int i = paused.size() - 1; i >= 0; i--) {
+		Connection connection = paused.get(i);
+		try {
+		    long until = connection.handler.pausedUntil();
+		    if (connection.closed || now - until >= 0) {
+			// The last one has been looked at already
+			paused.set(i, paused.get(paused.size() - 1));
+			paused.remove(paused.size() - 1);
+			connection.resume();
+		    } else if (resumeAt == 0 || until - resumeAt < 0) {
+			resumeAt = until;
+		    }
+		} catch (RuntimeException e) {
+		    // Taken out of the paused connections if it was not yet
+		    if (i < paused.size() && paused.get(i) == connection) {
+			paused.set(i, paused.get(paused.size() - 1));
+			paused.remove(paused.size() - 1);
+		    }
+		    connection.fail(e);
+		}
+	    }
+	}
+
+	/**
+	 * Registers a new channel and greets the client.
+	 *
+	 * @param channel
+	 *            the accepted channel
+	 */
+	private void accept(SocketChannel channel) {
+	    Connection connection = null;
+	    try {
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		connection = new Connection(this, channel, key);
+		key.attach(connection);
+		connection.handler.onConnect();
+	    } catch (RuntimeException e) {
+		if (connection != null) {
+		    connection.fail(e);
+		    return;
+		}
+		StackTraceElement[] trace = e.getStackTrace();
+		EventLog.warn(EventLog.Type.CLIENT, getName() + ": " + e + (trace.length > 0 ? " at " + trace[0] : ""));
+		try {
+		    channel.close();
+		} catch (IOException ignored) {
+		    // The channel is unusable anyway
+		}
+	    } catch (IOException e) {
+		try {
+		    channel.close();
+		} catch (IOException ignored) {
+		    // The channel is unusable anyway
+		}
+	    }
+	}
+    }
+
+    /**
+     * <p>
+     * A Connection holds the state of one client served by an
+     * {@link EventLoop}.
+     * </p>
+     * A RuntimeException thrown while serving the client, such as a bug in a
+     * command, closes this connection only, the same way as it would only end
+     * the thread of one client in the other modes; the event loop goes on
+     * serving the others.
+     */
+    private static class Connection {
+
+	/**
+	 * The event loop which owns this connection.
+	 */
+	private final EventLoop loop;
+
+	/**
+	 * The client channel.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * The key of the channel in the event loop's selector.
+	 */
+	private final SelectionKey key;
+
+	/**
+	 * The handler which responds to the client.
+	 */
+	private final Server.ThreadHandler handler;
+
+	/**
+	 * The bytes read from the client and not handled yet, usually the start
+	 * of a line whose end has not arrived, or <tt>null</tt> if there are
+	 * none. The buffer is borrowed from the {@link BufferPool}.
+	 */
+	private ByteBuffer pending;
+
+	/**
+	 * The number of pending bytes which have already been searched for a
+	 * line terminator.
+	 */
+	private int scanned;
+
+	/**
+	 * Was the last line terminated by '\r'? If so, a following '\n' belongs
+	 * to the same line terminator.
+	 */
+	private boolean skipLF;
+
+	/**
+	 * Has the first byte been received from the client, which tells the
+	 * protocol?
+	 */
+	private boolean negotiated;
+
+	/**
+	 * Does the client speak the framed protocol?
+	 */
+	private boolean framed;
+
+	/**
+	 * The messages waiting to be written to the client.
+	 */
+	private final Outbound outbound = new ChannelOutbound();
+
+	/**
+	 * The messages being written, or <tt>null</tt> if there are none. The
+	 * buffer is borrowed from the {@link BufferPool}.
+	 */
+	private ByteBuffer output;
+
+	/**
+	 * Is the connection waiting in the event loop's write requests?
+	 */
+	private final AtomicBoolean writeRequested = new AtomicBoolean();
+
+	/**
+	 * Has the client been found too slow by its {@link Outbound} queue?
+	 */
+	private volatile boolean aborted;
+
+	/**
+	 * Has the connection been closed?
+	 */
+	private boolean closed;
+
+	/**
+	 * Has the connection stopped reading because the client is throttled?
+	 */
+	private boolean paused;
+
+	/**
+	 * Creates a new Connection.
+	 *
+	 * @param loop
+	 *            the event loop which owns the connection
+	 * @param channel
+	 *            the client channel
+	 * @param key
+	 *            the key of the channel
+	 */
+	private Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+	    this.loop = loop;
+	    this.channel = channel;
+	    this.key = key;
+	    this.handler = new Server.ThreadHandler(outbound);
+	}
+
+	/**
+	 * Reads what the client has sent and passes every complete line or
+	 * frame to the handler, the same way as the LineReader or the
+	 * FrameReader of a blocking ThreadHandler does.
+	 *
+	 * @param fromChannel
+	 *            whether to read from the channel, or only to handle the
+	 *            pending bytes
+	 */
+	private void read(boolean fromChannel) {
+	    try {
+		ByteBuffer input = loop.input;
+		input.clear();
+		int n = fromChannel ? channel.read(input) : 0;
+		input.flip();
+		int kept = pending == null ? 0 : pending.position();
+		int end = kept + input.remaining();
+		byte[] bytes = loop.work(end);
+		if (kept > 0) {
+		    pending.flip();
+		    pending.get(bytes, 0, kept);
+		}
+		input.get(bytes, kept, end - kept);
+		if (!negotiated && end > 0) {
+		    // The first byte tells which protocol the client speaks
+		    negotiated = true;
+		    framed = bytes[0] == Protocol.MAGIC;
+		}
+		int start = framed ? readFrames(bytes, end) : readLines(bytes, end);
+		if (n < 0 && !handler.isFinished() && handler.pausedUntil() == 0) {
+		    // The client has disconnected; the last line may have no
+		    // terminator
+		    if (!framed && start < end) {
+			handler.onLine(bytes, start, end - start);
+		    }
+		    handler.onEnd();
+		}
+		keepUnfinishedLine(bytes, start, end);
+	    } catch (IOException e) {
+		handler.onError(e);
+		close();
+		return;
+	    }
+	    if (handler.isFinished()) {
+		close();
+	    } else if (handler.pausedUntil() != 0) {
+		// Leaves the rest of the input for later
+		paused = true;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		loop.pause(this, handler.pausedUntil());
+	    }
+	}
+
+	/**
+	 * Reads again after a pause, starting with the pending lines. The
+	 * channel is read in the next round.
+	 */
+	private void resume() {
+	    handler.resume();
+	    paused = false;
+	    if (closed) return;
+	    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+	    read(false);
+	}
+
+	/**
+	 * Passes every complete line in the input to the handler, until the
+	 * handler pauses.
+	 *
+	 * @param bytes
+	 *            the input
+	 * @param end
+	 *            the index after the last byte read
+	 * @return the index of the first byte of the unfinished line
+	 */
+	private int readLines(byte[] bytes, int end) {
+	    int start = 0;
+	    int i;
+	    for (i = scanned; i < end && !handler.isFinished() && handler.pausedUntil() == 0; i++) {
+		byte b = bytes[i];
+		if (skipLF) {
+		    skipLF = false;
+		    if (b == '\n' && i == start) {
+			start++;
+			continue;
+		    }
+		}
+		if (b == '\n' || b == '\r') {
+		    skipLF = b == '\r';
+		    handler.onLine(bytes, start, i - start);
+		    start = i + 1;
+		}
+	    }
+	    scanned = i;
+	    return start;
+	}
+
+	/**
+	 * Passes every complete frame in the input to the handler. A frame is
+	 * found from its length alone, without looking at its bytes.
+	 *
+	 * @param bytes
+	 *            the input
+	 * @param end
+	 *            the index after the last byte read
+	 * @return the index of the first byte of the unfinished frame
+	 * @throws IOException
+	 *             if a frame is invalid
+	 */
+	private int readFrames(byte[] bytes, int end) throws IOException {
+	    int start = 0;
+	    while (end - start >= 4 && !handler.isFinished() && handler.pausedUntil() == 0) {
+		int length = Protocol.readInt(bytes, start);
+		if (length < Protocol.HEADER - 4 || length > Protocol.MAX_FRAME - 4) {
+		    throw new IOException("Invalid frame length: " + length);
+		}
+		if (end - start < 4 + length) break;
+		handler.onFrame(bytes[start + 4], bytes, start + Protocol.HEADER, length - (Protocol.HEADER - 4));
+		start += 4 + length;
+	    }
+	    return start;
+	}
+
+	/**
+	 * Keeps the unfinished line (or frame), and the lines a paused
+	 * connection has not handled, in the pending buffer, and gives the
+	 * buffer back if nothing is left.
+	 *
+	 * @param bytes
+	 *            the input
+	 * @param start
+	 *            the index of the first byte of the unfinished line
+	 * @param end
+	 *            the index after the last byte read
+	 * @throws IOException
+	 *             if the line is too long
+	 */
+	private void keepUnfinishedLine(byte[] bytes, int start, int end) throws IOException {
+	    int left = end - start;
+	    if (!framed && scanned == end && left >= LineReader.MAX_LINE) {
+		throw new IOException("Line too long.");
+	    }
+	    if (left == 0) {
+		BufferPool.release(pending);
+		pending = null;
+	    } else {
+		if (pending == null || pending.capacity() < left) {
+		    BufferPool.release(pending);
+		    pending = BufferPool.acquire(left);
+		}
+		pending.clear();
+		pending.put(bytes, start, left);
+	    }
+	    // A paused connection has lines left which have not been looked at
+	    scanned = framed ? left : scanned - start;
+	}
+
+	/**
+	 * Writes as many of the queued messages as the channel accepts, a batch
+	 * at a time from a borrowed buffer. If some output is left, the event
+	 * loop is asked to call again when the channel becomes writable;
+	 * otherwise the buffer is given back.
+	 */
+	private void write() {
+	    if (closed) return;
+	    if (aborted) {
+		close();
+		return;
+	    }
+	    try {
+		if (writeOutput()) {
+		    key.interestOps(readOps());
+		} else {
+		    key.interestOps(readOps() | SelectionKey.OP_WRITE);
+		}
+	    } catch (IOException e) {
+		handler.onError(e);
+		close();
+	    }
+	}
+
+	/**
+	 * Writes as many of the queued messages as the channel accepts.
+	 *
+	 * @return <tt>true</tt> if everything has been written
+	 * @throws IOException
+	 *             if the channel cannot be written
+	 */
+	private boolean writeOutput() throws IOException {
+	    while (true) {
+		if (output == null) {
+		    int size = outbound.batchBytes();
+		    if (size == 0) return true;
+		    output = BufferPool.acquire(size);
+		    outbound.drainTo(output);
+		    output.flip();
+		}
+		channel.write(output);
+		if (output.hasRemaining()) return false;
+		BufferPool.release(output);
+		output = null;
+	    }
+	}
+
+	/**
+	 * Gets the interest in input, which a paused connection does not have.
+	 *
+	 * @return {@link SelectionKey#OP_READ}, or 0 if the connection is paused
+	 */
+	private int readOps() {
+	    return paused ? 0 : SelectionKey.OP_READ;
+	}
+
+	/**
+	 * Reports an unexpected exception thrown while serving the client, and
+	 * closes the connection.
+	 *
+	 * @param e
+	 *            the exception
+	 */
+	private void fail(RuntimeException e) {
+	    report(e);
+	    close();
+	}
+
+	/**
+	 * Writes an unexpected exception, and where it was thrown, to the event
+	 * log.
+	 *
+	 * @param e
+	 *            the exception
+	 */
+	private void report(RuntimeException e) {
+	    StackTraceElement[] trace = e.getStackTrace();
+	    EventLog.warn(EventLog.Type.CLIENT, loop.getName() + ": " + e + (trace.length > 0 ? " at " + trace[0] : ""));
+	}
+
+	/**
+	 * Removes the client from the chat room and closes the channel.
+	 */
+	private void close() {
+	    if (closed) return;
+	    try {
+		handler.onClose();
+	    } catch (RuntimeException e) {
+		// The channel is closed all the same
+		report(e);
+	    }
+	    closed = true;
+	    if (!aborted) {
+		// Sends what the channel still accepts, such as the last words
+		// of the server
+		try {
+		    writeOutput();
+		} catch (IOException e) {
+		    handler.onError(e);
+		}
+	    }
+	    outbound.discard();
+	    BufferPool.release(pending);
+	    pending = null;
+	    BufferPool.release(output);
+	    output = null;
+	    key.cancel();
+	    try {
+		channel.close();
+	    } catch (IOException e) {
+		EventLog.warn(EventLog.Type.CLIENT, "closing: " + e.getMessage());
+	    }
+	}
+
+	/**
+	 * The Outbound queue of this connection, which is written by the event
+	 * loop.
+	 */
+	private class ChannelOutbound extends Outbound {
+
+	    @Override
+	    protected void signal() {
+		loop.requestWrite(Connection.this);
+	    }
+
+	    @Override
+	    protected void abort() {
+		aborted = true;
+		loop.requestWrite(Connection.this);
+	    }
+	}
+    }
+}
@@ -0,0 +1,233 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ****************************
+ * Filename: Room.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * A named room of the chat room. Every user is in exactly one room: he/she
+ * starts in the {@linkplain SessionRegistry#lobby() lobby} and moves with
+ * {@code -join} and {@code -leave}. The chat messages and the presence
+ * notifications of a user only go to the members of his/her room, each room
+ * keeping its own {@link History}.
+ * </p>
+ * <p>
+ * The members are kept in an array which is replaced, never changed, when
+ * somebody joins or leaves, so a broadcast walks the members of the room
+ * without any lock, and costs the size of the room rather than the number of
+ * users on the server. Joining and leaving are rare next to chat messages,
+ * and happen while holding the lock of the {@link SessionRegistry}. If there
+ * are {@linkplain FanOut fan-out workers}, the members of each shard are kept
+ * in an array of their own in the same way.
+ * </p>
+ * <p>
+ * A chat message is recorded in the History together with the members it is
+ * handed to, and a user who enters takes his/her place in the History
+ * together with his/her place among the members, both under the lock of the
+ * Room. So a message sent while somebody enters reaches him/her exactly once:
+ * either live, or replayed from the History.
+ * </p>
+ */
+public class Room {
+
+    /**
+     * No members.
+     */
+    private static final Session[] NOBODY = new Session[0];
+
+    /**
+     * The name of the room.
+     */
+    private final String name;
+
+    /**
+     * The latest messages in the room.
+     */
+    private final History history;
+
+    /**
+     * Guards the History together with the members, see
+     * {@link #record(Frame, Session)}.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The members of the room.
+     */
+    private volatile Session[] members = NOBODY;
+
+    /**
+     * The members of the room by {@linkplain FanOut#shardOf(Session) shard},
+     * or all of them in a single array if there are no fan-out workers.
+     */
+    private volatile Session[][] receivers;
+
+    /**
+     * Creates a new empty Room.
+     *
+     * @param name
+     *            the name of the room
+     * @param history
+     *            the empty History of the room
+     */
+    Room(String name, History history) {
+	this.name = name;
+	this.history = history;
+	this.receivers = new Session[Math.max(1, FanOut.shards())][];
+	Arrays.fill(receivers, NOBODY);
+    }
+
+    /**
+     * Gets the name of this Room.
+     *
+     * @return the name
+     */
+    public String name() {
+	return name;
+    }
+
+    /**
+     * Gets the latest messages in this Room.
+     *
+     * @return the History
+     */
+    public History history() {
+	return history;
+    }
+
+    /**
+     * Gets the members of this Room.
+     *
+     * @return the members at the moment, which must not be changed
+     */
+    public Session[] members() {
+	return members;
+    }
+
+    /**
+     * Gets the members of this Room to hand a message to.
+     *
+     * @return the members at the moment by {@linkplain FanOut#shardOf(Session)
+     *         shard}, or all of them in a single array if there are no
+     *         fan-out workers, which must not be changed
+     */
+    public Session[][] receivers() {
+	return receivers;
+    }
+
+    /**
+     * Records a chat message in the History of this Room, and gets the
+     * members to hand it to at the same moment.
+     *
+     * @param frame
+     *            the message, as sent to the users other than the sender
+     * @param sender
+     *            the sender
+     * @return the members at the moment, see {@link #receivers()}
+     */
+    public Session[][] record(Frame frame, Session sender) {
+	if (history.capacity() == 0) return receivers;
+	lock.lock();
+	try {
+	    history.record(frame, sender);
+	    return receivers;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Gets the number of members of this Room.
+     *
+     * @return the number of members
+     */
+    public int size() {
+	return members.length;
+    }
+
+    /**
+     * Adds a member. Only called while holding the lock of the
+     * {@link SessionRegistry}.
+     *
+     * @param session
+     *            the new member
+     * @return the number of messages recorded in the History before the
+     *         member was added, which are the ones to replay to him/her
+     */
+    long add(Session session) {
+	lock.lock();
+	try {
+	    members = with(members, session);
+	    int shard = FanOut.shards() > 0 ? FanOut.shardOf(session) : 0;
+	    Session[][] changed = receivers.clone();
+	    changed[shard] = with(changed[shard], session);
+	    receivers = changed;
+	    return history.recorded();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Removes a member. Only called while holding the lock of the
+     * {@link SessionRegistry}.
+     *
+     * @param session
+     *            the member
+     */
+    void remove(Session session) {
+	lock.lock();
+	try {
+	    members = without(members, session);
+	    int shard = FanOut.shards() > 0 ? FanOut.shardOf(session) : 0;
+	    Session[][] changed = receivers.clone();
+	    changed[shard] = without(changed[shard], session);
+	    receivers = changed;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Returns a copy of an array of members with one more member.
+     *
+     * @param array
+     *            the members
+     * @param session
+     *            the new member
+     * @return the new array
+     */
+    private static Session[] with(Session[] array, Session session) {
+	Session[] larger = Arrays.copyOf(array, array.length + 1);
+	larger[array.length] = session;
+	return larger;
+    }
+
+    /**
+     * Returns a copy of an array of members without a member.
+     *
+     * @param array
+     *            the members
+     * @param session
+     *            the member to be left out
+     * @return the new array, or the same array if the member is not in it
+     */
+    private static Session[] without(Session[] array, Session session) {
+	for (int i = 0; i < array.length; i++) {
+	    if (array[i] == session) {
+		Session[] smaller = new Session[array.length - 1];
+		System.arraycopy(array, 0, smaller, 0, i);
+		System.arraycopy(array, i + 1, smaller, i, array.length - i - 1);
+		return smaller;
+	    }
+	}
+	return array;
+    }
+}
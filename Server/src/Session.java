@@ -0,0 +1,268 @@
+/*
+ * ****************************
+ * Filename: Session.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * A Session holds everything the server knows about a user who is in the
+ * chat room: his/her session ID and name, the queue of messages to be sent to
+ * him/her, the time he/she entered, the {@link Room} he/she is in and whether
+ * he/she is an Administrator.
+ * </p>
+ * Sessions are created and removed by the {@link SessionRegistry}, which also
+ * keeps the block lists, indexed by session ID.
+ */
+public class Session {
+
+    /**
+     * The session ID, a small integer which is given to another user after
+     * this one has left.
+     */
+    private final int id;
+
+    /**
+     * The name of the user.
+     */
+    private final String name;
+
+    /**
+     * The queue of messages to be sent to the user.
+     */
+    private final Outbound out;
+
+    /**
+     * The time at which the user entered the chat room, from
+     * {@link Clock#monotonicMillis()}.
+     */
+    private final long startTime;
+
+    /**
+     * The encrypted bytes of "name: ", which start the user's chat messages
+     * as seen by others.
+     */
+    private final byte[] senderPrefix;
+
+    /**
+     * The encrypted bytes of "name(You): ", which start the user's chat
+     * messages as seen by himself/herself.
+     */
+    private final byte[] selfPrefix;
+
+    /**
+     * Is the user an Administrator? Read by the handlers of other users, so
+     * it is volatile.
+     */
+    private volatile boolean admin;
+
+    /**
+     * The room the user is in. Changed while holding the lock of the
+     * {@link SessionRegistry}, and read by the handlers of other users, so
+     * it is volatile.
+     */
+    private volatile Room room;
+
+    /**
+     * The number of messages {@linkplain History#record(Frame, Session)
+     * recorded} in the room before the user entered it. Only the messages
+     * before this are replayed to him/her, the later ones being handed to
+     * him/her as a member.
+     */
+    private long historyMark;
+
+    /**
+     * The link to the node of the {@link Cluster} the user is connected to,
+     * or <tt>null</tt> if he/she is connected to this server.
+     */
+    private final Peer peer;
+
+    /**
+     * Creates a new Session.
+     *
+     * @param id
+     *            the session ID
+     * @param name
+     *            the name of the user
+     * @param out
+     *            the queue of messages to be sent to the user
+     * @param room
+     *            the room the user starts in
+     */
+    Session(int id, String name, Outbound out, Room room) {
+	this(id, name, out, room, null);
+    }
+
+    /**
+     * Creates a new Session for a user connected to this server or to
+     * another node of the {@link Cluster}.
+     *
+     * @param id
+     *            the session ID
+     * @param name
+     *            the name of the user
+     * @param out
+     *            the queue of messages to be sent to the user, or
+     *            <tt>null</tt> if he/she is connected to another node
+     * @param room
+     *            the room the user starts in
+     * @param peer
+     *            the link to the node of the user, or <tt>null</tt>
+     */
+    Session(int id, String name, Outbound out, Room room, Peer peer) {
+	this.id = id;
+	this.name = name;
+	this.out = out;
+	this.room = room;
+	this.peer = peer;
+	this.startTime = Clock.monotonicMillis();
+	// Encodes the name once for all his/her chat messages
+	this.senderPrefix = XorCodec.encode(name + ": ");
+	this.selfPrefix = XorCodec.encode(name + "(You): ");
+    }
+
+    /**
+     * Gets the session ID.
+     *
+     * @return the session ID
+     */
+    public int id() {
+	return id;
+    }
+
+    /**
+     * Gets the name of the user.
+     *
+     * @return the name
+     */
+    public String name() {
+	return name;
+    }
+
+    /**
+     * Gets the queue of messages to be sent to the user.
+     *
+     * @return the queue, or <tt>null</tt> if the user is connected to another
+     *         node
+     */
+    public Outbound out() {
+	return out;
+    }
+
+    /**
+     * Queues a message to be sent to the user, or sends it to his/her node.
+     *
+     * @param frame
+     *            the message
+     */
+    public void send(Frame frame) {
+	if (peer != null) {
+	    peer.direct(name, frame);
+	} else {
+	    out.send(frame);
+	}
+    }
+
+    /**
+     * Gets the link to the node the user is connected to.
+     *
+     * @return the link, or <tt>null</tt> if the user is connected to this
+     *         server
+     */
+    public Peer peer() {
+	return peer;
+    }
+
+    /**
+     * Is the user connected to another node of the {@link Cluster}?
+     *
+     * @return <tt>true</tt> if the user is connected to another node
+     */
+    public boolean isRemote() {
+	return peer != null;
+    }
+
+    /**
+     * Gets the time at which the user entered the chat room.
+     *
+     * @return the time, from {@link Clock#monotonicMillis()}
+     */
+    public long startTime() {
+	return startTime;
+    }
+
+    /**
+     * Gets the encrypted bytes which start the user's chat messages as seen
+     * by others.
+     *
+     * @return the bytes of "name: ", which must not be changed
+     */
+    public byte[] senderPrefix() {
+	return senderPrefix;
+    }
+
+    /**
+     * Gets the encrypted bytes which start the user's chat messages as seen
+     * by himself/herself.
+     *
+     * @return the bytes of "name(You): ", which must not be changed
+     */
+    public byte[] selfPrefix() {
+	return selfPrefix;
+    }
+
+    /**
+     * Gets the room the user is in. After the user has left the chat room,
+     * this is the last room he/she was in.
+     *
+     * @return the room
+     */
+    public Room room() {
+	return room;
+    }
+
+    /**
+     * Moves the user to another room. Only called by the
+     * {@link SessionRegistry} while holding its lock.
+     *
+     * @param room
+     *            the room
+     * @param historyMark
+     *            the number of messages recorded in the room before the user
+     *            entered it, see {@link Room#add(Session)}
+     */
+    void moveTo(Room room, long historyMark) {
+	this.room = room;
+	this.historyMark = historyMark;
+    }
+
+    /**
+     * Gets the number of messages recorded in the room of the user before
+     * he/she entered it. Only read by the user's own handler, after moving
+     * him/her.
+     *
+     * @return the number of messages
+     */
+    long historyMark() {
+	return historyMark;
+    }
+
+    /**
+     * Is the user an Administrator?
+     *
+     * @return <tt>true</tt> if the user is an Administrator
+     */
+    public boolean isAdmin() {
+	return admin;
+    }
+
+    /**
+     * Makes the user an Administrator.
+     */
+    public void grantAdmin() {
+	admin = true;
+    }
+}
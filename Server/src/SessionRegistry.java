@@ -0,0 +1,392 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ****************************
+ * Filename: SessionRegistry.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * The users who are in the chat room.
+ * </p>
+ * <p>
+ * Each user is given a {@link Session} with a dense session ID when his/her
+ * name is validated. The registry finds a Session by name with one hash
+ * lookup, and by session ID with an array lookup: a broadcast walks the IDs
+ * from 0 to {@link #limit()} and never hashes a name.
+ * </p>
+ * <p>
+ * The block lists are kept here as well, in a {@link BlockIndex}, so that a
+ * user's blocks are removed at the same moment as his/her Session and can
+ * never apply to the next user given the same ID.
+ * </p>
+ * <p>
+ * So are the {@link Room}s. A user enters the lobby, which always exists,
+ * and any other room is created when the first user joins it and removed
+ * when the last one leaves.
+ * </p>
+ * Users enter and leave while holding a lock; lookups and broadcasts take no
+ * lock at all.
+ */
+public class SessionRegistry {
+
+    /**
+     * The name of the room every user enters first.
+     */
+    public static final String LOBBY = "lobby";
+
+    /**
+     * The Sessions by name.
+     */
+    private final ConcurrentHashMap<String, Session> names = new ConcurrentHashMap<String, Session>();
+
+    /**
+     * The Sessions by session ID, <tt>null</tt> where an ID is not in use.
+     * Replaced with a larger array when it is full.
+     */
+    private volatile AtomicReferenceArray<Session> slots = new AtomicReferenceArray<Session>(64);
+
+    /**
+     * One more than the largest session ID ever given out.
+     */
+    private volatile int limit;
+
+    /**
+     * Gives out the session IDs.
+     */
+    private final IdPool ids = new IdPool();
+
+    /**
+     * The block lists of all users, indexed by session ID.
+     */
+    private final BlockIndex blocks = new BlockIndex();
+
+    /**
+     * The rooms by name.
+     */
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+
+    /**
+     * The room every user enters first.
+     */
+    private final Room lobby;
+
+    /**
+     * <p>
+     * Guards users entering and leaving, in case that two clients enter the
+     * same name at the same time.
+     * </p>
+     * A ReentrantLock is used instead of a synchronized block because a
+     * virtual thread waiting for a monitor pins the carrier thread it runs on.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Creates an empty registry with an empty lobby.
+     *
+     * @param history
+     *            the History of the lobby; the other rooms are given an
+     *            empty History of the same size
+     */
+    public SessionRegistry(History history) {
+	lobby = new Room(LOBBY, history);
+	rooms.put(LOBBY, lobby);
+    }
+
+    /**
+     * Adds a user to the lobby, unless his/her name is already in use.
+     *
+     * @param name
+     *            the name of the user
+     * @param out
+     *            the queue of messages to be sent to the user
+     * @return the new Session, or <tt>null</tt> if the name is in use
+     */
+    public Session register(String name, Outbound out) {
+	return register(name, out, null);
+    }
+
+    /**
+     * Adds a user connected to another node of the {@link Cluster} to the
+     * lobby, unless his/her name is already in use.
+     *
+     * @param name
+     *            the name of the user
+     * @param peer
+     *            the link to the node of the user
+     * @return the new Session, or <tt>null</tt> if the name is in use
+     */
+    public Session registerRemote(String name, Peer peer) {
+	return register(name, null, peer);
+    }
+
+    /**
+     * Adds a user to the lobby, unless his/her name is already in use.
+     *
+     * @param name
+     *            the name of the user
+     * @param out
+     *            the queue of messages to be sent to the user, or
+     *            <tt>null</tt>
+     * @param peer
+     *            the link to the node of the user, or <tt>null</tt>
+     * @return the new Session, or <tt>null</tt> if the name is in use
+     */
+    private Session register(String name, Outbound out, Peer peer) {
+	lock.lock();
+	try {
+	    if (names.containsKey(name)) return null;
+	    int id = ids.acquire();
+	    ensureCapacity(id);
+	    Session session = new Session(id, name, out, lobby, peer);
+	    blocks.register(id);
+	    session.moveTo(lobby, lobby.add(session));
+	    slots.set(id, session);
+	    if (id >= limit) limit = id + 1;
+	    names.put(name, session);
+	    return session;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Removes a user from the chat room and his/her room, together with the
+     * blocks he/she has made and the blocks made against him/her.
+     *
+     * @param session
+     *            the Session of the user
+     */
+    public void unregister(Session session) {
+	lock.lock();
+	try {
+	    int id = session.id();
+	    if (!names.remove(session.name(), session)) return;
+	    slots.set(id, null);
+	    leave(session.room(), session);
+	    blocks.unregister(id);
+	    ids.release(id);
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Moves a user to another room, creating the room if there is none.
+     *
+     * @param session
+     *            the Session of the user
+     * @param name
+     *            the name of the room
+     * @return the room, or <tt>null</tt> if the user has left the chat room
+     */
+    public Room join(Session session, String name) {
+	lock.lock();
+	try {
+	    if (names.get(session.name()) != session) return null;
+	    Room room = rooms.get(name);
+	    if (room == null) {
+		room = new Room(name, new History(lobby.history()));
+		rooms.put(name, room);
+	    }
+	    Room from = session.room();
+	    if (from != room) {
+		leave(from, session);
+		session.moveTo(room, room.add(session));
+	    }
+	    return room;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Removes a user from a room, and the room if it is now empty and not the
+     * lobby. Only called while holding the lock.
+     *
+     * @param room
+     *            the room
+     * @param session
+     *            the Session of the user
+     */
+    private void leave(Room room, Session session) {
+	room.remove(session);
+	if (room.size() == 0 && room != lobby) {
+	    rooms.remove(room.name(), room);
+	}
+    }
+
+    /**
+     * Finds a room by name.
+     *
+     * @param name
+     *            the name
+     * @return the room, or <tt>null</tt> if there is none
+     */
+    public Room room(String name) {
+	return rooms.get(name);
+    }
+
+    /**
+     * Gets the room every user enters first.
+     *
+     * @return the lobby
+     */
+    public Room lobby() {
+	return lobby;
+    }
+
+    /**
+     * Gets all the rooms.
+     *
+     * @return the rooms at the moment, sorted by name
+     */
+    public List<Room> rooms() {
+	List<Room> list = new ArrayList<Room>(rooms.values());
+	Collections.sort(list, new Comparator<Room>() {
+	    @Override
+	    public int compare(Room a, Room b) {
+		return a.name().compareTo(b.name());
+	    }
+	});
+	return list;
+    }
+
+    /**
+     * Finds a user by name.
+     *
+     * @param name
+     *            the name
+     * @return the Session, or <tt>null</tt> if nobody has the name
+     */
+    public Session find(String name) {
+	return names.get(name);
+    }
+
+    /**
+     * Finds a user by session ID.
+     *
+     * @param id
+     *            the session ID, from 0 to {@link #limit()}
+     * @return the Session, or <tt>null</tt> if the ID is not in use
+     */
+    public Session get(int id) {
+	AtomicReferenceArray<Session> array = slots;
+	return id < array.length() ? array.get(id) : null;
+    }
+
+    /**
+     * Gets the upper bound of the session IDs, for walking all the users
+     * with {@link #get(int)}.
+     *
+     * @return one more than the largest session ID ever given out
+     */
+    public int limit() {
+	return limit;
+    }
+
+    /**
+     * Gets the number of users in the chat room.
+     *
+     * @return the number of users
+     */
+    public int size() {
+	return names.size();
+    }
+
+    /**
+     * Makes a user block all the messages from another.
+     *
+     * @param receiver
+     *            the user who blocks
+     * @param sender
+     *            the user to be blocked
+     * @return <tt>false</tt> if either user has left the chat room
+     */
+    public boolean block(Session receiver, Session sender) {
+	return blocks.block(receiver.id(), sender.id());
+    }
+
+    /**
+     * Makes a user receive messages from another again.
+     *
+     * @param receiver
+     *            the user who unblocks
+     * @param sender
+     *            the user to be unblocked
+     */
+    public void unblock(Session receiver, Session sender) {
+	blocks.unblock(receiver.id(), sender.id());
+    }
+
+    /**
+     * Has a user blocked another?
+     *
+     * @param receiver
+     *            the user
+     * @param sender
+     *            the sender
+     * @return <tt>true</tt> if the messages from the sender are blocked
+     */
+    public boolean isBlocked(Session receiver, Session sender) {
+	return blocks.isBlocked(receiver.id(), sender.id());
+    }
+
+    /**
+     * Gets the users a user has blocked.
+     *
+     * @param receiver
+     *            the user
+     * @return the users blocked
+     */
+    public List<Session> blockedBy(Session receiver) {
+	List<Session> senders = new ArrayList<Session>();
+	for (int id : blocks.blockedBy(receiver.id())) {
+	    Session sender = get(id);
+	    if (sender != null) senders.add(sender);
+	}
+	return senders;
+    }
+
+    /**
+     * Gets the users who have blocked a sender.
+     *
+     * @param sender
+     *            the sender
+     * @return a bitset of session IDs, which must not be changed, or
+     *         <tt>null</tt> if nobody has blocked the sender
+     * @see BlockIndex#get(long[], int)
+     */
+    public long[] blockersOf(Session sender) {
+	return blocks.blockersOf(sender.id());
+    }
+
+    /**
+     * Makes sure that a session ID can be stored in the array. Only called
+     * while holding the lock.
+     *
+     * @param id
+     *            the session ID
+     */
+    private void ensureCapacity(int id) {
+	AtomicReferenceArray<Session> array = slots;
+	if (id < array.length()) return;
+	int capacity = array.length();
+	while (capacity <= id) capacity *= 2;
+	AtomicReferenceArray<Session> larger = new AtomicReferenceArray<Session>(capacity);
+	for (int i = 0; i < array.length(); i++) {
+	    larger.set(i, array.get(i));
+	}
+	slots = larger;
+    }
+}
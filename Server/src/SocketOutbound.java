@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * ****************************
+ * Filename: SocketOutbound.java
+ * Student Name: Jinke He
+ * University ID: 201219022
+ * Departmental ID: x6jh
+ * ****************************
+ */
+
+/**
+ * <p>
+ * The {@link Outbound} queue of a client served by a blocking
+ * {@link Server.ThreadHandler}.
+ * </p>
+ * Whenever messages are queued, a writer task is started on an
+ * {@link Executor} (unless one is already running for this client). The task
+ * writes everything in the queue to the socket with blocking writes, from
+ * buffers borrowed from the {@link BufferPool}, and then finishes, so a slow
+ * client only ever holds up its own writer.
+ */
+public class SocketOutbound extends Outbound {
+
+    /**
+     * The client channel, in blocking mode.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * Runs the writer tasks.
+     */
+    private final Executor writers;
+
+    /**
+     * Is a writer task running or about to run?
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * Creates a new SocketOutbound.
+     *
+     * @param channel
+     *            the client channel, in blocking mode
+     * @param writers
+     *            runs the writer tasks
+     */
+    public SocketOutbound(SocketChannel channel, Executor writers) {
+	this.channel = channel;
+	this.writers = writers;
+    }
+
+    @Override
+    protected void signal() {
+	if (scheduled.compareAndSet(false, true)) {
+	    writers.execute(new Runnable() {
+		@Override
+		public void run() {
+		    drain();
+		}
+	    });
+	}
+    }
+
+    /**
+     * Writes the queued messages to the socket until the queue is empty, and
+     * closes the socket if the queue has been closed.
+     */
+    private void drain() {
+	ByteBuffer buffer = null;
+	try {
+	    // Waits for more messages to gather, unless there are enough
+	    // already
+	    long window = flushWindowNanos();
+	    if (window > 0 && !isClosed() && queuedBytes() < flushBytes()) {
+		LockSupport.parkNanos(window);
+	    }
+	    while (true) {
+		int size;
+		while ((size = batchBytes()) > 0) {
+		    buffer = BufferPool.acquire(size);
+		    // Nothing is copied if the queue has changed meanwhile
+		    if (drainTo(buffer) > 0) {
+			buffer.flip();
+			write(buffer);
+		    }
+		    BufferPool.release(buffer);
+		    buffer = null;
+		}
+		scheduled.set(false);
+		// Messages queued after the last poll() started no new writer
+		// while this one was running, so checks once more
+		if (isEmpty() || !scheduled.compareAndSet(false, true)) break;
+	    }
+	    if (isClosed() && isEmpty()) {
+		channel.close();
+	    }
+	} catch (IOException e) {
+	    // The client is gone; its ThreadHandler will notice when reading
+	    discard();
+	    abort();
+	} finally {
+	    BufferPool.release(buffer);
+	}
+    }
+
+    /**
+     * Writes the messages in a buffer.
+     *
+     * @param buffer
+     *            the buffer, ready to be read
+     * @throws IOException
+     *             if the messages cannot be written
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+	while (buffer.hasRemaining()) {
+	    channel.write(buffer);
+	}
+    }
+
+    @Override
+    protected void abort() {
+	try {
+	    channel.close();
+	} catch (IOException e) {
+	    EventLog.warn(EventLog.Type.CLIENT, "closing: " + e.getMessage());
+	}
+    }
+}